@@ -0,0 +1,217 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Random;
+
+import org.mbedsys.jvar.Variant;
+import org.mbedsys.jvar.Variant.Format;
+import org.mbedsys.jvar.VariantList;
+import org.mbedsys.jvar.VariantMap;
+
+/**
+ * Benchmark documents. Every corpus is built from a fixed seed so that the
+ * results of two runs can be compared.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public enum Corpus {
+
+	/**
+	 * Small message, like a typical RPC request
+	 */
+	SMALL {
+		@Override
+		Variant build(Random random) {
+			VariantMap params = new VariantMap();
+			params.put("id", random.nextInt(100000));
+			params.put("name", word(random, 12));
+			params.put("enabled", random.nextBoolean());
+			params.put("ratio", random.nextDouble());
+			VariantMap ret = new VariantMap();
+			ret.put("jsonrpc", "2.0");
+			ret.put("method", "device.update");
+			ret.put("id", random.nextLong());
+			ret.put("params", params);
+			return ret;
+		}
+	},
+
+	/**
+	 * Flat map with many keys of mixed types
+	 */
+	WIDE_MAP {
+		@Override
+		Variant build(Random random) {
+			VariantMap ret = new VariantMap();
+			for (int i = 0; i < 2000; i++) {
+				String key = "key" + i;
+				switch (i % 4) {
+				case 0:
+					ret.put(key, random.nextInt());
+					break;
+				case 1:
+					ret.put(key, random.nextDouble());
+					break;
+				case 2:
+					ret.put(key, word(random, 8));
+					break;
+				default:
+					ret.put(key, random.nextBoolean());
+					break;
+				}
+			}
+			return ret;
+		}
+	},
+
+	/**
+	 * Deeply nested maps and lists
+	 */
+	DEEP {
+		@Override
+		Variant build(Random random) {
+			Variant ret = new VariantMap().put("leaf", random.nextInt(10));
+			for (int i = 0; i < 200; i++) {
+				if (i % 2 == 0) {
+					VariantList list = new VariantList().add(i);
+					list.add(ret);
+					ret = list;
+				} else {
+					VariantMap map = new VariantMap();
+					map.put("level", i);
+					map.put("child", ret);
+					ret = map;
+				}
+			}
+			return ret;
+		}
+	},
+
+	/**
+	 * Big arrays of numbers
+	 */
+	NUMBERS {
+		@Override
+		Variant build(Random random) {
+			VariantList ints = new VariantList();
+			VariantList longs = new VariantList();
+			VariantList doubles = new VariantList();
+			for (int i = 0; i < 10000; i++) {
+				ints.add(random.nextInt(1000));
+				longs.add(random.nextLong());
+				doubles.add(random.nextDouble() * 1e6);
+			}
+			VariantMap ret = new VariantMap();
+			ret.put("ints", ints);
+			ret.put("longs", longs);
+			ret.put("doubles", doubles);
+			return ret;
+		}
+	},
+
+	/**
+	 * List of records holding mostly text, with escapes and non ASCII
+	 * characters
+	 */
+	STRINGS {
+		@Override
+		Variant build(Random random) {
+			VariantList ret = new VariantList();
+			for (int i = 0; i < 1000; i++) {
+				VariantMap record = new VariantMap();
+				record.put("title", word(random, 20));
+				record.put("body", sentence(random, 40));
+				record.put("quote", "\"" + word(random, 10) + "\"\n\t\u00e9t\u00e9");
+				ret.add(record);
+			}
+			return ret;
+		}
+	};
+
+	private static final long SEED = 0x4A56617269616E74L;
+
+	private Variant document;
+
+	abstract Variant build(Random random);
+
+	/**
+	 * Get the corpus document (built once)
+	 *
+	 * @return a map or a list
+	 */
+	public synchronized Variant document() {
+		if (document == null) {
+			document = build(new Random(SEED));
+		}
+		return document;
+	}
+
+	/**
+	 * Serialize the corpus document
+	 *
+	 * @param format output format
+	 * @return the serialized bytes
+	 * @throws IOException on serialization error
+	 */
+	public byte[] serialize(Format format) throws IOException {
+		return serialize(document(), format, new ByteArrayOutputStream());
+	}
+
+	static byte[] serialize(Variant variant, Format format,
+			ByteArrayOutputStream output) throws IOException {
+		output.reset();
+		switch (format) {
+		case JSON: {
+			OutputStreamWriter writer = new OutputStreamWriter(output, "UTF-8");
+			Variant.serializeJSON(writer, variant, 0);
+			writer.flush();
+			break;
+		}
+		case BSON:
+			Variant.serializeBSON(output, variant);
+			break;
+		case BCON:
+			Variant.serializeBCON(output, variant);
+			break;
+		}
+		return output.toByteArray();
+	}
+
+	private static String word(Random random, int length) {
+		char[] ret = new char[length];
+		for (int i = 0; i < length; i++) {
+			ret[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(ret);
+	}
+
+	private static String sentence(Random random, int words) {
+		StringBuilder ret = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i != 0) {
+				ret.append(' ');
+			}
+			ret.append(word(random, 1 + random.nextInt(10)));
+		}
+		return ret.toString();
+	}
+}
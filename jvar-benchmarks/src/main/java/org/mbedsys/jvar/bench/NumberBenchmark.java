@@ -0,0 +1,78 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mbedsys.jvar.VariantNumber;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * VariantNumber.optimize benchmark over small, medium and large values
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NumberBenchmark {
+
+	private final long[] values = new long[1024];
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0x4A56617269616E74L);
+		for (int i = 0; i < values.length; i++) {
+			switch (i % 4) {
+			case 0:
+				values[i] = random.nextInt(256) - 128;
+				break;
+			case 1:
+				values[i] = random.nextInt(65536) - 32768;
+				break;
+			case 2:
+				values[i] = random.nextInt();
+				break;
+			default:
+				values[i] = random.nextLong();
+				break;
+			}
+		}
+	}
+
+	@Benchmark
+	public void optimize(Blackhole blackhole) {
+		for (long value : values) {
+			blackhole.consume(VariantNumber.optimize(value));
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mbedsys.jvar.Variant;
+import org.mbedsys.jvar.VariantMap;
+import org.mbedsys.jvar.VariantPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * VariantMap.resolvePath and updatePath benchmark, compared with compiled
+ * VariantPath objects
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PathBenchmark {
+
+	@Param({ "1", "4", "16" })
+	public int depth;
+
+	private VariantMap root;
+	private String path;
+	private VariantPath compiled;
+	private VariantPath compiledValue;
+
+	@Setup
+	public void setup() {
+		root = new VariantMap();
+		VariantMap node = root;
+		StringBuilder path = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			// Some siblings at each level
+			for (int j = 0; j < 8; j++) {
+				node.put("sibling" + j, j);
+			}
+			VariantMap child = new VariantMap();
+			node.put("level" + i, child);
+			node = child;
+			if (i != 0) {
+				path.append('.');
+			}
+			path.append("level").append(i);
+		}
+		this.path = path.toString();
+		compiled = VariantPath.compile(this.path);
+		compiledValue = VariantPath.compile(this.path + ".value");
+	}
+
+	@Benchmark
+	public Variant resolvePath() {
+		return VariantMap.resolvePath(root, path);
+	}
+
+	@Benchmark
+	public Variant updatePath() {
+		return VariantMap.updatePath(root, path + ".value", Variant.TRUE);
+	}
+
+	@Benchmark
+	public Variant compiledGet() {
+		return compiled.get(root);
+	}
+
+	@Benchmark
+	public Variant compiledSet() {
+		return compiledValue.set(root, Variant.TRUE);
+	}
+}
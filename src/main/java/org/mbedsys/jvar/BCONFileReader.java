@@ -0,0 +1,180 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over the BCON documents concatenated in a file.
+ *
+ * The file is memory-mapped by windows of at most 2 GB and the documents are
+ * parsed in place: strings and byte arrays are returned as
+ * {@link VariantStringSlice} and {@link VariantByteArraySlice} views over the
+ * mapping, only decoded or copied when accessed.
+ *
+ * <pre>
+ * try (BCONFileReader reader = new BCONFileReader(file)) {
+ *     while (reader.hasNext()) {
+ *         Variant doc = reader.next();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class BCONFileReader implements Iterator<Variant>, Closeable {
+
+	private final FileChannel channel;
+	private final long size;
+	private final int windowSize;
+
+	private long windowStart;
+	private MappedByteBuffer window;
+	private BCONReader reader;
+	private KeyTable keyTable;
+
+	/**
+	 * BCON file reader constructor
+	 *
+	 * @param file file holding concatenated BCON documents
+	 * @throws IOException on IO error
+	 */
+	public BCONFileReader(File file) throws IOException {
+		this(file, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * BCON file reader constructor
+	 *
+	 * @param file file holding concatenated BCON documents
+	 * @param windowSize maximum size of a mapping, must be greater than the
+	 *            biggest document
+	 * @throws IOException on IO error
+	 */
+	public BCONFileReader(File file, int windowSize) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			channel = raf.getChannel();
+			size = channel.size();
+			this.windowSize = windowSize;
+			map(0);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	private void map(long start) throws IOException {
+		windowStart = start;
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+				Math.min(windowSize, size - start));
+		reader = new BCONReader(window, true);
+		reader.setKeyTable(keyTable);
+	}
+
+	/**
+	 * Set the table used to share the map key strings between the read
+	 * documents
+	 *
+	 * @param keyTable key table or null to disable the key sharing
+	 */
+	public void setKeyTable(KeyTable keyTable) {
+		this.keyTable = keyTable;
+		reader.setKeyTable(keyTable);
+	}
+
+	/**
+	 * Get the file offset of the next document
+	 *
+	 * @return an offset in bytes
+	 */
+	public long position() {
+		return windowStart + window.position();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return position() < size;
+	}
+
+	/**
+	 * Parse the next document
+	 *
+	 * @return the document
+	 * @throws NoSuchElementException at the end of the file
+	 * @throws IllegalStateException on IO/parsing error (the cause is the
+	 *             original {@link IOException})
+	 */
+	@Override
+	public Variant next() {
+		try {
+			return read();
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Parse the next document
+	 *
+	 * @return the document
+	 * @throws IOException on IO/parsing error
+	 * @throws NoSuchElementException at the end of the file
+	 */
+	public Variant read() throws IOException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		int start = window.position();
+		Variant ret;
+		try {
+			ret = reader.read();
+		} catch (EOFException e) {
+			// The document may cross the end of the window
+			if (windowStart + window.limit() == size || start == 0) {
+				throw e;
+			}
+			map(windowStart + start);
+			ret = reader.read();
+		}
+		if (ret == null) {
+			throw new ParserException("Unexpected BCON end token at offset "
+					+ (windowStart + start));
+		}
+		return ret;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered BCON parser.
+ *
+ * The data is read either from an input stream through an internal buffer
+ * filled with bulk reads, or directly from a caller supplied
+ * {@link ByteBuffer} (its position is moved after each parsed value, its
+ * byte order is left unchanged).
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class BCONReader extends Variant.Parser {
+
+	private static final int DEFAULT_CAPACITY = 8192;
+
+	private final InputStream input;
+	private final boolean lazy;
+	private ByteBuffer buffer;
+	private final ByteBuffer source;
+
+	/**
+	 * BCON reader constructor
+	 *
+	 * @param input data stream
+	 */
+	public BCONReader(InputStream input) {
+		this.input = input;
+		lazy = false;
+		source = null;
+		buffer = ByteBuffer.allocate(DEFAULT_CAPACITY).order(
+				ByteOrder.LITTLE_ENDIAN);
+		buffer.limit(0);
+	}
+
+	/**
+	 * BCON reader constructor
+	 *
+	 * @param source buffer holding the data from its current position
+	 */
+	public BCONReader(ByteBuffer source) {
+		this(source, false);
+	}
+
+	/**
+	 * BCON reader constructor
+	 *
+	 * @param source buffer holding the data from its current position
+	 * @param lazy if true, strings and byte arrays are returned as
+	 *            {@link VariantStringSlice} and {@link VariantByteArraySlice}
+	 *            views over the source buffer instead of copies
+	 */
+	public BCONReader(ByteBuffer source, boolean lazy) {
+		input = null;
+		this.lazy = lazy;
+		// Read through a little endian view of the caller buffer
+		buffer = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		this.source = source;
+	}
+
+	@Override
+	public Variant next(boolean wait) throws IOException {
+		if (!wait && !buffer.hasRemaining()
+				&& (input == null || input.available() == 0)) {
+			return null;
+		}
+		return read();
+	}
+
+	/**
+	 * Parse the next value
+	 *
+	 * @return the value or null on a BCON end token
+	 * @throws IOException on IO/parsing error
+	 */
+	public Variant read() throws IOException {
+		Variant ret = readValue();
+		if (source != null) {
+			source.position(buffer.position());
+		}
+		return ret;
+	}
+
+	private Variant readValue() throws IOException {
+		ensure(1);
+		byte c = buffer.get();
+		if ((c & 0x80) != 0) {
+			return sized(c, c & 0x3F);
+		} else if ((c & 0xF0) != 0) {
+			int len = c & 0x0F;
+			switch (c & 0x30) {
+			case 0x10:
+				ensure(1);
+				len |= (buffer.get() & 0xFF) << 4;
+				break;
+			case 0x20:
+				ensure(2);
+				len |= ((buffer.get() & 0xFF) << 4)
+						| ((buffer.get() & 0xFF) << 12);
+				break;
+			case 0x30:
+				ensure(3);
+				len |= ((buffer.get() & 0xFF) << 4)
+						| ((buffer.get() & 0xFF) << 12)
+						| ((buffer.get() & 0xFF) << 20);
+				break;
+			default:
+				throw new ParserException("Invalid "
+						+ (((c & 0x40) != 0) ? "BCON_TOKEN_STRING"
+								: "BCON_TOKEN_DATA") + " type "
+						+ VariantNumber.toHexString((byte) (c & 0x30)));
+			}
+			return sized(c, len);
+		}
+		switch (c) {
+		case Variant.BCON_TOKEN_END:
+			return null;
+		case Variant.BCON_TOKEN_NULL:
+			return Variant.NULL;
+		case Variant.BCON_TOKEN_TRUE:
+			return Variant.TRUE;
+		case Variant.BCON_TOKEN_FALSE:
+			return Variant.FALSE;
+		case Variant.BCON_TOKEN_BYTE:
+			ensure(1);
+			return VariantByte.valueOf(buffer.get());
+		case Variant.BCON_TOKEN_INT16:
+			ensure(2);
+			return VariantShort.valueOf(buffer.getShort());
+		case Variant.BCON_TOKEN_UINT16:
+			ensure(2);
+			return VariantUShort.valueOf(buffer.getShort());
+		case Variant.BCON_TOKEN_INT32:
+			ensure(4);
+			return VariantInt.valueOf(buffer.getInt());
+		case Variant.BCON_TOKEN_UINT32:
+			ensure(4);
+			return VariantUInt.valueOf(buffer.getInt());
+		case Variant.BCON_TOKEN_INT64:
+			ensure(8);
+			return VariantLong.valueOf(buffer.getLong());
+		case Variant.BCON_TOKEN_UINT64:
+			ensure(8);
+			return VariantULong.valueOf(buffer.getLong());
+		case Variant.BCON_TOKEN_DOUBLE:
+			ensure(8);
+			return new VariantDouble(buffer.getDouble());
+		case Variant.BCON_TOKEN_DATETIME:
+			ensure(8);
+			return new VariantDateTime(buffer.getLong());
+		case Variant.BCON_TOKEN_MAP: {
+			VariantMap map = new VariantMap();
+			Variant value;
+			while ((value = readValue()) != null) {
+				map.put(readKey(), value);
+			}
+			return map;
+		}
+		case Variant.BCON_TOKEN_LIST: {
+			VariantList list = new VariantList();
+			Variant value;
+			while ((value = readValue()) != null) {
+				list.add(value);
+			}
+			return list;
+		}
+		default:
+			throw new ParserException("Invalid token " + c);
+		}
+	}
+
+	/**
+	 * Read a string or a byte array payload
+	 */
+	private Variant sized(byte token, int len) throws IOException {
+		if (lazy) {
+			ensure(len);
+			ByteBuffer slice = buffer.duplicate();
+			slice.limit(slice.position() + len);
+			buffer.position(buffer.position() + len);
+			return (token & 0x40) != 0 ? new VariantStringSlice(slice)
+					: new VariantByteArraySlice(slice);
+		}
+		if ((token & 0x40) == 0) {
+			byte[] data = new byte[len];
+			readFully(data);
+			return new VariantByteArray(data);
+		}
+		if (len <= buffer.capacity()) {
+			ensure(len);
+			String ret = decode(buffer.position(), len);
+			buffer.position(buffer.position() + len);
+			return VariantString.valueOf(ret);
+		}
+		byte[] data = new byte[len];
+		readFully(data);
+		return new VariantString(new String(data, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Read a NUL terminated map key
+	 */
+	private String readKey() throws IOException {
+		int start = buffer.position();
+		int end = start;
+		while (true) {
+			if (end == buffer.limit()) {
+				ensure(end - start + 1);
+				// The buffer may have been compacted
+				end += buffer.position() - start;
+				start = buffer.position();
+			}
+			if (buffer.get(end) == 0) {
+				break;
+			}
+			end++;
+		}
+		String ret = keyTable != null ? keyTable.intern(buffer, start, end
+				- start) : decode(start, end - start);
+		buffer.position(end + 1);
+		return ret;
+	}
+
+	private String decode(int pos, int len) {
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + pos, len,
+					StandardCharsets.UTF_8);
+		}
+		byte[] data = new byte[len];
+		ByteBuffer src = buffer.duplicate();
+		src.position(pos);
+		src.get(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Make sure at least count bytes can be read from the buffer
+	 */
+	private void ensure(int count) throws IOException {
+		if (buffer.remaining() >= count) {
+			return;
+		}
+		if (input == null) {
+			throw new EOFException();
+		}
+		if (count > buffer.capacity()) {
+			ByteBuffer newBuffer = ByteBuffer.allocate(
+					Math.max(count, buffer.capacity() * 2)).order(
+					ByteOrder.LITTLE_ENDIAN);
+			newBuffer.put(buffer);
+			buffer = newBuffer;
+		} else {
+			buffer.compact();
+		}
+		while (buffer.position() < count) {
+			int n = input.read(buffer.array(), buffer.arrayOffset()
+					+ buffer.position(), buffer.remaining());
+			if (n < 0) {
+				buffer.flip();
+				throw new EOFException();
+			}
+			buffer.position(buffer.position() + n);
+		}
+		buffer.flip();
+	}
+
+	private void readFully(byte[] data) throws IOException {
+		int off = Math.min(buffer.remaining(), data.length);
+		buffer.get(data, 0, off);
+		if (off == data.length) {
+			return;
+		}
+		if (input == null) {
+			throw new EOFException();
+		}
+		// Bypass the buffer for the remaining part
+		while (off < data.length) {
+			int n = input.read(data, off, data.length - off);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			off += n;
+		}
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * Buffered BCON serializer.
+ *
+ * Values are encoded in a byte buffer using bulk puts. The buffer is either
+ * an internal growable one, a caller supplied {@link ByteBuffer}, or a fixed
+ * size one written to an output stream each time it is full.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class BCONWriter {
+
+	private static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * Maximum length of a string or a byte array (28 bits length field)
+	 */
+	private static final int MAX_LENGTH = 0x10000000;
+
+	private ByteBuffer buffer;
+	private final ByteBuffer target;
+
+	/**
+	 * Position of the first written byte in the buffer
+	 */
+	private final int origin;
+	private final OutputStream output;
+	private final boolean growable;
+
+	/**
+	 * BCON writer constructor using an internal growable buffer
+	 */
+	public BCONWriter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * BCON writer constructor using an internal growable buffer
+	 *
+	 * @param capacity initial buffer capacity
+	 */
+	public BCONWriter(int capacity) {
+		buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+		target = null;
+		origin = 0;
+		output = null;
+		growable = true;
+	}
+
+	/**
+	 * BCON writer constructor writing into a caller supplied buffer, from its
+	 * current position. A {@link BufferOverflowException} is thrown if the
+	 * buffer is too small.
+	 *
+	 * The bytes are written through a little endian view of the buffer, so
+	 * its byte order is left unchanged; its position is moved after each
+	 * value written.
+	 *
+	 * @param target output buffer
+	 */
+	public BCONWriter(ByteBuffer target) {
+		buffer = target.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		this.target = target;
+		origin = target.position();
+		output = null;
+		growable = false;
+	}
+
+	/**
+	 * BCON writer constructor writing into an output stream through a fixed
+	 * size buffer. {@link #flush()} must be called once the values are
+	 * written.
+	 *
+	 * @param output output stream
+	 */
+	public BCONWriter(OutputStream output) {
+		buffer = ByteBuffer.allocate(DEFAULT_CAPACITY).order(
+				ByteOrder.LITTLE_ENDIAN);
+		target = null;
+		origin = 0;
+		this.output = output;
+		growable = false;
+	}
+
+	/**
+	 * Get the output buffer
+	 *
+	 * @return the buffer, positioned after the last written byte
+	 */
+	public ByteBuffer buffer() {
+		return target != null ? target : buffer;
+	}
+
+	/**
+	 * Get the number of bytes held by the buffer
+	 *
+	 * @return a size in bytes
+	 */
+	public int size() {
+		return buffer.position() - origin;
+	}
+
+	/**
+	 * Discard the buffered bytes (the buffer is kept)
+	 */
+	public void reset() {
+		buffer.position(origin);
+		if (target != null) {
+			target.position(origin);
+		}
+	}
+
+	/**
+	 * Get a copy of the buffered bytes
+	 *
+	 * @return a byte array
+	 */
+	public byte[] toByteArray() {
+		byte[] ret = new byte[buffer.position() - origin];
+		ByteBuffer src = buffer.duplicate();
+		src.flip();
+		src.position(origin);
+		src.get(ret);
+		return ret;
+	}
+
+	/**
+	 * Write the buffered bytes into an output stream
+	 *
+	 * @param output output stream
+	 * @throws IOException on IO error
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		if (buffer.hasArray()) {
+			output.write(buffer.array(), buffer.arrayOffset() + origin,
+					buffer.position() - origin);
+		} else {
+			output.write(toByteArray());
+		}
+	}
+
+	/**
+	 * Write the buffered bytes into the output stream given to the
+	 * constructor (the stream itself is not flushed)
+	 *
+	 * @throws IOException on IO error
+	 */
+	public void flush() throws IOException {
+		if (output != null && buffer.position() != 0) {
+			writeTo(output);
+			buffer.clear();
+		}
+	}
+
+	private void ensure(int count) throws IOException {
+		if (buffer.remaining() >= count) {
+			return;
+		}
+		if (output != null) {
+			flush();
+			if (buffer.remaining() >= count) {
+				return;
+			}
+		} else if (!growable) {
+			throw new BufferOverflowException();
+		}
+		int capacity = Math.max(buffer.capacity() * 2, buffer.position()
+				+ count);
+		ByteBuffer newBuffer = ByteBuffer.allocate(capacity).order(
+				ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+		newBuffer.put(buffer);
+		buffer = newBuffer;
+	}
+
+	private void putBytes(byte[] data) throws IOException {
+		if (output != null && data.length > buffer.capacity()) {
+			// Too big to be buffered: write it as is
+			flush();
+			output.write(data);
+			return;
+		}
+		ensure(data.length);
+		buffer.put(data);
+	}
+
+	private void putBytes(ByteBuffer data) throws IOException {
+		if (output != null && data.remaining() > buffer.capacity()) {
+			flush();
+			if (data.hasArray()) {
+				output.write(data.array(), data.arrayOffset()
+						+ data.position(), data.remaining());
+				return;
+			}
+			// Copy through the buffer, one chunk at a time
+			while (data.hasRemaining()) {
+				ByteBuffer chunk = data.duplicate();
+				chunk.limit(chunk.position()
+						+ Math.min(chunk.remaining(), buffer.remaining()));
+				buffer.put(chunk);
+				data.position(chunk.position());
+				flush();
+			}
+			return;
+		}
+		ensure(data.remaining());
+		buffer.put(data);
+	}
+
+	/**
+	 * Serialize a value
+	 *
+	 * @param variant value to serialize
+	 * @throws IOException on IO error or if the variant cannot be serialized
+	 */
+	public void write(Variant variant) throws IOException {
+		writeValue(variant);
+		if (target != null) {
+			target.position(buffer.position());
+		}
+	}
+
+	private void writeValue(Variant variant) throws IOException {
+		switch (variant.type()) {
+		case NULL:
+			ensure(1);
+			buffer.put(Variant.BCON_TOKEN_NULL);
+			break;
+		case BOOL:
+			ensure(1);
+			buffer.put(variant.booleanValue() ? Variant.BCON_TOKEN_TRUE
+					: Variant.BCON_TOKEN_FALSE);
+			break;
+		case BYTE:
+			ensure(2);
+			buffer.put(Variant.BCON_TOKEN_BYTE);
+			buffer.put(variant.byteValue());
+			break;
+		case SHORT:
+			ensure(3);
+			buffer.put(Variant.BCON_TOKEN_INT16);
+			buffer.putShort(variant.shortValue());
+			break;
+		case USHORT:
+			ensure(3);
+			buffer.put(Variant.BCON_TOKEN_UINT16);
+			buffer.putShort(variant.shortValue());
+			break;
+		case INT:
+			ensure(5);
+			buffer.put(Variant.BCON_TOKEN_INT32);
+			buffer.putInt(variant.intValue());
+			break;
+		case UINT:
+			ensure(5);
+			buffer.put(Variant.BCON_TOKEN_UINT32);
+			buffer.putInt(variant.intValue());
+			break;
+		case LONG:
+			ensure(9);
+			buffer.put(Variant.BCON_TOKEN_INT64);
+			buffer.putLong(variant.longValue());
+			break;
+		case ULONG:
+			ensure(9);
+			buffer.put(Variant.BCON_TOKEN_UINT64);
+			buffer.putLong(variant.longValue());
+			break;
+		case DOUBLE:
+			ensure(9);
+			buffer.put(Variant.BCON_TOKEN_DOUBLE);
+			buffer.putDouble(variant.doubleValue());
+			break;
+		case DATETIME:
+			ensure(9);
+			buffer.put(Variant.BCON_TOKEN_DATETIME);
+			buffer.putLong(variant.longValue());
+			break;
+		case MAP:
+			ensure(1);
+			buffer.put(Variant.BCON_TOKEN_MAP);
+			Iterator<Entry<String, Variant>> it = variant.toMap().readIterator();
+			while (it.hasNext()) {
+				Entry<String, Variant> entry = it.next();
+				writeValue(entry.getValue());
+				writeKey(entry.getKey());
+			}
+			ensure(1);
+			buffer.put(Variant.BCON_TOKEN_END);
+			break;
+		case LIST:
+			ensure(1);
+			buffer.put(Variant.BCON_TOKEN_LIST);
+			Iterator<Variant> elts = variant.toList().readIterator();
+			while (elts.hasNext()) {
+				writeValue(elts.next());
+			}
+			ensure(1);
+			buffer.put(Variant.BCON_TOKEN_END);
+			break;
+		case STRING: {
+			if (variant instanceof VariantStringSlice) {
+				ByteBuffer slice = ((VariantStringSlice) variant).slice();
+				writeSize(Variant.BCON_TOKEN_STRING6,
+						Variant.BCON_TOKEN_STRING12,
+						Variant.BCON_TOKEN_STRING20,
+						Variant.BCON_TOKEN_STRING36, slice.remaining());
+				putBytes(slice);
+				break;
+			}
+			String value = variant.toString();
+			int len = value.length();
+			if (isASCII(value) && len < buffer.capacity()) {
+				writeSize(Variant.BCON_TOKEN_STRING6,
+						Variant.BCON_TOKEN_STRING12,
+						Variant.BCON_TOKEN_STRING20,
+						Variant.BCON_TOKEN_STRING36, len);
+				ensure(len);
+				for (int i = 0; i < len; i++) {
+					buffer.put((byte) value.charAt(i));
+				}
+			} else {
+				byte[] data = value.getBytes(StandardCharsets.UTF_8);
+				writeSize(Variant.BCON_TOKEN_STRING6,
+						Variant.BCON_TOKEN_STRING12,
+						Variant.BCON_TOKEN_STRING20,
+						Variant.BCON_TOKEN_STRING36, data.length);
+				putBytes(data);
+			}
+			break;
+		}
+		case BYTEARRAY: {
+			if (variant instanceof VariantByteArraySlice) {
+				ByteBuffer slice = ((VariantByteArraySlice) variant).slice();
+				writeSize(Variant.BCON_TOKEN_DATA6, Variant.BCON_TOKEN_DATA12,
+						Variant.BCON_TOKEN_DATA20, Variant.BCON_TOKEN_DATA36,
+						slice.remaining());
+				putBytes(slice);
+				break;
+			}
+			byte[] data = variant.toByteArray();
+			writeSize(Variant.BCON_TOKEN_DATA6, Variant.BCON_TOKEN_DATA12,
+					Variant.BCON_TOKEN_DATA20, Variant.BCON_TOKEN_DATA36,
+					data.length);
+			putBytes(data);
+			break;
+		}
+		default:
+			throw new SerializerException("Fatal: Variant type not managed.");
+		}
+	}
+
+	private static boolean isASCII(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write a string or byte array token holding its length
+	 */
+	private void writeSize(byte token6, byte token12, byte token20,
+			byte token36, int len) throws IOException {
+		ensure(4);
+		if (len < 0x40) {
+			buffer.put((byte) (token6 | len));
+		} else if (len < 0x1000) {
+			buffer.put((byte) (token12 | (len & 0x0F)));
+			buffer.put((byte) (len >> 4));
+		} else if (len < 0x100000) {
+			buffer.put((byte) (token20 | (len & 0x0F)));
+			buffer.put((byte) (len >> 4));
+			buffer.put((byte) (len >> 12));
+		} else if (len < MAX_LENGTH) {
+			buffer.put((byte) (token36 | (len & 0x0F)));
+			buffer.put((byte) (len >> 4));
+			buffer.put((byte) (len >> 12));
+			buffer.put((byte) (len >> 20));
+		} else {
+			throw new SerializerException("Fatal: too big "
+					+ (token6 == Variant.BCON_TOKEN_STRING6 ? "String"
+							: "byte array") + " (length=" + len + ")");
+		}
+	}
+
+	private void writeKey(String key) throws IOException {
+		int len = key.length();
+		if (isASCII(key) && len < buffer.capacity()) {
+			ensure(len + 1);
+			for (int i = 0; i < len; i++) {
+				buffer.put((byte) key.charAt(i));
+			}
+		} else {
+			putBytes(key.getBytes(StandardCharsets.UTF_8));
+			ensure(1);
+		}
+		buffer.put((byte) 0);
+	}
+}
@@ -0,0 +1,327 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * Single pass BSON serializer.
+ *
+ * Documents are written in one buffer: the int32 length of each document and
+ * string is reserved, then back-patched once its content is written, so the
+ * nested documents are never copied.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class BSONWriter {
+
+	private static final int DEFAULT_CAPACITY = 512;
+
+	private ByteBuffer buffer;
+	private final ByteBuffer target;
+
+	/**
+	 * Position of the first written byte in the buffer
+	 */
+	private final int origin;
+	private final boolean growable;
+
+	/**
+	 * BSON writer constructor using an internal growable buffer
+	 */
+	public BSONWriter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * BSON writer constructor using an internal growable buffer
+	 *
+	 * @param capacity initial buffer capacity
+	 */
+	public BSONWriter(int capacity) {
+		buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+		target = null;
+		origin = 0;
+		growable = true;
+	}
+
+	/**
+	 * BSON writer constructor writing into a caller supplied buffer, from its
+	 * current position. A {@link BufferOverflowException} is thrown if the
+	 * buffer is too small.
+	 *
+	 * The bytes are written through a little endian view of the buffer, so
+	 * its byte order is left unchanged; its position is moved after each
+	 * document written.
+	 *
+	 * @param target output buffer
+	 */
+	public BSONWriter(ByteBuffer target) {
+		buffer = target.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		this.target = target;
+		origin = target.position();
+		growable = false;
+	}
+
+	/**
+	 * Get the output buffer
+	 *
+	 * @return the buffer, positioned after the last written byte
+	 */
+	public ByteBuffer buffer() {
+		return target != null ? target : buffer;
+	}
+
+	/**
+	 * Get the number of bytes written in the internal buffer
+	 *
+	 * @return a size in bytes
+	 */
+	public int size() {
+		return buffer.position() - origin;
+	}
+
+	/**
+	 * Discard the written bytes (the internal buffer is kept)
+	 */
+	public void reset() {
+		buffer.position(origin);
+		if (target != null) {
+			target.position(origin);
+		}
+	}
+
+	/**
+	 * Get a copy of the written bytes
+	 *
+	 * @return a byte array
+	 */
+	public byte[] toByteArray() {
+		byte[] ret = new byte[buffer.position() - origin];
+		ByteBuffer src = buffer.duplicate();
+		src.flip();
+		src.position(origin);
+		src.get(ret);
+		return ret;
+	}
+
+	/**
+	 * Write the serialized bytes into an output stream
+	 *
+	 * @param output output stream
+	 * @throws IOException on IO error
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		if (buffer.hasArray()) {
+			output.write(buffer.array(), buffer.arrayOffset() + origin,
+					buffer.position() - origin);
+		} else {
+			output.write(toByteArray());
+		}
+	}
+
+	/**
+	 * Serialize a document
+	 *
+	 * @param variant root map or list
+	 * @throws SerializerException if the variant cannot be serialized
+	 */
+	public void write(Variant variant) throws SerializerException {
+		switch (variant.type()) {
+		case MAP:
+		case LIST:
+			writeDocument(variant);
+			if (target != null) {
+				target.position(buffer.position());
+			}
+			break;
+		default:
+			throw new SerializerException("Fatal: Invalid document.");
+		}
+	}
+
+	private void ensure(int count) {
+		if (buffer.remaining() >= count) {
+			return;
+		}
+		if (!growable) {
+			throw new BufferOverflowException();
+		}
+		int capacity = Math.max(buffer.capacity() * 2, buffer.position()
+				+ count);
+		ByteBuffer newBuffer = ByteBuffer.allocate(capacity).order(
+				ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+		newBuffer.put(buffer);
+		buffer = newBuffer;
+	}
+
+	private void writeDocument(Variant variant) throws SerializerException {
+		if (variant instanceof VariantBSONMap
+				&& !((VariantBSONMap) variant).isModified()) {
+			ByteBuffer raw = ((VariantBSONMap) variant).rawBuffer();
+			ensure(raw.remaining());
+			buffer.put(raw);
+			return;
+		}
+		ensure(4);
+		int start = buffer.position();
+		buffer.putInt(0);
+		if (variant.type() == Variant.Type.MAP) {
+			Iterator<Entry<String, Variant>> it = variant.toMap().readIterator();
+			while (it.hasNext()) {
+				Entry<String, Variant> entry = it.next();
+				writeElt(entry.getKey(), -1, entry.getValue());
+			}
+		} else {
+			int i = 0;
+			Iterator<Variant> it = variant.toList().readIterator();
+			while (it.hasNext()) {
+				writeElt(null, i++, it.next());
+			}
+		}
+		ensure(1);
+		buffer.put(Variant.BSON_TOKEN_END);
+		buffer.putInt(start, buffer.position() - start);
+	}
+
+	/**
+	 * Write the element type and key
+	 *
+	 * @param type BSON element type
+	 * @param key map key or null for a list element
+	 * @param index list element index
+	 */
+	private void writeHeader(byte type, String key, int index) {
+		ensure(1);
+		buffer.put(type);
+		if (key == null) {
+			int div = 1;
+			int digits = 1;
+			while (index / div >= 10) {
+				div *= 10;
+				digits++;
+			}
+			ensure(digits);
+			for (; div > 0; div /= 10) {
+				buffer.put((byte) ('0' + (index / div) % 10));
+			}
+		} else {
+			writeUTF8(key);
+		}
+		ensure(1);
+		buffer.put((byte) 0);
+	}
+
+	/**
+	 * Write a string encoded in UTF-8, without terminator
+	 */
+	private void writeUTF8(String value) {
+		int len = value.length();
+		ensure(len);
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80) {
+				// Non ASCII string: encode the remaining part at once
+				byte[] data = value.substring(i).getBytes(
+						StandardCharsets.UTF_8);
+				ensure(data.length);
+				buffer.put(data);
+				return;
+			}
+			buffer.put((byte) c);
+		}
+	}
+
+	private void writeElt(String key, int index, Variant variant)
+			throws SerializerException {
+		switch (variant.type()) {
+		case NULL:
+			writeHeader(Variant.BSON_TOKEN_NULL, key, index);
+			break;
+		case BOOL:
+			writeHeader(Variant.BSON_TOKEN_BOOL, key, index);
+			ensure(1);
+			buffer.put(variant.booleanValue() ? Variant.BSON_TOKEN_TRUE
+					: Variant.BSON_TOKEN_FALSE);
+			break;
+		case BYTE:
+		case SHORT:
+		case USHORT:
+		case UINT:
+		case INT:
+			writeHeader(Variant.BSON_TOKEN_INT32, key, index);
+			ensure(4);
+			buffer.putInt(variant.intValue());
+			break;
+		case ULONG:
+		case LONG:
+			writeHeader(Variant.BSON_TOKEN_INT64, key, index);
+			ensure(8);
+			buffer.putLong(variant.longValue());
+			break;
+		case DOUBLE:
+			writeHeader(Variant.BSON_TOKEN_DOUBLE, key, index);
+			ensure(8);
+			buffer.putDouble(variant.doubleValue());
+			break;
+		case DATETIME:
+			writeHeader(Variant.BSON_TOKEN_DATETIME, key, index);
+			ensure(8);
+			buffer.putLong(variant.longValue());
+			break;
+		case MAP:
+			writeHeader(Variant.BSON_TOKEN_MAP, key, index);
+			writeDocument(variant);
+			break;
+		case LIST:
+			writeHeader(Variant.BSON_TOKEN_LIST, key, index);
+			writeDocument(variant);
+			break;
+		case STRING: {
+			writeHeader(Variant.BSON_TOKEN_STRING, key, index);
+			ensure(4);
+			int start = buffer.position();
+			buffer.putInt(0);
+			writeUTF8(variant.toString());
+			ensure(1);
+			buffer.put((byte) 0);
+			buffer.putInt(start, buffer.position() - start - 4);
+			break;
+		}
+		case BYTEARRAY: {
+			byte[] data = variant.toByteArray();
+			writeHeader(Variant.BSON_TOKEN_DATA, key, index);
+			ensure(5 + data.length);
+			buffer.putInt(data.length);
+			buffer.put(Variant.BSON_TOKEN_GENERIC);
+			buffer.put(data);
+			break;
+		}
+		default:
+			throw new SerializerException("Fatal: Variant type not managed.");
+		}
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map storage for small objects: keys and values are held in two parallel
+ * arrays and looked up by a linear scan, in insertion order. Above
+ * {@link #MAX_SIZE} entries, the content is moved into a HashMap used from
+ * then on; the views stay valid.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+class CompactMap extends AbstractMap<String, Variant> {
+
+	/**
+	 * Maximum number of entries held in the arrays
+	 */
+	static final int MAX_SIZE = 12;
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	private String[] keys;
+	private Variant[] values;
+	private int size;
+	private HashMap<String, Variant> hash;
+	private int modCount;
+	private EntrySet entrySet;
+
+	CompactMap() {
+		keys = new String[INITIAL_CAPACITY];
+		values = new Variant[INITIAL_CAPACITY];
+	}
+
+	CompactMap(Map<? extends String, ? extends Variant> m) {
+		int capacity = Math.max(INITIAL_CAPACITY,
+				Math.min(m.size(), MAX_SIZE));
+		keys = new String[capacity];
+		values = new Variant[capacity];
+		putAll(m);
+	}
+
+	private int indexOf(Object key) {
+		String[] keys = this.keys;
+		if (key == null) {
+			for (int i = 0; i < size; i++) {
+				if (keys[i] == null) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		for (int i = 0; i < size; i++) {
+			String k = keys[i];
+			if (k == key || key.equals(k)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int size() {
+		return hash != null ? hash.size() : size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return hash != null ? hash.containsKey(key) : indexOf(key) >= 0;
+	}
+
+	@Override
+	public Variant get(Object key) {
+		if (hash != null) {
+			return hash.get(key);
+		}
+		int i = indexOf(key);
+		return i < 0 ? null : values[i];
+	}
+
+	@Override
+	public Variant put(String key, Variant value) {
+		if (hash != null) {
+			return hash.put(key, value);
+		}
+		int i = indexOf(key);
+		if (i >= 0) {
+			Variant ret = values[i];
+			values[i] = value;
+			return ret;
+		}
+		modCount++;
+		if (size == keys.length) {
+			if (size >= MAX_SIZE) {
+				hash = new HashMap<>(size * 4);
+				for (i = 0; i < size; i++) {
+					hash.put(keys[i], values[i]);
+				}
+				keys = null;
+				values = null;
+				size = 0;
+				return hash.put(key, value);
+			}
+			int capacity = Math.min(size * 2, MAX_SIZE);
+			keys = Arrays.copyOf(keys, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		keys[size] = key;
+		values[size++] = value;
+		return null;
+	}
+
+	@Override
+	public Variant remove(Object key) {
+		if (hash != null) {
+			return hash.remove(key);
+		}
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		Variant ret = values[i];
+		removeAt(i);
+		return ret;
+	}
+
+	private void removeAt(int i) {
+		modCount++;
+		int n = size - i - 1;
+		System.arraycopy(keys, i + 1, keys, i, n);
+		System.arraycopy(values, i + 1, values, i, n);
+		size--;
+		keys[size] = null;
+		values[size] = null;
+	}
+
+	@Override
+	public void clear() {
+		if (hash != null) {
+			hash.clear();
+			return;
+		}
+		modCount++;
+		Arrays.fill(keys, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Variant>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new EntrySet();
+		}
+		return entrySet;
+	}
+
+	private class EntrySet extends AbstractSet<Map.Entry<String, Variant>> {
+
+		@Override
+		public Iterator<Map.Entry<String, Variant>> iterator() {
+			if (hash != null) {
+				return hash.entrySet().iterator();
+			}
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size() {
+			return CompactMap.this.size();
+		}
+
+		@Override
+		public void clear() {
+			CompactMap.this.clear();
+		}
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, Variant>> {
+
+		private int next;
+		private int last = -1;
+		private int expectedModCount = modCount;
+
+		@Override
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		@Override
+		public Map.Entry<String, Variant> next() {
+			if (modCount != expectedModCount || hash != null) {
+				throw new ConcurrentModificationException();
+			}
+			if (next >= size) {
+				throw new NoSuchElementException();
+			}
+			last = next++;
+			return new Entry(last);
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			if (modCount != expectedModCount || hash != null) {
+				throw new ConcurrentModificationException();
+			}
+			removeAt(last);
+			next = last;
+			last = -1;
+			expectedModCount = modCount;
+		}
+	}
+
+	private class Entry implements Map.Entry<String, Variant> {
+
+		private final int index;
+		private final String key;
+
+		Entry(int index) {
+			this.index = index;
+			this.key = keys[index];
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * Get the current index of the entry, which moves when a previous
+		 * entry is removed
+		 */
+		private int slot() {
+			return index < size && keys[index] == key ? index : indexOf(key);
+		}
+
+		@Override
+		public Variant getValue() {
+			if (hash != null) {
+				return hash.get(key);
+			}
+			int i = slot();
+			return i < 0 ? null : values[i];
+		}
+
+		@Override
+		public Variant setValue(Variant value) {
+			if (hash != null) {
+				return hash.put(key, value);
+			}
+			int i = slot();
+			if (i < 0) {
+				throw new IllegalStateException("Entry removed");
+			}
+			Variant ret = values[i];
+			values[i] = value;
+			return ret;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			Variant value = getValue();
+			return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+					&& (value == null ? e.getValue() == null : value.equals(e
+							.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			Variant value = getValue();
+			return (key == null ? 0 : key.hashCode())
+					^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + getValue();
+		}
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.util.TimeZone;
+
+/**
+ * Thread safe date time formatter and parser for a time zone, using the
+ * {@link VariantDateTime} text format: "yyyy-MM-dd HH:mm:ss" where the hour
+ * is padded with a space instead of a zero (parsed times may also have a
+ * ".SSS" milliseconds part).
+ *
+ * The date fields are computed arithmetically from the epoch milliseconds in
+ * the proleptic Gregorian calendar: no Calendar instance and no lock are
+ * used. The zone is only asked for its offset.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public final class DateTimeFormat {
+
+	private static final long MS_PER_DAY = 86400000L;
+
+	/**
+	 * Time after a transition at which the offset following it is read,
+	 * larger than any daylight saving shift
+	 */
+	private static final long TRANSITION_WINDOW = 6 * 3600000L;
+
+	/**
+	 * Maximum length of a formatted date time
+	 */
+	static final int MAX_LENGTH = 32;
+
+	private static volatile DateTimeFormat defaultFormat = new DateTimeFormat(
+			TimeZone.getTimeZone("Europe/Paris"));
+
+	private final TimeZone zone;
+
+	/**
+	 * Formatter constructor
+	 *
+	 * @param zone time zone used to format and parse (copied)
+	 */
+	public DateTimeFormat(TimeZone zone) {
+		this.zone = (TimeZone) zone.clone();
+	}
+
+	/**
+	 * Get the formatter used by {@link VariantDateTime} (Europe/Paris zone
+	 * unless changed)
+	 *
+	 * @return the default formatter
+	 */
+	public static DateTimeFormat getDefault() {
+		return defaultFormat;
+	}
+
+	/**
+	 * Set the formatter used by {@link VariantDateTime}
+	 *
+	 * @param format new default formatter
+	 */
+	public static void setDefault(DateTimeFormat format) {
+		if (format == null) {
+			throw new IllegalArgumentException("format argument cannot be null");
+		}
+		defaultFormat = format;
+	}
+
+	/**
+	 * Get the time zone
+	 *
+	 * @return a copy of the zone
+	 */
+	public TimeZone getZone() {
+		return (TimeZone) zone.clone();
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+	}
+
+	/**
+	 * Get the number of days from 1970-01-01 (see
+	 * http://howardhinnant.github.io/date_algorithms.html)
+	 *
+	 * @param year year
+	 * @param month month from 1 to 12
+	 * @param day day of month from 1
+	 */
+	private static long epochDay(long year, int month, int day) {
+		if (month <= 2) {
+			year--;
+		}
+		long era = floorDiv(year, 400);
+		long yoe = year - era * 400;
+		long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	/**
+	 * Get the local time of an UTC time
+	 */
+	private long toLocal(long millis) {
+		return millis + zone.getOffset(millis);
+	}
+
+	/**
+	 * Get the UTC time of a local time, resolved the way a Calendar does: a
+	 * local time skipped by a transition takes the offset in effect before
+	 * it, a local time repeated by a transition takes the offset in effect
+	 * after it. Both cases amount to reading the offset at the local time
+	 * minus the offset following the nearest transition.
+	 */
+	private long toUTC(long local) {
+		long approx = local - zone.getOffset(local - zone.getOffset(local));
+		int after = zone.getOffset(approx + TRANSITION_WINDOW);
+		return local - zone.getOffset(local - after);
+	}
+
+	/**
+	 * Format a time
+	 *
+	 * @param millis time in milliseconds from UNIX epoch
+	 * @param buf output (at least {@link #MAX_LENGTH} chars from off)
+	 * @param off output offset
+	 * @return the offset following the last written char
+	 */
+	int format(long millis, char[] buf, int off) {
+		long local = toLocal(millis);
+		long days = floorDiv(local, MS_PER_DAY);
+		int secs = (int) ((local - days * MS_PER_DAY) / 1000);
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+		if (year < 0) {
+			buf[off++] = '-';
+			year = -year;
+		}
+		int start = off;
+		do {
+			buf[off++] = (char) ('0' + year % 10);
+			year /= 10;
+		} while (year != 0);
+		for (int i = start, j = off - 1; i < j; i++, j--) {
+			char c = buf[i];
+			buf[i] = buf[j];
+			buf[j] = c;
+		}
+		buf[off++] = '-';
+		off = put2(buf, off, month, '0');
+		buf[off++] = '-';
+		off = put2(buf, off, day, '0');
+		buf[off++] = ' ';
+		off = put2(buf, off, secs / 3600, ' ');
+		buf[off++] = ':';
+		off = put2(buf, off, secs / 60 % 60, '0');
+		buf[off++] = ':';
+		return put2(buf, off, secs % 60, '0');
+	}
+
+	private static int put2(char[] buf, int off, int value, char pad) {
+		buf[off++] = value < 10 ? pad : (char) ('0' + value / 10);
+		buf[off++] = (char) ('0' + value % 10);
+		return off;
+	}
+
+	/**
+	 * Format a time
+	 *
+	 * @param millis time in milliseconds from UNIX epoch
+	 * @return a String
+	 */
+	public String format(long millis) {
+		char[] buf = new char[MAX_LENGTH];
+		return new String(buf, 0, format(millis, buf, 0));
+	}
+
+	/**
+	 * Format a time into a builder
+	 *
+	 * @param millis time in milliseconds from UNIX epoch
+	 * @param builder output
+	 */
+	public void format(long millis, StringBuilder builder) {
+		char[] buf = new char[MAX_LENGTH];
+		builder.append(buf, 0, format(millis, buf, 0));
+	}
+
+	/**
+	 * Get the time of a local date. Fields out of their range are carried
+	 * to the next ones (as a lenient Calendar does).
+	 *
+	 * @param year year
+	 * @param month month from 0 (January) to 11
+	 * @param day day of month from 1
+	 * @param hour hour of day
+	 * @param minute minute
+	 * @param second second
+	 * @param millisecond millisecond
+	 * @return time in milliseconds from UNIX epoch
+	 */
+	public long toMillis(int year, int month, int day, int hour, int minute,
+			int second, int millisecond) {
+		long y = year + floorDiv(month, 12);
+		int m = (int) (month - floorDiv(month, 12) * 12) + 1;
+		long local = (epochDay(y, m, 1) + day - 1) * MS_PER_DAY + hour
+				* 3600000L + minute * 60000L + second * 1000L + millisecond;
+		return toUTC(local);
+	}
+
+	/**
+	 * Parse a date time formatted by this class, optionally followed by a
+	 * ".SSS" milliseconds part
+	 *
+	 * @param text text to parse
+	 * @return time in milliseconds from UNIX epoch
+	 * @throws IllegalArgumentException if the text is not a valid date time
+	 */
+	public long parse(CharSequence text) {
+		Cursor c = new Cursor(text);
+		boolean negative = c.accept('-');
+		long year = c.number(1, 10);
+		c.expect('-');
+		int month = (int) c.number(2, 2);
+		c.expect('-');
+		int day = (int) c.number(2, 2);
+		c.expect(' ');
+		while (c.accept(' ')) {
+		}
+		int hour = (int) c.number(1, 2);
+		c.expect(':');
+		int minute = (int) c.number(2, 2);
+		c.expect(':');
+		int second = (int) c.number(2, 2);
+		int millisecond = 0;
+		if (c.accept('.')) {
+			millisecond = (int) c.number(3, 3);
+		}
+		if (c.pos != text.length() || month < 1 || month > 12 || day < 1
+				|| day > 31 || hour > 23 || minute > 59 || second > 60) {
+			throw c.error();
+		}
+		if (negative) {
+			year = -year;
+		}
+		long local = epochDay(year, month, day) * MS_PER_DAY + hour * 3600000L
+				+ minute * 60000L + second * 1000L + millisecond;
+		return toUTC(local);
+	}
+
+	private static final class Cursor {
+		final CharSequence text;
+		int pos;
+
+		Cursor(CharSequence text) {
+			this.text = text;
+		}
+
+		boolean accept(char c) {
+			if (pos < text.length() && text.charAt(pos) == c) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		void expect(char c) {
+			if (!accept(c)) {
+				throw error();
+			}
+		}
+
+		long number(int min, int max) {
+			long ret = 0;
+			int start = pos;
+			while (pos < text.length() && pos - start < max) {
+				char c = text.charAt(pos);
+				if (c < '0' || c > '9') {
+					break;
+				}
+				ret = ret * 10 + c - '0';
+				pos++;
+			}
+			if (pos - start < min) {
+				throw error();
+			}
+			return ret;
+		}
+
+		IllegalArgumentException error() {
+			return new IllegalArgumentException("Invalid date time \"" + text
+					+ "\" at offset " + pos);
+		}
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.math.BigInteger;
+
+/**
+ * Allocation free double formatter giving the shortest decimal which parses
+ * back to the same value (Schubfach algorithm by R. Giulietti), and decimal
+ * to double converter (Eisel-Lemire algorithm, as in the fast_float
+ * library).
+ *
+ * The layout is the one of {@link Double#toString(double)}: plain notation
+ * from 10^-3 included to 10^7 excluded with at least one fractional digit,
+ * otherwise "d.dddE[-]n". Only the digits may differ, Double.toString being
+ * sometimes longer than needed before Java 19.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+final class DoubleFormat {
+
+	/**
+	 * Maximum length of a formatted double ("-d.ddddddddddddddddE-nnn")
+	 */
+	static final int MAX_LENGTH = 24;
+
+	private static final int P = 53;
+	private static final int Q_MIN = -1074;
+	private static final long C_MIN = 1L << (P - 1);
+	private static final long C_TINY = 3;
+	private static final long T_MASK = C_MIN - 1;
+	private static final long MASK_63 = Long.MAX_VALUE;
+
+	/**
+	 * Range of the decimal exponents of the g table
+	 */
+	private static final int G_MIN = -292;
+	private static final int G_MAX = 324;
+
+	/**
+	 * 126 bits approximation g of each power of ten 10^e, split into 63 bits
+	 * halves: g - 1 = floor(10^e 2^-r) with r = floor(log2(10^e)) - 125
+	 */
+	private static final long[] G = new long[2 * (G_MAX - G_MIN + 1)];
+
+	static {
+		BigInteger mask = BigInteger.valueOf(MASK_63);
+		for (int e = G_MIN; e <= G_MAX; e++) {
+			int r = flog2pow10(e) - 125;
+			BigInteger g;
+			if (e >= 0) {
+				BigInteger pow = BigInteger.TEN.pow(e);
+				g = r >= 0 ? pow.shiftRight(r) : pow.shiftLeft(-r);
+			} else {
+				g = BigInteger.ONE.shiftLeft(-r).divide(BigInteger.TEN.pow(-e));
+			}
+			g = g.add(BigInteger.ONE);
+			int i = 2 * (e - G_MIN);
+			G[i] = g.shiftRight(63).longValue();
+			G[i + 1] = g.and(mask).longValue();
+		}
+	}
+
+	/**
+	 * Range of the decimal exponents of the 5^e table
+	 */
+	private static final int POW5_MIN = -342;
+	private static final int POW5_MAX = 308;
+
+	/**
+	 * 128 bits truncated mantissa of each power of five 5^e (rounded up for
+	 * the negative exponents), split into high and low 64 bits
+	 */
+	private static final long[] POW5 = new long[2 * (POW5_MAX - POW5_MIN + 1)];
+
+	/**
+	 * Powers of ten exactly representable as doubles
+	 */
+	private static final double[] POW10 = new double[23];
+
+	static {
+		BigInteger max = BigInteger.ONE.shiftLeft(128);
+		BigInteger half = BigInteger.ONE.shiftLeft(127);
+		BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+		for (int e = POW5_MIN; e <= POW5_MAX; e++) {
+			BigInteger c;
+			if (e < 0) {
+				BigInteger pow = BigInteger.valueOf(5).pow(-e);
+				int z = pow.subtract(BigInteger.ONE).bitLength();
+				int b = e >= -27 ? z + 127 : 2 * z + 128;
+				c = BigInteger.ONE.shiftLeft(b).divide(pow).add(BigInteger.ONE);
+			} else {
+				c = BigInteger.valueOf(5).pow(e);
+				if (c.compareTo(half) < 0) {
+					c = c.shiftLeft(128 - c.bitLength());
+				}
+			}
+			if (c.compareTo(max) >= 0) {
+				c = c.shiftRight(c.bitLength() - 128);
+			}
+			int i = 2 * (e - POW5_MIN);
+			POW5[i] = c.shiftRight(64).longValue();
+			POW5[i + 1] = c.and(mask).longValue();
+		}
+		double pow = 1;
+		for (int e = 0; e < POW10.length; e++) {
+			POW10[e] = pow;
+			pow *= 10;
+		}
+	}
+
+	private DoubleFormat() {
+	}
+
+	/**
+	 * Format a finite double
+	 *
+	 * @param value double to format
+	 * @param buf output (at least {@link #MAX_LENGTH} chars from off)
+	 * @param off offset of the first char
+	 * @return the offset following the last char
+	 */
+	static int format(double value, char[] buf, int off) {
+		long bits = Double.doubleToRawLongBits(value);
+		long t = bits & T_MASK;
+		int bq = (int) (bits >>> (P - 1)) & 0x7FF;
+		if (bits < 0) {
+			buf[off++] = '-';
+		}
+		if (bq != 0) {
+			int mq = -Q_MIN + 1 - bq;
+			long c = C_MIN | t;
+			if (mq > 0 && mq < P) {
+				// Fast path for the integers
+				long f = c >> mq;
+				if (f << mq == c) {
+					return toChars(f, 0, buf, off);
+				}
+			}
+			return toDecimal(-mq, c, 0, buf, off);
+		}
+		if (t != 0) {
+			// Subnormal: the tiny ones get an extra digit of precision
+			return t < C_TINY ? toDecimal(Q_MIN, 10 * t, -1, buf, off)
+					: toDecimal(Q_MIN, t, 0, buf, off);
+		}
+		buf[off++] = '0';
+		buf[off++] = '.';
+		buf[off++] = '0';
+		return off;
+	}
+
+	/**
+	 * Compute the shortest decimal in the rounding interval of c 2^q
+	 */
+	private static int toDecimal(int q, long c, int dk, char[] buf, int off) {
+		int out = (int) c & 1;
+		long cb = c << 2;
+		long cbr = cb + 2;
+		long cbl;
+		int k;
+		if (c != C_MIN | q == Q_MIN) {
+			cbl = cb - 2;
+			k = flog10pow2(q);
+		} else {
+			// The interval is asymmetric at the powers of two
+			cbl = cb - 1;
+			k = flog10threeQuartersPow2(q);
+		}
+		int h = q + flog2pow10(-k) + 2;
+		int i = 2 * (-k - G_MIN);
+		long g1 = G[i];
+		long g0 = G[i + 1];
+		long vb = rop(g1, g0, cb << h);
+		long vbl = rop(g1, g0, cbl << h);
+		long vbr = rop(g1, g0, cbr << h);
+		long s = vb >> 2;
+		if (s >= 100) {
+			// Try a decimal with one digit less
+			long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+			long tp10 = sp10 + 10;
+			boolean upin = vbl + out <= sp10 << 2;
+			boolean wpin = (tp10 << 2) + out <= vbr;
+			if (upin != wpin) {
+				return toChars(upin ? sp10 : tp10, k, buf, off);
+			}
+		}
+		long t = s + 1;
+		boolean uin = vbl + out <= s << 2;
+		boolean win = (t << 2) + out <= vbr;
+		if (uin != win) {
+			return toChars(uin ? s : t, k + dk, buf, off);
+		}
+		// Both in the interval: the closest one, the even one on tie
+		long cmp = vb - (s + t << 1);
+		return toChars(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk,
+				buf, off);
+	}
+
+	/**
+	 * Round to odd of g cp 2^-127
+	 */
+	private static long rop(long g1, long g0, long cp) {
+		long x1 = multiplyHigh(g0, cp);
+		long y0 = g1 * cp;
+		long y1 = multiplyHigh(g1, cp);
+		long z = (y0 >>> 1) + x1;
+		long vbp = y1 + (z >>> 63);
+		return vbp | (z & MASK_63) + MASK_63 >>> 63;
+	}
+
+	/**
+	 * High 64 bits of the 128 bits product of two longs
+	 */
+	static long multiplyHigh(long x, long y) {
+		long x1 = x >> 32;
+		long x2 = x & 0xFFFFFFFFL;
+		long y1 = y >> 32;
+		long y2 = y & 0xFFFFFFFFL;
+		long z2 = x2 * y2;
+		long t = x1 * y2 + (z2 >>> 32);
+		long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+		long z0 = t >> 32;
+		return x1 * y1 + z0 + (z1 >> 32);
+	}
+
+	/**
+	 * floor(log10(2^e))
+	 */
+	private static int flog10pow2(int e) {
+		return (int) (e * 661971961083L >> 41);
+	}
+
+	/**
+	 * floor(log10(3/4 2^e))
+	 */
+	private static int flog10threeQuartersPow2(int e) {
+		return (int) (e * 661971961083L + -274743187321L >> 41);
+	}
+
+	/**
+	 * floor(log2(10^e))
+	 */
+	private static int flog2pow10(int e) {
+		return (int) (e * 913124641741L >> 38);
+	}
+
+	/**
+	 * Write the decimal f 10^e
+	 */
+	private static int toChars(long f, int e, char[] buf, int off) {
+		// Digits of f without the trailing zeros, right aligned in the
+		// output (after the sign) to be moved once the layout is known
+		while (f % 10 == 0) {
+			f /= 10;
+			e++;
+		}
+		int end = off + MAX_LENGTH - 1;
+		int pos = end;
+		while (f >= 100) {
+			int r = (int) (f % 100);
+			f /= 100;
+			buf[--pos] = (char) ('0' + r % 10);
+			buf[--pos] = (char) ('0' + r / 10);
+		}
+		if (f >= 10) {
+			buf[--pos] = (char) ('0' + f % 10);
+			f /= 10;
+		}
+		buf[--pos] = (char) ('0' + f);
+		int len = end - pos;
+		// Exponent of the value written 0.d1d2...dn 10^exp
+		int exp = e + len;
+		if (exp > 0 && exp <= 7) {
+			if (len <= exp) {
+				System.arraycopy(buf, pos, buf, off, len);
+				off += len;
+				for (int i = len; i < exp; i++) {
+					buf[off++] = '0';
+				}
+				buf[off++] = '.';
+				buf[off++] = '0';
+			} else {
+				System.arraycopy(buf, pos, buf, off, exp);
+				off += exp;
+				buf[off++] = '.';
+				System.arraycopy(buf, pos + exp, buf, off, len - exp);
+				off += len - exp;
+			}
+			return off;
+		}
+		if (exp > -3 && exp <= 0) {
+			buf[off++] = '0';
+			buf[off++] = '.';
+			for (int i = exp; i < 0; i++) {
+				buf[off++] = '0';
+			}
+			System.arraycopy(buf, pos, buf, off, len);
+			return off + len;
+		}
+		buf[off++] = buf[pos];
+		buf[off++] = '.';
+		if (len == 1) {
+			buf[off++] = '0';
+		} else {
+			System.arraycopy(buf, pos + 1, buf, off, len - 1);
+			off += len - 1;
+		}
+		buf[off++] = 'E';
+		int n = exp - 1;
+		if (n < 0) {
+			buf[off++] = '-';
+			n = -n;
+		}
+		if (n >= 100) {
+			buf[off++] = (char) ('0' + n / 100);
+			n %= 100;
+			buf[off++] = (char) ('0' + n / 10);
+		} else if (n >= 10) {
+			buf[off++] = (char) ('0' + n / 10);
+		}
+		buf[off++] = (char) ('0' + n % 10);
+		return off;
+	}
+
+	/**
+	 * Get the double nearest to the decimal w 10^q
+	 *
+	 * @param w decimal significand (unsigned)
+	 * @param q decimal exponent
+	 * @param negative sign
+	 * @return the double value or NaN if it cannot be decided without the
+	 *         other digits of the decimal (halfway and some near halfway
+	 *         cases): the caller must use {@link Double#parseDouble(String)}
+	 */
+	static double toDouble(long w, int q, boolean negative) {
+		if (w == 0 || q < POW5_MIN) {
+			return negative ? -0.0 : 0.0;
+		}
+		if (q > POW5_MAX) {
+			return negative ? Double.NEGATIVE_INFINITY
+					: Double.POSITIVE_INFINITY;
+		}
+		if (q >= -22 && q <= 22 && w >= 0 && w <= 1L << 53) {
+			// Exact operands: a single correctly rounded operation
+			double value = w;
+			value = q < 0 ? value / POW10[-q] : value * POW10[q];
+			return negative ? -value : value;
+		}
+		int lz = Long.numberOfLeadingZeros(w);
+		w <<= lz;
+		// 55 most significant bits of the product w 5^q
+		int i = 2 * (q - POW5_MIN);
+		long high = unsignedMultiplyHigh(w, POW5[i]);
+		long low = w * POW5[i];
+		if ((high & 0x1FF) == 0x1FF) {
+			long next = unsignedMultiplyHigh(w, POW5[i + 1]);
+			low += next;
+			if (unsignedLess(low, next)) {
+				high++;
+			}
+		}
+		if (low == -1L && (q < -27 || q > 55)) {
+			// The error of the truncated power may change the rounding
+			return Double.NaN;
+		}
+		int upper = (int) (high >>> 63);
+		long m = high >>> (upper + 9);
+		int power2 = ((217706 * q) >> 16) + 63 + upper - lz + 1023;
+		if (power2 <= 0) {
+			// Subnormal
+			if (-power2 + 1 >= 64) {
+				return negative ? -0.0 : 0.0;
+			}
+			m >>>= -power2 + 1;
+			m += m & 1;
+			m >>>= 1;
+			power2 = m < 1L << 52 ? 0 : 1;
+			return bitsToDouble(m, power2, negative);
+		}
+		if (unsignedLess(low, 2) && q >= -4 && q <= 23
+				&& (m & 3) == 1 && m << (upper + 9) == high) {
+			// Exactly halfway between two doubles: round to even
+			m &= ~1L;
+		}
+		m += m & 1;
+		m >>>= 1;
+		if (m >= 2L << 52) {
+			m = 1L << 52;
+			power2++;
+		}
+		if (power2 >= 0x7FF) {
+			return negative ? Double.NEGATIVE_INFINITY
+					: Double.POSITIVE_INFINITY;
+		}
+		return bitsToDouble(m, power2, negative);
+	}
+
+	private static double bitsToDouble(long m, int power2, boolean negative) {
+		long bits = (long) power2 << (P - 1) | m & T_MASK;
+		return Double.longBitsToDouble(negative ? bits | Long.MIN_VALUE : bits);
+	}
+
+	/**
+	 * High 64 bits of the 128 bits product of two unsigned longs
+	 */
+	private static long unsignedMultiplyHigh(long x, long y) {
+		return multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+	}
+
+	private static boolean unsignedLess(long a, long b) {
+		return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+	}
+}
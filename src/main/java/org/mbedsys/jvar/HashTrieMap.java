@@ -0,0 +1,592 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Persistent map storage: a hash array mapped trie whose nodes can be shared
+ * by several maps.
+ *
+ * Each map owns an {@link Edit} token. The nodes created with the current
+ * token are modified in place, the other ones are copied along the path to
+ * the modified entry. {@link #snapshot(boolean)} gives new tokens to both
+ * maps, so it takes a constant time and the two versions only copy what they
+ * change afterwards.
+ *
+ * In copy on write mode, the child maps and lists are shared too: when a
+ * node is copied, the ones it holds are replaced by their own copy on write
+ * clones, and {@link #get(Object)} copies the path to the requested child
+ * before returning it.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+class HashTrieMap extends AbstractMap<String, Variant> {
+
+	/**
+	 * Node ownership token
+	 */
+	static final class Edit {
+		final boolean cow;
+
+		Edit(boolean cow) {
+			this.cow = cow;
+		}
+
+		/**
+		 * Copy a node array owned by an other token (in copy on write mode,
+		 * the child maps and lists it holds are cloned)
+		 */
+		Object[] copy(Object[] array) {
+			Object[] ret = array.clone();
+			if (cow) {
+				for (int i = 0; i < ret.length; i++) {
+					if (isContainer(ret[i])) {
+						ret[i] = ((Variant) ret[i]).clone(Variant.COPY_ON_WRITE);
+					}
+				}
+			}
+			return ret;
+		}
+	}
+
+	private static final Object NULL_KEY = new Object();
+
+	private static final Object NOT_FOUND = new Object();
+
+	/**
+	 * Node holding key / value pairs in an array. A null key marks a pair
+	 * whose value is a sub node.
+	 */
+	private abstract static class Node {
+		final Edit edit;
+		Object[] array;
+
+		Node(Edit edit, Object[] array) {
+			this.edit = edit;
+			this.array = array;
+		}
+
+		abstract Object find(int shift, int hash, Object key);
+
+		abstract Node put(HashTrieMap map, int shift, int hash, Object key,
+				Variant value);
+
+		abstract Node remove(HashTrieMap map, int shift, int hash, Object key);
+
+		/**
+		 * Get the node with the path to a key owned by the map
+		 */
+		abstract Node own(HashTrieMap map, int shift, int hash);
+	}
+
+	private static final class BitmapNode extends Node {
+		int bitmap;
+
+		BitmapNode(Edit edit, int bitmap, Object[] array) {
+			super(edit, array);
+			this.bitmap = bitmap;
+		}
+
+		private BitmapNode editable(Edit e) {
+			return edit == e ? this : new BitmapNode(e, bitmap, e.copy(array));
+		}
+
+		@Override
+		Object find(int shift, int hash, Object key) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((bitmap & bit) == 0) {
+				return NOT_FOUND;
+			}
+			int idx = 2 * Integer.bitCount(bitmap & (bit - 1));
+			Object k = array[idx];
+			if (k == null) {
+				return ((Node) array[idx + 1]).find(shift + 5, hash, key);
+			}
+			return key.equals(k) ? array[idx + 1] : NOT_FOUND;
+		}
+
+		@Override
+		Node put(HashTrieMap map, int shift, int hash, Object key,
+				Variant value) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			int idx = 2 * Integer.bitCount(bitmap & (bit - 1));
+			if ((bitmap & bit) != 0) {
+				Object k = array[idx];
+				Object v = array[idx + 1];
+				if (k == null) {
+					Node n = ((Node) v).put(map, shift + 5, hash, key, value);
+					if (n == v) {
+						return this;
+					}
+					BitmapNode ret = editable(map.edit);
+					ret.array[idx + 1] = n;
+					return ret;
+				}
+				if (key.equals(k)) {
+					map.previous = (Variant) v;
+					if (v == value) {
+						return this;
+					}
+					BitmapNode ret = editable(map.edit);
+					ret.array[idx + 1] = value;
+					return ret;
+				}
+				map.size++;
+				BitmapNode ret = editable(map.edit);
+				Node sub = createNode(map.edit, shift + 5, k, ret.array[idx + 1],
+						hash(k), key, value, hash);
+				ret.array[idx] = null;
+				ret.array[idx + 1] = sub;
+				return ret;
+			}
+			map.size++;
+			BitmapNode ret = editable(map.edit);
+			Object[] a = new Object[array.length + 2];
+			System.arraycopy(ret.array, 0, a, 0, idx);
+			a[idx] = key;
+			a[idx + 1] = value;
+			System.arraycopy(ret.array, idx, a, idx + 2, array.length - idx);
+			ret.array = a;
+			ret.bitmap |= bit;
+			return ret;
+		}
+
+		@Override
+		Node remove(HashTrieMap map, int shift, int hash, Object key) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			int idx = 2 * Integer.bitCount(bitmap & (bit - 1));
+			Object k = array[idx];
+			Object v = array[idx + 1];
+			if (k == null) {
+				Node n = ((Node) v).remove(map, shift + 5, hash, key);
+				if (n == v) {
+					return this;
+				}
+				if (n != null) {
+					BitmapNode ret = editable(map.edit);
+					ret.array[idx + 1] = n;
+					return ret;
+				}
+			} else if (key.equals(k)) {
+				map.previous = (Variant) v;
+				map.size--;
+			} else {
+				return this;
+			}
+			if (bitmap == bit) {
+				return null;
+			}
+			BitmapNode ret = editable(map.edit);
+			Object[] a = new Object[array.length - 2];
+			System.arraycopy(ret.array, 0, a, 0, idx);
+			System.arraycopy(ret.array, idx + 2, a, idx, a.length - idx);
+			ret.array = a;
+			ret.bitmap ^= bit;
+			return ret;
+		}
+
+		@Override
+		Node own(HashTrieMap map, int shift, int hash) {
+			BitmapNode ret = editable(map.edit);
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((bitmap & bit) != 0) {
+				int idx = 2 * Integer.bitCount(bitmap & (bit - 1));
+				if (array[idx] == null) {
+					ret.array[idx + 1] = ((Node) array[idx + 1]).own(map,
+							shift + 5, hash);
+				}
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Node of the keys having the same hash code
+	 */
+	private static final class CollisionNode extends Node {
+		final int hash;
+
+		CollisionNode(Edit edit, int hash, Object[] array) {
+			super(edit, array);
+			this.hash = hash;
+		}
+
+		private CollisionNode editable(Edit e) {
+			return edit == e ? this : new CollisionNode(e, hash, e.copy(array));
+		}
+
+		private int indexOf(Object key) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (key.equals(array[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		Object find(int shift, int hash, Object key) {
+			int idx = indexOf(key);
+			return idx < 0 ? NOT_FOUND : array[idx + 1];
+		}
+
+		@Override
+		Node put(HashTrieMap map, int shift, int hash, Object key,
+				Variant value) {
+			if (hash != this.hash) {
+				return new BitmapNode(map.edit, 1 << ((this.hash >>> shift) & 31),
+						new Object[] { null, this }).put(map, shift, hash, key,
+						value);
+			}
+			int idx = indexOf(key);
+			if (idx >= 0) {
+				map.previous = (Variant) array[idx + 1];
+				if (array[idx + 1] == value) {
+					return this;
+				}
+				CollisionNode ret = editable(map.edit);
+				ret.array[idx + 1] = value;
+				return ret;
+			}
+			map.size++;
+			CollisionNode ret = editable(map.edit);
+			Object[] a = new Object[array.length + 2];
+			System.arraycopy(ret.array, 0, a, 0, array.length);
+			a[array.length] = key;
+			a[array.length + 1] = value;
+			ret.array = a;
+			return ret;
+		}
+
+		@Override
+		Node remove(HashTrieMap map, int shift, int hash, Object key) {
+			int idx = indexOf(key);
+			if (idx < 0) {
+				return this;
+			}
+			map.previous = (Variant) array[idx + 1];
+			map.size--;
+			if (array.length == 2) {
+				return null;
+			}
+			CollisionNode ret = editable(map.edit);
+			Object[] a = new Object[array.length - 2];
+			System.arraycopy(ret.array, 0, a, 0, idx);
+			System.arraycopy(ret.array, idx + 2, a, idx, a.length - idx);
+			ret.array = a;
+			return ret;
+		}
+
+		@Override
+		Node own(HashTrieMap map, int shift, int hash) {
+			return editable(map.edit);
+		}
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static Node createNode(Edit edit, int shift, Object k1, Object v1,
+			int h1, Object k2, Object v2, int h2) {
+		if (h1 == h2) {
+			return new CollisionNode(edit, h1, new Object[] { k1, v1, k2, v2 });
+		}
+		int b1 = (h1 >>> shift) & 31;
+		int b2 = (h2 >>> shift) & 31;
+		if (b1 == b2) {
+			return new BitmapNode(edit, 1 << b1, new Object[] { null,
+					createNode(edit, shift + 5, k1, v1, h1, k2, v2, h2) });
+		}
+		return new BitmapNode(edit, (1 << b1) | (1 << b2),
+				b1 < b2 ? new Object[] { k1, v1, k2, v2 } : new Object[] { k2,
+						v2, k1, v1 });
+	}
+
+	private Edit edit = new Edit(false);
+	private Node root;
+	private int size;
+	private int modCount;
+
+	/**
+	 * Value replaced or removed by the last node operation
+	 */
+	private Variant previous;
+
+	private Set<Entry<String, Variant>> entrySet;
+
+	HashTrieMap() {
+	}
+
+	HashTrieMap(Map<? extends String, ? extends Variant> m) {
+		putAll(m);
+	}
+
+	/**
+	 * Get a copy sharing all the nodes with this map (constant time)
+	 *
+	 * @param cow if true, the child maps and lists are shared too and both
+	 *            maps switch to copy on write mode (kept by the later
+	 *            snapshots)
+	 * @return a new map
+	 */
+	HashTrieMap snapshot(boolean cow) {
+		cow |= edit.cow;
+		edit = new Edit(cow);
+		HashTrieMap ret = new HashTrieMap();
+		ret.edit = new Edit(cow);
+		ret.root = root;
+		ret.size = size;
+		return ret;
+	}
+
+	static boolean isContainer(Object value) {
+		return value instanceof VariantMap || value instanceof VariantList;
+	}
+
+	private static Object mask(Object key) {
+		return key == null ? NULL_KEY : key;
+	}
+
+	private Object find(Object key) {
+		if (root == null || !(key == null || key instanceof String)) {
+			return NOT_FOUND;
+		}
+		Object k = mask(key);
+		return root.find(0, hash(k), k);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return find(key) != NOT_FOUND;
+	}
+
+	@Override
+	public Variant get(Object key) {
+		Object ret = find(key);
+		if (ret == NOT_FOUND) {
+			return null;
+		}
+		if (edit.cow && isContainer(ret)) {
+			// Copy the path to get a child owned by this map
+			Object k = mask(key);
+			int hash = hash(k);
+			root = root.own(this, 0, hash);
+			ret = root.find(0, hash, k);
+		}
+		return (Variant) ret;
+	}
+
+	@Override
+	public Variant put(String key, Variant value) {
+		if (edit.cow) {
+			// The previous value is returned: it must not be shared
+			get(key);
+		}
+		Object k = mask(key);
+		int hash = hash(k);
+		previous = null;
+		int oldSize = size;
+		if (root == null) {
+			root = new BitmapNode(edit, 0, new Object[0]);
+		}
+		root = root.put(this, 0, hash, k, value);
+		if (size != oldSize) {
+			modCount++;
+		}
+		Variant ret = previous;
+		previous = null;
+		return ret;
+	}
+
+	@Override
+	public Variant remove(Object key) {
+		if (root == null || !(key == null || key instanceof String)) {
+			return null;
+		}
+		if (edit.cow) {
+			get(key);
+		}
+		Object k = mask(key);
+		previous = null;
+		int oldSize = size;
+		root = root.remove(this, 0, hash(k), k);
+		if (size != oldSize) {
+			modCount++;
+		}
+		Variant ret = previous;
+		previous = null;
+		return ret;
+	}
+
+	@Override
+	public void clear() {
+		modCount++;
+		root = null;
+		size = 0;
+	}
+
+	@Override
+	public Set<Entry<String, Variant>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Entry<String, Variant>>() {
+				@Override
+				public Iterator<Entry<String, Variant>> iterator() {
+					return new EntryIterator(true);
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public void clear() {
+					HashTrieMap.this.clear();
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	private final class TrieEntry extends SimpleEntry<String, Variant> {
+		private static final long serialVersionUID = 1L;
+
+		TrieEntry(String key, Variant value) {
+			super(key, value);
+		}
+
+		@Override
+		public Variant setValue(Variant value) {
+			put(getKey(), value);
+			return super.setValue(value);
+		}
+	}
+
+	/**
+	 * Iterate over the entries without copying the shared child maps and
+	 * lists (which must not be modified)
+	 *
+	 * @return an iterator
+	 */
+	Iterator<Entry<String, Variant>> readIterator() {
+		return new EntryIterator(false);
+	}
+
+	/**
+	 * Depth first iterator. The node arrays are replaced (not modified) when
+	 * an entry is added or removed, so the iterator can keep walking the
+	 * arrays it has already reached after {@link Iterator#remove()}.
+	 */
+	private final class EntryIterator implements
+			Iterator<Entry<String, Variant>> {
+		private final Object[][] arrays = new Object[9][];
+		private final int[] indexes = new int[9];
+		private int depth;
+		private Object nextKey;
+		private Object nextValue;
+		private Object lastKey = NOT_FOUND;
+		private int expectedModCount = modCount;
+		private final boolean own;
+
+		EntryIterator(boolean own) {
+			this.own = own;
+			if (root == null) {
+				depth = -1;
+			} else {
+				arrays[0] = root.array;
+			}
+			advance();
+		}
+
+		private void advance() {
+			while (depth >= 0) {
+				Object[] a = arrays[depth];
+				int i = indexes[depth];
+				if (i >= a.length) {
+					depth--;
+					continue;
+				}
+				indexes[depth] = i + 2;
+				if (a[i] == null) {
+					depth++;
+					arrays[depth] = ((Node) a[i + 1]).array;
+					indexes[depth] = 0;
+					continue;
+				}
+				nextKey = a[i];
+				nextValue = a[i + 1];
+				return;
+			}
+			nextKey = NOT_FOUND;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextKey != NOT_FOUND;
+		}
+
+		@Override
+		public Entry<String, Variant> next() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (nextKey == NOT_FOUND) {
+				throw new NoSuchElementException();
+			}
+			lastKey = nextKey;
+			String key = nextKey == NULL_KEY ? null : (String) nextKey;
+			Variant value = (Variant) nextValue;
+			if (own && edit.cow && isContainer(value)) {
+				value = get(key);
+			}
+			Entry<String, Variant> ret = new TrieEntry(key, value);
+			advance();
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == NOT_FOUND) {
+				throw new IllegalStateException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			HashTrieMap.this.remove(lastKey == NULL_KEY ? null : lastKey);
+			lastKey = NOT_FOUND;
+			expectedModCount = modCount;
+		}
+	}
+}
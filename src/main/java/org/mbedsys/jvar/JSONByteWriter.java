@@ -0,0 +1,285 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * JSON generator encoding directly in UTF-8 into a byte array, without
+ * intermediate character stream.
+ *
+ * The output is either an internal growable array, an output stream or a
+ * {@link ByteBuffer} (both written each time the internal array is full and
+ * on {@link #flush()}).
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class JSONByteWriter extends JSONWriter {
+
+	private static final int DEFAULT_CAPACITY = 8192;
+
+	private OutputStream output;
+	private ByteBuffer target;
+	private byte[] buffer;
+	private int pos;
+
+	/**
+	 * JSON writer constructor using an internal growable array
+	 */
+	public JSONByteWriter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * JSON writer constructor using an internal growable array
+	 *
+	 * @param capacity initial array capacity
+	 */
+	public JSONByteWriter(int capacity) {
+		output = null;
+		target = null;
+		buffer = new byte[Math.max(capacity, 16)];
+	}
+
+	/**
+	 * JSON writer constructor writing into an output stream.
+	 * {@link #flush()} must be called once the documents are written.
+	 *
+	 * @param output output stream
+	 */
+	public JSONByteWriter(OutputStream output) {
+		this.output = output;
+		target = null;
+		buffer = new byte[DEFAULT_CAPACITY];
+	}
+
+	/**
+	 * JSON writer constructor writing into a buffer from its current
+	 * position. {@link #flush()} must be called once the documents are
+	 * written. A {@link java.nio.BufferOverflowException} is thrown if the
+	 * buffer is too small.
+	 *
+	 * @param target output buffer
+	 */
+	public JSONByteWriter(ByteBuffer target) {
+		output = null;
+		this.target = target;
+		buffer = new byte[DEFAULT_CAPACITY];
+	}
+
+	/**
+	 * Get the number of bytes held by the internal array
+	 *
+	 * @return a size in bytes
+	 */
+	public int size() {
+		return pos;
+	}
+
+	/**
+	 * Discard the bytes held by the internal array
+	 */
+	public void reset() {
+		pos = 0;
+	}
+
+	/**
+	 * Write into an other output stream, keeping the internal array (the
+	 * pending bytes are discarded)
+	 *
+	 * @param output output stream or null to write into the internal array
+	 */
+	public void reset(OutputStream output) {
+		this.output = output;
+		target = null;
+		pos = 0;
+	}
+
+	/**
+	 * Replace the internal array by a new one of the default capacity if it
+	 * has grown above, once the pending bytes are written or discarded
+	 */
+	void trim() {
+		if (buffer.length > DEFAULT_CAPACITY) {
+			buffer = new byte[DEFAULT_CAPACITY];
+		}
+	}
+
+	/**
+	 * Get a copy of the bytes held by the internal array
+	 *
+	 * @return a byte array
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, pos);
+	}
+
+	/**
+	 * Write the bytes held by the internal array into an output stream
+	 *
+	 * @param output output stream
+	 * @throws IOException on IO error
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		output.write(buffer, 0, pos);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (output != null) {
+			output.write(buffer, 0, pos);
+			pos = 0;
+		} else if (target != null) {
+			target.put(buffer, 0, pos);
+			pos = 0;
+		}
+	}
+
+	private void ensure(int count) throws IOException {
+		if (buffer.length - pos >= count) {
+			return;
+		}
+		if (output != null || target != null) {
+			flush();
+			if (buffer.length >= count) {
+				return;
+			}
+		}
+		buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, pos
+				+ count));
+	}
+
+	@Override
+	JSONWriter fork() {
+		return new JSONByteWriter();
+	}
+
+	@Override
+	void append(JSONWriter part) throws IOException {
+		JSONByteWriter bytes = (JSONByteWriter) part;
+		if (output != null && bytes.pos > buffer.length) {
+			flush();
+			output.write(bytes.buffer, 0, bytes.pos);
+			return;
+		}
+		ensure(bytes.pos);
+		System.arraycopy(bytes.buffer, 0, buffer, pos, bytes.pos);
+		pos += bytes.pos;
+	}
+
+	@Override
+	void put(char c) throws IOException {
+		if (pos == buffer.length) {
+			ensure(1);
+		}
+		buffer[pos++] = (byte) c;
+	}
+
+	@Override
+	void put(String ascii) throws IOException {
+		int len = ascii.length();
+		ensure(len);
+		for (int i = 0; i < len; i++) {
+			buffer[pos++] = (byte) ascii.charAt(i);
+		}
+	}
+
+	@Override
+	void put(char[] ascii, int off, int len) throws IOException {
+		ensure(len);
+		for (int i = 0; i < len; i++) {
+			buffer[pos++] = (byte) ascii[off + i];
+		}
+	}
+
+	@Override
+	void putSpaces(int count) throws IOException {
+		ensure(count);
+		Arrays.fill(buffer, pos, pos + count, (byte) ' ');
+		pos += count;
+	}
+
+	@Override
+	void putString(String value) throws IOException {
+		int len = value.length();
+		// Worst case: 6 bytes per char (\\u00XX), 3 bytes per UTF-16 unit
+		// otherwise, plus the quotes
+		if (buffer.length - pos < len * 6 + 2) {
+			ensure(Math.min(len * 6 + 2, DEFAULT_CAPACITY));
+		}
+		byte[] buf = buffer;
+		int p = pos;
+		buf[p++] = '"';
+		for (int i = 0; i < len; i++) {
+			if (buf.length - p < 7) {
+				pos = p;
+				ensure(7);
+				buf = buffer;
+				p = pos;
+			}
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				byte esc = ESCAPES[c];
+				if (esc == 0) {
+					buf[p++] = (byte) c;
+				} else if (esc == 'u') {
+					buf[p++] = '\\';
+					buf[p++] = 'u';
+					buf[p++] = '0';
+					buf[p++] = '0';
+					buf[p++] = HEX[c >> 4];
+					buf[p++] = HEX[c & 0xF];
+				} else {
+					buf[p++] = '\\';
+					buf[p++] = esc;
+				}
+			} else if (c < 0x800) {
+				buf[p++] = (byte) (0xC0 | (c >> 6));
+				buf[p++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				int cp;
+				if (Character.isHighSurrogate(c) && i + 1 < len
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					cp = Character.toCodePoint(c, value.charAt(++i));
+					buf[p++] = (byte) (0xF0 | (cp >> 18));
+					buf[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[p++] = (byte) (0x80 | (cp & 0x3F));
+				} else {
+					// Unpaired surrogate (same replacement as String.getBytes)
+					buf[p++] = '?';
+				}
+			} else {
+				buf[p++] = (byte) (0xE0 | (c >> 12));
+				buf[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[p++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		if (p == buf.length) {
+			pos = p;
+			ensure(1);
+			buf = buffer;
+			p = pos;
+		}
+		buf[p++] = '"';
+		pos = p;
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * JSON generator writing characters into a {@link StringBuilder} or any
+ * {@link Appendable}. A StringBuilder is written directly, other outputs are
+ * written by blocks through an internal buffer.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class JSONCharWriter extends JSONWriter {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private static final char[] SPACES = new char[64];
+
+	static {
+		Arrays.fill(SPACES, ' ');
+	}
+
+	private final StringBuilder builder;
+	private final Appendable output;
+	private final char[] buffer;
+	private int pos;
+
+	/**
+	 * JSON writer constructor
+	 *
+	 * @param builder output string builder
+	 */
+	public JSONCharWriter(StringBuilder builder) {
+		this.builder = builder;
+		output = null;
+		buffer = null;
+	}
+
+	/**
+	 * JSON writer constructor. {@link #flush()} must be called once the
+	 * documents are written.
+	 *
+	 * @param output output character stream
+	 */
+	public JSONCharWriter(Appendable output) {
+		if (output instanceof StringBuilder) {
+			builder = (StringBuilder) output;
+			this.output = null;
+			buffer = null;
+		} else {
+			builder = null;
+			this.output = output;
+			buffer = new char[BUFFER_SIZE];
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (pos != 0) {
+			if (output instanceof Writer) {
+				((Writer) output).write(buffer, 0, pos);
+			} else {
+				output.append(CharBuffer.wrap(buffer, 0, pos));
+			}
+			pos = 0;
+		}
+	}
+
+	@Override
+	JSONWriter fork() {
+		return new JSONCharWriter(new StringBuilder());
+	}
+
+	@Override
+	void append(JSONWriter part) throws IOException {
+		StringBuilder chars = ((JSONCharWriter) part).builder;
+		if (builder != null) {
+			builder.append(chars);
+			return;
+		}
+		flush();
+		output.append(chars);
+	}
+
+	@Override
+	void put(char c) throws IOException {
+		if (builder != null) {
+			builder.append(c);
+			return;
+		}
+		if (pos == buffer.length) {
+			flush();
+		}
+		buffer[pos++] = c;
+	}
+
+	@Override
+	void put(String ascii) throws IOException {
+		if (builder != null) {
+			builder.append(ascii);
+			return;
+		}
+		int len = ascii.length();
+		if (buffer.length - pos < len) {
+			flush();
+			if (len > buffer.length) {
+				output.append(ascii);
+				return;
+			}
+		}
+		ascii.getChars(0, len, buffer, pos);
+		pos += len;
+	}
+
+	@Override
+	void put(char[] ascii, int off, int len) throws IOException {
+		if (builder != null) {
+			builder.append(ascii, off, len);
+			return;
+		}
+		if (buffer.length - pos < len) {
+			flush();
+		}
+		System.arraycopy(ascii, off, buffer, pos, len);
+		pos += len;
+	}
+
+	@Override
+	void putSpaces(int count) throws IOException {
+		while (count > 0) {
+			int n = Math.min(count, SPACES.length);
+			if (builder != null) {
+				builder.append(SPACES, 0, n);
+			} else {
+				if (buffer.length - pos < n) {
+					flush();
+				}
+				System.arraycopy(SPACES, 0, buffer, pos, n);
+				pos += n;
+			}
+			count -= n;
+		}
+	}
+
+	@Override
+	void putString(String value) throws IOException {
+		put('"');
+		int len = value.length();
+		int start = 0;
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80 || ESCAPES[c] == 0) {
+				continue;
+			}
+			// Write the unescaped part at once
+			append(value, start, i);
+			start = i + 1;
+			byte esc = ESCAPES[c];
+			put('\\');
+			if (esc == 'u') {
+				put('u');
+				put('0');
+				put('0');
+				put((char) HEX[c >> 4]);
+				put((char) HEX[c & 0xF]);
+			} else {
+				put((char) esc);
+			}
+		}
+		append(value, start, len);
+		put('"');
+	}
+
+	private void append(String value, int start, int end) throws IOException {
+		if (start == end) {
+			return;
+		}
+		if (builder != null) {
+			builder.append(value, start, end);
+			return;
+		}
+		int len = end - start;
+		if (buffer.length - pos < len) {
+			flush();
+			if (len > buffer.length) {
+				output.append(value, start, end);
+				return;
+			}
+		}
+		value.getChars(start, end, buffer, pos);
+		pos += len;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reusable JSON parsing and serialization context: the parser, the writers
+ * and their buffers are allocated once and reset for each message, which
+ * suits the small request/response documents.
+ *
+ * A context must be used by one thread at a time. A {@link Pool} can share
+ * contexts between threads.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class JSONContext {
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * Maximum capacity of the string builder kept by a released context
+	 */
+	private static final int BUILDER_CAPACITY = 8192;
+
+	private final JSONTokenizer tokenizer = new JSONTokenizer();
+	private final JSONParser parser = new JSONParser(tokenizer);
+	private final JSONByteWriter byteWriter = new JSONByteWriter();
+	private final StringBuilder builder = new StringBuilder();
+	private final JSONCharWriter charWriter = new JSONCharWriter(builder);
+
+	/**
+	 * Set the table used to share the map key strings between the parsed
+	 * documents
+	 *
+	 * @param keyTable key table or null to disable the key sharing
+	 */
+	public void setKeyTable(KeyTable keyTable) {
+		parser.setKeyTable(keyTable);
+	}
+
+	/**
+	 * Get the parser reading documents from a stream
+	 *
+	 * @param input data stream
+	 * @return the parser of this context, valid until the next reset
+	 */
+	public Variant.Parser reset(InputStream input) {
+		if (input == null) {
+			throw new IllegalArgumentException("input argument cannot be null");
+		}
+		tokenizer.reset(input);
+		return parser;
+	}
+
+	/**
+	 * Get the parser reading documents from a byte array
+	 *
+	 * @param data byte array (not copied nor modified)
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @return the parser of this context, valid until the next reset
+	 */
+	public Variant.Parser reset(byte[] data, int off, int len) {
+		tokenizer.reset(data, off, len);
+		return parser;
+	}
+
+	/**
+	 * Get the writer encoding documents into an output stream.
+	 * {@link JSONWriter#flush()} must be called once the documents are
+	 * written.
+	 *
+	 * @param output output stream
+	 * @return the writer of this context, valid until the next reset
+	 */
+	public JSONByteWriter reset(OutputStream output) {
+		if (output == null) {
+			throw new IllegalArgumentException("output argument cannot be null");
+		}
+		byteWriter.setPool(null);
+		byteWriter.reset(output);
+		return byteWriter;
+	}
+
+	/**
+	 * Parse the document held by a byte array
+	 *
+	 * @param data byte array
+	 * @return a map or a list
+	 * @throws IOException on parsing error
+	 */
+	public Variant parse(byte[] data) throws IOException {
+		return reset(data, 0, data.length).next();
+	}
+
+	/**
+	 * Serialize a map or a list in JSON format, encoded in UTF-8
+	 *
+	 * @param output output stream
+	 * @param variant root map or list
+	 * @param flags JSON_INDENT_MASK / FORMAT_JSON_COMPACT flags
+	 * @throws IOException on IO error
+	 */
+	public void serialize(OutputStream output, Variant variant, int flags)
+			throws IOException {
+		JSONByteWriter writer = reset(output);
+		writer.write(variant, flags);
+		writer.flush();
+	}
+
+	/**
+	 * Serialize a map or a list in JSON format into a byte array, encoded
+	 * in UTF-8
+	 *
+	 * @param variant root map or list
+	 * @param flags JSON_INDENT_MASK / FORMAT_JSON_COMPACT flags
+	 * @return a new byte array
+	 */
+	public byte[] toByteArray(Variant variant, int flags) {
+		byteWriter.setPool(null);
+		byteWriter.reset(null);
+		try {
+			byteWriter.write(variant, flags);
+		} catch (IOException e) {
+			// Not thrown by the internal array
+			throw new RuntimeException(e);
+		}
+		return byteWriter.toByteArray();
+	}
+
+	/**
+	 * Serialize a value of any type in JSON format
+	 *
+	 * @param variant value
+	 * @param flags JSON_INDENT_MASK / FORMAT_JSON_COMPACT flags
+	 * @return a JSON string
+	 */
+	public String toString(Variant variant, int flags) {
+		builder.setLength(0);
+		try {
+			charWriter.writeValue(variant, flags);
+		} catch (IOException e) {
+			// Not thrown by a StringBuilder
+			throw new RuntimeException(e);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Drop the references to the last input, output and documents, and the
+	 * buffers grown above their default size by a large document
+	 */
+	void clear() {
+		tokenizer.reset(EMPTY, 0, 0);
+		tokenizer.trim();
+		byteWriter.reset(null);
+		byteWriter.trim();
+		builder.setLength(0);
+		if (builder.capacity() > BUILDER_CAPACITY) {
+			builder.trimToSize();
+		}
+		parser.setKeyTable(null);
+	}
+
+	/**
+	 * Thread safe pool keeping a bounded number of released contexts
+	 */
+	public static class Pool {
+
+		private final ArrayBlockingQueue<JSONContext> contexts;
+
+		/**
+		 * Pool constructor
+		 *
+		 * @param capacity maximum number of contexts kept
+		 */
+		public Pool(int capacity) {
+			contexts = new ArrayBlockingQueue<>(capacity);
+		}
+
+		/**
+		 * Get a released context or a new one if the pool is empty
+		 *
+		 * @return a context to give back with {@link #release(JSONContext)}
+		 */
+		public JSONContext acquire() {
+			JSONContext ret = contexts.poll();
+			return ret != null ? ret : new JSONContext();
+		}
+
+		/**
+		 * Give back a context, which is dropped if the pool is full
+		 *
+		 * @param context context not used anymore by the caller
+		 */
+		public void release(JSONContext context) {
+			context.clear();
+			contexts.offer(context);
+		}
+
+		/**
+		 * Get the number of contexts kept
+		 *
+		 * @return a count
+		 */
+		public int size() {
+			return contexts.size();
+		}
+	}
+}
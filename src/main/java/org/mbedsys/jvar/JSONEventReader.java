@@ -0,0 +1,326 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pull style JSON reader: the stream is read event by event, without
+ * building the document tree. A sub tree can be either skipped or
+ * materialized as a Variant on demand.
+ *
+ * <pre>
+ * JSONEventReader reader = new JSONEventReader(input);
+ * while ((event = reader.next()) != null) {
+ *     if (event == Event.KEY &amp;&amp; reader.key().equals("id")) {
+ *         reader.next();
+ *         id = reader.longValue();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class JSONEventReader {
+
+	public enum Event {
+		START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY, VALUE
+	}
+
+	private static final int EXPECT_ROOT = 0;
+	private static final int EXPECT_KEY_OR_END = 1;
+	private static final int EXPECT_KEY = 2;
+	private static final int EXPECT_VALUE_OR_END = 3;
+	private static final int EXPECT_VALUE = 4;
+	private static final int EXPECT_SEP_OR_END = 5;
+
+	private final JSONTokenizer tokenizer;
+	private final JSONParser parser;
+
+	private boolean[] objects = new boolean[32];
+	private int depth;
+	private int state = EXPECT_ROOT;
+	private Event event;
+	private String key;
+
+	/**
+	 * Event reader constructor
+	 *
+	 * @param input data stream holding one or more JSON documents
+	 */
+	public JSONEventReader(InputStream input) {
+		tokenizer = new JSONTokenizer(input);
+		parser = new JSONParser(tokenizer);
+	}
+
+	/**
+	 * Read the next event
+	 *
+	 * @return the event or null at the end of the stream
+	 * @throws IOException on IO/parsing error
+	 */
+	public Event next() throws IOException {
+		int token = tokenizer.next();
+		switch (state) {
+		case EXPECT_ROOT:
+			switch (token) {
+			case JSONTocken.TEOF:
+				return event = null;
+			case JSONTocken.TOBJBEGIN:
+			case JSONTocken.TARRBEGIN:
+				return start(token);
+			default:
+				throw parser.unexpected(token, JSONTocken.TOBJBEGIN,
+						JSONTocken.TARRBEGIN);
+			}
+		case EXPECT_KEY_OR_END:
+			if (token == JSONTocken.TOBJEND) {
+				return end();
+			}
+			return key(token);
+		case EXPECT_KEY:
+			return key(token);
+		case EXPECT_VALUE_OR_END:
+			if (token == JSONTocken.TARREND) {
+				return end();
+			}
+			return value(token);
+		case EXPECT_VALUE:
+			return value(token);
+		default:
+			if (token == JSONTocken.TELEMENTSEP) {
+				state = objects[depth - 1] ? EXPECT_KEY : EXPECT_VALUE;
+				return next();
+			} else if (token == (objects[depth - 1] ? JSONTocken.TOBJEND
+					: JSONTocken.TARREND)) {
+				return end();
+			}
+			throw parser.unexpected(token, JSONTocken.TELEMENTSEP,
+					objects[depth - 1] ? JSONTocken.TOBJEND
+							: JSONTocken.TARREND);
+		}
+	}
+
+	/**
+	 * Read a map key followed by its separator
+	 */
+	private Event key(int token) throws IOException {
+		if (token != JSONTocken.TSTRING) {
+			throw parser.unexpected(token, JSONTocken.TSTRING);
+		}
+		key = tokenizer.stringValue();
+		token = tokenizer.next();
+		if (token != JSONTocken.TMEMBERSEP) {
+			throw parser.unexpected(token, JSONTocken.TMEMBERSEP);
+		}
+		state = EXPECT_VALUE;
+		return event = Event.KEY;
+	}
+
+	/**
+	 * Handle the first token of a value
+	 */
+	private Event value(int token) throws IOException {
+		switch (token) {
+		case JSONTocken.TOBJBEGIN:
+		case JSONTocken.TARRBEGIN:
+			return start(token);
+		case JSONTocken.TSTRING:
+		case JSONTocken.TVARIANT:
+			state = EXPECT_SEP_OR_END;
+			return event = Event.VALUE;
+		default:
+			throw parser.unexpected(token, JSONTocken.TVARIANT,
+					JSONTocken.TSTRING, JSONTocken.TOBJBEGIN,
+					JSONTocken.TARRBEGIN);
+		}
+	}
+
+	private Event start(int token) {
+		if (depth == objects.length) {
+			boolean[] newObjects = new boolean[depth * 2];
+			System.arraycopy(objects, 0, newObjects, 0, depth);
+			objects = newObjects;
+		}
+		boolean object = token == JSONTocken.TOBJBEGIN;
+		objects[depth++] = object;
+		state = object ? EXPECT_KEY_OR_END : EXPECT_VALUE_OR_END;
+		return event = object ? Event.START_OBJECT : Event.START_ARRAY;
+	}
+
+	private Event end() {
+		boolean object = objects[--depth];
+		state = depth == 0 ? EXPECT_ROOT : EXPECT_SEP_OR_END;
+		return event = object ? Event.END_OBJECT : Event.END_ARRAY;
+	}
+
+	/**
+	 * Get the last event returned by {@link #next()}
+	 *
+	 * @return an event
+	 */
+	public Event event() {
+		return event;
+	}
+
+	/**
+	 * Get the current nesting level (1 inside the root object or array)
+	 *
+	 * @return the depth
+	 */
+	public int depth() {
+		return depth;
+	}
+
+	/**
+	 * Get the last read object key
+	 *
+	 * @return the key
+	 */
+	public String key() {
+		return key;
+	}
+
+	/**
+	 * Check that the current event carries a value
+	 */
+	private void checkValue() {
+		if (event != Event.VALUE) {
+			throw new IllegalStateException("No value at event " + event);
+		}
+	}
+
+	/**
+	 * Get the type of the current VALUE event
+	 *
+	 * @return NULL, BOOL, LONG, DOUBLE or STRING
+	 * @throws IllegalStateException if the current event is not VALUE
+	 */
+	public Variant.Type valueType() {
+		checkValue();
+		return tokenizer.valueType();
+	}
+
+	public boolean booleanValue() {
+		checkValue();
+		return tokenizer.valueType() == Variant.Type.BOOL ? tokenizer
+				.booleanValue() : value().booleanValue();
+	}
+
+	public long longValue() {
+		checkValue();
+		switch (tokenizer.valueType()) {
+		case LONG:
+			return tokenizer.longValue();
+		case DOUBLE:
+			return (long) tokenizer.doubleValue();
+		default:
+			return value().longValue();
+		}
+	}
+
+	public int intValue() {
+		return (int) longValue();
+	}
+
+	public double doubleValue() {
+		checkValue();
+		switch (tokenizer.valueType()) {
+		case LONG:
+			return tokenizer.longValue();
+		case DOUBLE:
+			return tokenizer.doubleValue();
+		default:
+			return value().doubleValue();
+		}
+	}
+
+	/**
+	 * Get the current VALUE event as a String
+	 *
+	 * @return the string value or its textual representation
+	 * @throws IllegalStateException if the current event is not VALUE
+	 */
+	public String stringValue() {
+		checkValue();
+		return tokenizer.valueType() == Variant.Type.STRING ? tokenizer
+				.stringValue() : value().toString();
+	}
+
+	/**
+	 * Get the current VALUE event as a Variant
+	 *
+	 * @return a Variant
+	 * @throws IllegalStateException if the current event is not VALUE
+	 */
+	public Variant value() {
+		checkValue();
+		return tokenizer.variant();
+	}
+
+	/**
+	 * Skip the object or array just started. The matching END_OBJECT or
+	 * END_ARRAY event is consumed. No-op on other events.
+	 *
+	 * @throws IOException on IO/parsing error
+	 */
+	public void skipChildren() throws IOException {
+		if (event == Event.START_OBJECT || event == Event.START_ARRAY) {
+			tokenizer.skipContainer();
+			end();
+		}
+	}
+
+	/**
+	 * Skip the value following the current KEY event. The event stays KEY,
+	 * without value.
+	 *
+	 * @throws IOException on IO/parsing error
+	 */
+	public void skipValue() throws IOException {
+		if (event == Event.KEY && state == EXPECT_VALUE) {
+			tokenizer.skipValue();
+			state = EXPECT_SEP_OR_END;
+		}
+	}
+
+	/**
+	 * Materialize the object or array just started, or the current value.
+	 * The matching END_OBJECT or END_ARRAY event is consumed.
+	 *
+	 * @return a Variant
+	 * @throws IOException on IO/parsing error
+	 * @throws IllegalStateException if the current event carries no value
+	 */
+	public Variant readVariant() throws IOException {
+		Variant ret;
+		if (event == Event.START_OBJECT) {
+			ret = parser.parseObject();
+		} else if (event == Event.START_ARRAY) {
+			ret = parser.parseArray();
+		} else if (event == Event.KEY && state == EXPECT_VALUE) {
+			next();
+			return readVariant();
+		} else {
+			return value();
+		}
+		end();
+		return ret;
+	}
+}
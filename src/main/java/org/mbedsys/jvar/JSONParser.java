@@ -0,0 +1,185 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * JSON parser based on the byte level {@link JSONTokenizer}. Maps and lists
+ * are directly built from the tokenizer state, without intermediate token
+ * object.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+class JSONParser extends Variant.Parser {
+
+	private final JSONTokenizer tokenizer;
+	private PathProjection projection = PathProjection.ALL;
+
+	/**
+	 * JSON parser constructor
+	 *
+	 * @param input data stream
+	 */
+	public JSONParser(InputStream input) {
+		this(new JSONTokenizer(input));
+	}
+
+	/**
+	 * JSON parser constructor sharing an existing tokenizer
+	 *
+	 * @param tokenizer JSON tokenizer
+	 */
+	JSONParser(JSONTokenizer tokenizer) {
+		this.tokenizer = tokenizer;
+	}
+
+	/**
+	 * JSON parser constructor with path projection
+	 *
+	 * @param input data stream
+	 * @param projection map keys to keep
+	 */
+	JSONParser(InputStream input, PathProjection projection) {
+		this(input);
+		this.projection = projection;
+	}
+
+	@Override
+	public Variant next(boolean wait) throws IOException {
+		if (!wait && !tokenizer.ready()) {
+			return null;
+		}
+		int token = tokenizer.next();
+		switch (token) {
+		case JSONTocken.TEOF:
+			throw new EOFException();
+		case JSONTocken.TOBJBEGIN:
+			return parseObject(projection);
+		case JSONTocken.TARRBEGIN:
+			return parseArray(projection);
+		default:
+			throw unexpected(token, JSONTocken.TOBJBEGIN, JSONTocken.TARRBEGIN);
+		}
+	}
+
+	/**
+	 * Parse a value, applying a projection
+	 *
+	 * @param token first token of the value
+	 * @param node projection to apply
+	 * @return the value or null if dropped by the projection
+	 * @throws IOException on IO/parsing error
+	 */
+	private Variant parseValue(int token, PathProjection node)
+			throws IOException {
+		switch (token) {
+		case JSONTocken.TOBJBEGIN:
+			return parseObject(node);
+		case JSONTocken.TARRBEGIN:
+			return parseArray(node);
+		case JSONTocken.TSTRING:
+		case JSONTocken.TVARIANT:
+			return node == PathProjection.ALL ? tokenizer.variant() : null;
+		default:
+			throw unexpected(token, JSONTocken.TVARIANT, JSONTocken.TSTRING,
+					JSONTocken.TOBJBEGIN, JSONTocken.TARRBEGIN);
+		}
+	}
+
+	Variant parseObject() throws IOException {
+		return parseObject(PathProjection.ALL);
+	}
+
+	private Variant parseObject(PathProjection node) throws IOException {
+		VariantMap map = new VariantMap();
+		int token = tokenizer.nextKey(keyTable);
+		if (token == JSONTocken.TOBJEND) {
+			return map;
+		}
+		while (true) {
+			if (token != JSONTocken.TSTRING) {
+				throw unexpected(token, JSONTocken.TSTRING);
+			}
+			String key = tokenizer.stringValue();
+			token = tokenizer.next();
+			if (token != JSONTocken.TMEMBERSEP) {
+				throw unexpected(token, JSONTocken.TMEMBERSEP);
+			}
+			PathProjection child = node.child(key);
+			if (child == null) {
+				tokenizer.skipValue();
+			} else {
+				Variant value = parseValue(tokenizer.next(), child);
+				if (value != null) {
+					map.put(key, value);
+				}
+			}
+			token = tokenizer.next();
+			if (token == JSONTocken.TOBJEND) {
+				return map;
+			} else if (token != JSONTocken.TELEMENTSEP) {
+				throw unexpected(token, JSONTocken.TELEMENTSEP,
+						JSONTocken.TOBJEND);
+			}
+			token = tokenizer.nextKey(keyTable);
+		}
+	}
+
+	Variant parseArray() throws IOException {
+		return parseArray(PathProjection.ALL);
+	}
+
+	private Variant parseArray(PathProjection node) throws IOException {
+		VariantList list = new VariantList();
+		int token = tokenizer.next();
+		if (token == JSONTocken.TARREND) {
+			return list;
+		}
+		while (true) {
+			Variant value = parseValue(token, node);
+			if (value != null) {
+				list.add(value);
+			}
+			token = tokenizer.next();
+			if (token == JSONTocken.TARREND) {
+				return list;
+			} else if (token != JSONTocken.TELEMENTSEP) {
+				throw unexpected(token, JSONTocken.TELEMENTSEP,
+						JSONTocken.TARREND);
+			}
+			token = tokenizer.next();
+		}
+	}
+
+	ParserException unexpected(int token, int... expected) {
+		StringBuffer buffer = new StringBuffer("Unexpected ");
+		buffer.append(tokenizer.toString(token));
+		buffer.append(". ");
+		for (int i = 0; i < expected.length; i++) {
+			if (i != 0) {
+				buffer.append(i == expected.length - 1 ? " or " : ", ");
+			}
+			buffer.append(JSONTocken.toString(expected[i]));
+		}
+		buffer.append(" expected.");
+		return new ParserException(buffer.toString());
+	}
+}
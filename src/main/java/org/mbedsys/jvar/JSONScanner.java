@@ -303,6 +303,72 @@ class JSONScanner {
 	public boolean isEOFDone() {
 		return zzEOFDone;
 	}
+	
+	/**
+	 * Convert the matched number without intermediate String: the integers
+	 * of at most 18 digits and the decimals of at most 19 significant
+	 * digits are computed from the scanner buffer
+	 */
+	private Variant number(boolean decimal) {
+		char[] buf = zzBuffer;
+		int pos = zzStartRead;
+		int end = zzMarkedPos;
+		boolean negative = buf[pos] == '-';
+		if (negative) {
+			pos++;
+		}
+		long significand = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean exact = true;
+		boolean fraction = false;
+		for (; pos < end && buf[pos] != 'e'; pos++) {
+			char c = buf[pos];
+			if (c == '.') {
+				fraction = true;
+				continue;
+			}
+			if (digits < 19) {
+				significand = significand * 10 + (c - '0');
+				if (significand != 0) {
+					digits++;
+				}
+			} else {
+				exact = false;
+			}
+			if (fraction) {
+				scale--;
+			}
+		}
+		if (!decimal) {
+			if (digits <= 18) {
+				return VariantNumber.optimize(negative ? -significand
+						: significand);
+			}
+			return VariantNumber.optimize(Long.parseLong(yytext()));
+		}
+		if (pos < end) {
+			// Exponent
+			boolean negativeExponent = buf[++pos] == '-';
+			if (negativeExponent || buf[pos] == '+') {
+				pos++;
+			}
+			int exponent = 0;
+			for (; pos < end; pos++) {
+				if (exponent < 100000) {
+					exponent = exponent * 10 + buf[pos] - '0';
+				}
+			}
+			scale += negativeExponent ? -exponent : exponent;
+		}
+		if (exact) {
+			double value = DoubleFormat.toDouble(significand, scale, negative);
+			if (!Double.isNaN(value)) {
+				return new VariantDouble(value);
+			}
+		}
+		return new VariantDouble(Double.parseDouble(yytext()));
+	}
 
 
   /**
@@ -662,7 +728,7 @@ class JSONScanner {
           }
         case 26: break;
         case 3: 
-          { return new JSONTocken(JSONTocken.TVARIANT, VariantNumber.optimize(Long.parseLong(yytext())));
+          { return new JSONTocken(JSONTocken.TVARIANT, number(false));
           }
         case 27: break;
         case 4: 
@@ -734,7 +800,7 @@ class JSONScanner {
           }
         case 44: break;
         case 21: 
-          { return new JSONTocken(JSONTocken.TVARIANT, new VariantDouble(Double.parseDouble(yytext())));
+          { return new JSONTocken(JSONTocken.TVARIANT, number(true));
           }
         case 45: break;
         case 22: 
@@ -0,0 +1,690 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hand written JSON tokenizer working directly on UTF-8 bytes.
+ *
+ * Unlike {@link JSONScanner}, no token object is allocated: {@link #next()}
+ * returns the token identifier (see {@link JSONTocken} constants) and the
+ * token value is kept in the tokenizer until the next call.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+class JSONTokenizer {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int CHARS_SIZE = 256;
+
+	/**
+	 * Number scanning states
+	 */
+	private static final int NUM_START = 0;
+	private static final int NUM_SIGN = 1;
+	private static final int NUM_INTEGER = 2;
+	private static final int NUM_POINT = 3;
+	private static final int NUM_FRACTION = 4;
+	private static final int NUM_EXPONENT_MARK = 5;
+	private static final int NUM_EXPONENT_SIGN = 6;
+	private static final int NUM_EXPONENT = 7;
+
+	private InputStream input;
+	private byte[] buffer;
+
+	/**
+	 * Internal buffer of the stream mode, kept while reading a byte array
+	 */
+	private byte[] streamBuffer;
+	private int pos;
+	private int limit;
+	private boolean eof;
+
+	private char[] chars = new char[CHARS_SIZE];
+	private int charCount;
+
+	private Variant.Type valueType;
+	private long longValue;
+	private double doubleValue;
+	private String stringValue;
+
+	/**
+	 * Tokenizer constructor
+	 *
+	 * @param input data stream
+	 */
+	public JSONTokenizer(InputStream input) {
+		this.input = input;
+		this.buffer = new byte[BUFFER_SIZE];
+		streamBuffer = buffer;
+	}
+
+	/**
+	 * Tokenizer constructor for byte arrays given by {@link #reset}
+	 */
+	JSONTokenizer() {
+		eof = true;
+	}
+
+	/**
+	 * Read tokens from an other stream, reusing the internal buffer
+	 *
+	 * @param input data stream
+	 */
+	void reset(InputStream input) {
+		if (streamBuffer == null) {
+			streamBuffer = new byte[BUFFER_SIZE];
+		}
+		this.input = input;
+		buffer = streamBuffer;
+		pos = 0;
+		limit = 0;
+		eof = false;
+	}
+
+	/**
+	 * Read tokens from a byte array up to the given length (no input
+	 * stream)
+	 *
+	 * @param data byte array (not copied nor modified)
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 */
+	void reset(byte[] data, int off, int len) {
+		input = null;
+		buffer = data;
+		pos = off;
+		limit = off + len;
+		eof = true;
+	}
+
+	/**
+	 * Drop the buffers grown above their default size and the last string
+	 * value. Must be called after a reset to a byte array.
+	 */
+	void trim() {
+		if (streamBuffer != null && streamBuffer.length > BUFFER_SIZE) {
+			streamBuffer = null;
+		}
+		if (chars.length > CHARS_SIZE) {
+			chars = new char[CHARS_SIZE];
+		}
+		charCount = 0;
+		stringValue = null;
+	}
+
+	/**
+	 * Test if a non blank character is available without blocking
+	 *
+	 * @return true if a token can be read without blocking
+	 * @throws IOException on IO error
+	 */
+	public boolean ready() throws IOException {
+		while (true) {
+			while (pos < limit) {
+				if (!isSpace(buffer[pos])) {
+					return true;
+				}
+				pos++;
+			}
+			if (eof || input.available() <= 0) {
+				return false;
+			}
+			fill();
+		}
+	}
+
+	/**
+	 * Read the next token
+	 *
+	 * @return the token identifier
+	 * @throws IOException on IO error
+	 */
+	public int next() throws IOException {
+		int c = skipSpaces();
+		switch (c) {
+		case -1:
+			return JSONTocken.TEOF;
+		case '{':
+			pos++;
+			return JSONTocken.TOBJBEGIN;
+		case '}':
+			pos++;
+			return JSONTocken.TOBJEND;
+		case '[':
+			pos++;
+			return JSONTocken.TARRBEGIN;
+		case ']':
+			pos++;
+			return JSONTocken.TARREND;
+		case ',':
+			pos++;
+			return JSONTocken.TELEMENTSEP;
+		case ':':
+			pos++;
+			return JSONTocken.TMEMBERSEP;
+		case '"':
+			pos++;
+			stringValue = readString(null);
+			valueType = Variant.Type.STRING;
+			return JSONTocken.TSTRING;
+		case '-':
+		case '+':
+		case '0':
+		case '1':
+		case '2':
+		case '3':
+		case '4':
+		case '5':
+		case '6':
+		case '7':
+		case '8':
+		case '9':
+			return readNumber();
+		default:
+			return readKeyword();
+		}
+	}
+
+	/**
+	 * Get the type of the last TVARIANT or TSTRING token
+	 *
+	 * @return NULL, BOOL, LONG, DOUBLE or STRING
+	 */
+	public Variant.Type valueType() {
+		return valueType;
+	}
+
+	public boolean booleanValue() {
+		return longValue != 0;
+	}
+
+	public long longValue() {
+		return longValue;
+	}
+
+	public double doubleValue() {
+		return doubleValue;
+	}
+
+	public String stringValue() {
+		return stringValue;
+	}
+
+	/**
+	 * Build the variant corresponding to the last TVARIANT or TSTRING token
+	 *
+	 * @return a Variant
+	 */
+	public Variant variant() {
+		switch (valueType) {
+		case BOOL:
+			return longValue != 0 ? Variant.TRUE : Variant.FALSE;
+		case LONG:
+			return VariantNumber.optimize(longValue);
+		case DOUBLE:
+			return new VariantDouble(doubleValue);
+		case STRING:
+			return VariantString.valueOf(stringValue);
+		default:
+			return Variant.NULL;
+		}
+	}
+
+	/**
+	 * Read the next token, expected to be a map key: a string token is
+	 * looked up in the given key table
+	 *
+	 * @param keys table sharing the key strings or null
+	 * @return the token identifier
+	 * @throws IOException on IO error
+	 */
+	public int nextKey(KeyTable keys) throws IOException {
+		if (keys != null && skipSpaces() == '"') {
+			pos++;
+			stringValue = readString(keys);
+			valueType = Variant.Type.STRING;
+			return JSONTocken.TSTRING;
+		}
+		return next();
+	}
+
+	/**
+	 * Describe a token for error messages
+	 *
+	 * @param token token identifier
+	 * @return a String
+	 */
+	public String toString(int token) {
+		switch (token) {
+		case JSONTocken.TSTRING:
+			return JSONTocken.toString(token, stringValue);
+		case JSONTocken.TVARIANT:
+			return JSONTocken.toString(token, variant());
+		default:
+			return JSONTocken.toString(token);
+		}
+	}
+
+	/**
+	 * Skip the content of the object or array which has just been opened,
+	 * including the closing bracket. Strings are not decoded and the content
+	 * is not validated.
+	 *
+	 * @throws IOException on IO error
+	 */
+	public void skipContainer() throws IOException {
+		int depth = 1;
+		while (true) {
+			while (pos < limit) {
+				switch (buffer[pos++]) {
+				case '"':
+					skipString();
+					break;
+				case '{':
+				case '[':
+					depth++;
+					break;
+				case '}':
+				case ']':
+					if (--depth == 0) {
+						return;
+					}
+					break;
+				default:
+					break;
+				}
+			}
+			if (!fill()) {
+				throw new ParserException("Unexpected end of file");
+			}
+		}
+	}
+
+	/**
+	 * Skip the next value without building it
+	 *
+	 * @return the first token of the skipped value
+	 * @throws IOException on IO error
+	 */
+	public int skipValue() throws IOException {
+		switch (skipSpaces()) {
+		case '{':
+			pos++;
+			skipContainer();
+			return JSONTocken.TOBJBEGIN;
+		case '[':
+			pos++;
+			skipContainer();
+			return JSONTocken.TARRBEGIN;
+		case '"':
+			pos++;
+			skipString();
+			return JSONTocken.TSTRING;
+		default:
+			return next();
+		}
+	}
+
+	private void skipString() throws IOException {
+		while (true) {
+			int c = read();
+			if (c == '"') {
+				return;
+			} else if (c == '\\') {
+				read();
+			}
+		}
+	}
+
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private int skipSpaces() throws IOException {
+		while (true) {
+			while (pos < limit) {
+				byte c = buffer[pos];
+				if (!isSpace(c)) {
+					return c & 0xFF;
+				}
+				pos++;
+			}
+			if (!fill()) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Read more bytes from the input stream, keeping the unread ones
+	 *
+	 * @return false on end of stream
+	 * @throws IOException on IO error
+	 */
+	private boolean fill() throws IOException {
+		if (eof) {
+			return false;
+		}
+		if (pos > 0) {
+			limit -= pos;
+			System.arraycopy(buffer, pos, buffer, 0, limit);
+			pos = 0;
+		}
+		if (limit == buffer.length) {
+			byte[] newBuffer = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, newBuffer, 0, limit);
+			buffer = newBuffer;
+			streamBuffer = newBuffer;
+		}
+		int n = input.read(buffer, limit, buffer.length - limit);
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+
+	private int read() throws IOException {
+		if (pos == limit && !fill()) {
+			throw new ParserException("Unexpected end of file");
+		}
+		return buffer[pos++] & 0xFF;
+	}
+
+	private void appendChar(char c) {
+		if (charCount == chars.length) {
+			char[] newChars = new char[chars.length * 2];
+			System.arraycopy(chars, 0, newChars, 0, charCount);
+			chars = newChars;
+		}
+		chars[charCount++] = c;
+	}
+
+	private String readString(KeyTable keys) throws IOException {
+		// Fast path: ASCII string without escape sequence fully buffered
+		for (int i = pos; i < limit; i++) {
+			byte c = buffer[i];
+			if (c == '"') {
+				String ret = keys != null ? keys.intern(buffer, pos, i - pos)
+						: new String(buffer, pos, i - pos,
+								StandardCharsets.ISO_8859_1);
+				pos = i + 1;
+				return ret;
+			} else if (c == '\\' || c < 0) {
+				break;
+			}
+		}
+		charCount = 0;
+		while (true) {
+			int c = read();
+			if (c == '"') {
+				return new String(chars, 0, charCount);
+			} else if (c == '\\') {
+				readEscape();
+			} else if (c < 0x80) {
+				appendChar((char) c);
+			} else {
+				readUTF8(c);
+			}
+		}
+	}
+
+	private void readEscape() throws IOException {
+		int c = read();
+		switch (c) {
+		case 'b':
+			appendChar('\b');
+			break;
+		case 'f':
+			appendChar('\f');
+			break;
+		case 'n':
+			appendChar('\n');
+			break;
+		case 'r':
+			appendChar('\r');
+			break;
+		case 't':
+			appendChar('\t');
+			break;
+		case 'u': {
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(read(), 16);
+				if (digit < 0) {
+					throw new ParserException("Invalid unicode escape sequence");
+				}
+				value = (value << 4) | digit;
+			}
+			appendChar((char) value);
+			break;
+		}
+		default:
+			// '"', '\\', '/' and any other escaped character
+			appendChar((char) c);
+			break;
+		}
+	}
+
+	private void readUTF8(int c) throws IOException {
+		int codePoint;
+		int count;
+		if ((c & 0xE0) == 0xC0) {
+			codePoint = c & 0x1F;
+			count = 1;
+		} else if ((c & 0xF0) == 0xE0) {
+			codePoint = c & 0x0F;
+			count = 2;
+		} else if ((c & 0xF8) == 0xF0) {
+			codePoint = c & 0x07;
+			count = 3;
+		} else {
+			throw new ParserException("Invalid UTF-8 sequence");
+		}
+		while (count-- > 0) {
+			c = read();
+			if ((c & 0xC0) != 0x80) {
+				throw new ParserException("Invalid UTF-8 sequence");
+			}
+			codePoint = (codePoint << 6) | (c & 0x3F);
+		}
+		if (codePoint < 0x10000) {
+			appendChar((char) codePoint);
+		} else {
+			appendChar(Character.highSurrogate(codePoint));
+			appendChar(Character.lowSurrogate(codePoint));
+		}
+	}
+
+	/**
+	 * Read a number following the JSON grammar (the leading zeros being
+	 * accepted as by {@link JSONScanner}). The integers of at most 18
+	 * digits and the decimals of at most 19 significant digits are computed
+	 * while scanning, without intermediate String.
+	 *
+	 * Unlike JSONScanner, which throws a NumberFormatException, the
+	 * integers out of the long range are read as doubles.
+	 */
+	private int readNumber() throws IOException {
+		charCount = 0;
+		boolean valid = true;
+		boolean exact = true;
+		boolean negative = false;
+		int state = NUM_START;
+		long significand = 0;
+		int digits = 0;
+		int scale = 0;
+		int exponent = 0;
+		boolean negativeExponent = false;
+		while (true) {
+			if (pos == limit && !fill()) {
+				break;
+			}
+			byte c = buffer[pos];
+			if (c >= '0' && c <= '9') {
+				appendChar((char) c);
+				int digit = c - '0';
+				switch (state) {
+				case NUM_START:
+				case NUM_SIGN:
+				case NUM_INTEGER:
+				case NUM_POINT:
+				case NUM_FRACTION:
+					if (state == NUM_SIGN && !negative) {
+						// '+' only allowed before "infinity"
+						valid = false;
+					}
+					if (state == NUM_POINT || state == NUM_FRACTION) {
+						state = NUM_FRACTION;
+						scale--;
+					} else {
+						state = NUM_INTEGER;
+					}
+					if (digits < 19) {
+						significand = significand * 10 + digit;
+						if (significand != 0) {
+							digits++;
+						}
+					} else {
+						// Too many digits for an exact conversion
+						exact = false;
+					}
+					break;
+				default:
+					state = NUM_EXPONENT;
+					if (exponent < 100000) {
+						exponent = exponent * 10 + digit;
+					}
+					break;
+				}
+			} else if (c == '-' || c == '+') {
+				appendChar((char) c);
+				if (state == NUM_START) {
+					state = NUM_SIGN;
+					negative = c == '-';
+				} else if (state == NUM_EXPONENT_MARK) {
+					state = NUM_EXPONENT_SIGN;
+					negativeExponent = c == '-';
+				} else {
+					valid = false;
+				}
+			} else if (c == '.' || c == 'e' || c == 'E') {
+				appendChar((char) c);
+				if (c == '.' && state == NUM_INTEGER) {
+					state = NUM_POINT;
+				} else if (c != '.'
+						&& (state == NUM_INTEGER || state == NUM_FRACTION)) {
+					state = NUM_EXPONENT_MARK;
+				} else {
+					valid = false;
+				}
+			} else if (c == 'i' && charCount == 1 && state == NUM_SIGN) {
+				// [-+]infinity
+				return readKeyword();
+			} else {
+				break;
+			}
+			pos++;
+		}
+		if (valid && state == NUM_INTEGER) {
+			if (digits <= 18) {
+				longValue = negative ? -significand : significand;
+				valueType = Variant.Type.LONG;
+				return JSONTocken.TVARIANT;
+			}
+			String text = new String(chars, 0, charCount);
+			try {
+				longValue = Long.parseLong(text);
+				valueType = Variant.Type.LONG;
+			} catch (NumberFormatException e) {
+				// Out of the long range
+				doubleValue = Double.parseDouble(text);
+				valueType = Variant.Type.DOUBLE;
+			}
+			return JSONTocken.TVARIANT;
+		}
+		if (valid && (state == NUM_FRACTION || state == NUM_EXPONENT)) {
+			double value = Double.NaN;
+			if (exact) {
+				value = DoubleFormat.toDouble(significand, scale
+						+ (negativeExponent ? -exponent : exponent), negative);
+			}
+			if (Double.isNaN(value)) {
+				// Undecided or too many digits
+				value = Double.parseDouble(new String(chars, 0, charCount));
+			}
+			doubleValue = value;
+			valueType = Variant.Type.DOUBLE;
+			return JSONTocken.TVARIANT;
+		}
+		throw new ParserException("Invalid number "
+				+ new String(chars, 0, charCount));
+	}
+
+	private boolean matches(String word) {
+		if (word.length() != charCount) {
+			return false;
+		}
+		for (int i = 0; i < charCount; i++) {
+			if (chars[i] != word.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int readKeyword() throws IOException {
+		charCount = 0;
+		while (true) {
+			if (pos == limit && !fill()) {
+				break;
+			}
+			byte c = buffer[pos];
+			if ((c >= 'a' && c <= 'z') || (charCount == 0 && (c == '-' || c == '+'))) {
+				appendChar((char) c);
+				pos++;
+			} else {
+				break;
+			}
+		}
+		if (charCount == 0) {
+			// Unexpected character
+			pos++;
+			return JSONTocken.TSYNERR;
+		}
+		if (matches("true")) {
+			valueType = Variant.Type.BOOL;
+			longValue = 1;
+		} else if (matches("false")) {
+			valueType = Variant.Type.BOOL;
+			longValue = 0;
+		} else if (matches("null") || matches("undefined") || matches("nan")
+				|| matches("infinity") || matches("-infinity")
+				|| matches("+infinity")) {
+			valueType = Variant.Type.NULL;
+		} else {
+			return JSONTocken.TSYNERR;
+		}
+		return JSONTocken.TVARIANT;
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * JSON generator. This class handles the document layout (indentation and
+ * separators, see {@link Variant#JSON_INDENT_MASK} and
+ * {@link Variant#FORMAT_JSON_COMPACT}), the subclasses encode the output:
+ * {@link JSONByteWriter} in UTF-8 and {@link JSONCharWriter} as characters.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public abstract class JSONWriter {
+
+	/**
+	 * Escape sequence of each ASCII character: 0 if the character is written
+	 * as is, 'u' for a \\u00XX sequence, otherwise the escape character
+	 */
+	static final byte[] ESCAPES = new byte[128];
+
+	static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8',
+			'9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	/**
+	 * Two digits of each number from 0 to 99
+	 */
+	private static final char[] DIGIT_PAIRS = new char[200];
+
+	static {
+		for (int i = 0; i < 100; i++) {
+			DIGIT_PAIRS[2 * i] = (char) ('0' + i / 10);
+			DIGIT_PAIRS[2 * i + 1] = (char) ('0' + i % 10);
+		}
+		for (int i = 0; i < 0x20; i++) {
+			ESCAPES[i] = 'u';
+		}
+		ESCAPES['"'] = '"';
+		ESCAPES['\\'] = '\\';
+		ESCAPES['\b'] = 'b';
+		ESCAPES['\f'] = 'f';
+		ESCAPES['\n'] = 'n';
+		ESCAPES['\r'] = 'r';
+		ESCAPES['\t'] = 't';
+	}
+
+	/**
+	 * Minimum number of elements of a list or a map written in parallel
+	 */
+	static final int PARALLEL_THRESHOLD = 1024;
+
+	private static final int PARALLEL_MIN_CHUNK = 256;
+	private static final int PARALLEL_MAX_CHUNK = 4096;
+
+	private final char[] scratch = new char[DateTimeFormat.MAX_LENGTH + 2];
+
+	private ForkJoinPool pool;
+
+	/**
+	 * Write an ASCII character
+	 */
+	abstract void put(char c) throws IOException;
+
+	/**
+	 * Write a string holding only ASCII characters
+	 */
+	abstract void put(String ascii) throws IOException;
+
+	/**
+	 * Write ASCII characters
+	 */
+	abstract void put(char[] ascii, int off, int len) throws IOException;
+
+	/**
+	 * Write a given number of spaces
+	 */
+	abstract void putSpaces(int count) throws IOException;
+
+	/**
+	 * Write a quoted and escaped string
+	 */
+	abstract void putString(String value) throws IOException;
+
+	/**
+	 * Write the pending output
+	 *
+	 * @throws IOException on IO error
+	 */
+	public abstract void flush() throws IOException;
+
+	/**
+	 * Get a writer encoding a part of the document into its own buffer
+	 */
+	abstract JSONWriter fork();
+
+	/**
+	 * Write the output of a writer given by {@link #fork()}
+	 */
+	abstract void append(JSONWriter part) throws IOException;
+
+	/**
+	 * Write the large lists and maps in parallel: their elements are split
+	 * into chunks encoded by the tasks of a pool, then written in order. The
+	 * output is the same as in sequential mode.
+	 *
+	 * @param pool pool running the encoding tasks or null to write
+	 *            sequentially
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Serialize a document
+	 *
+	 * @param variant root map or list
+	 * @param flags JSON_INDENT_MASK / FORMAT_JSON_COMPACT flags
+	 * @throws IOException on IO error
+	 * @throws IllegalArgumentException if the variant is neither a map nor a
+	 *             list
+	 */
+	public void write(Variant variant, int flags) throws IOException {
+		switch (variant.type()) {
+		case LIST:
+		case MAP:
+			writeValue(variant, flags);
+			break;
+		default:
+			throw new IllegalArgumentException(
+					"The root node to serialize must be an map or an array");
+		}
+	}
+
+	/**
+	 * Serialize a value of any type
+	 *
+	 * @param variant value
+	 * @param flags JSON_INDENT_MASK / FORMAT_JSON_COMPACT flags, the current
+	 *            indentation is stored in the 16 high bits
+	 * @throws IOException on IO error
+	 */
+	public void writeValue(Variant variant, int flags) throws IOException {
+		switch (variant.type()) {
+		case BOOL:
+			put(variant.booleanValue() ? "true" : "false");
+			break;
+		case BYTE:
+			putLong(variant.byteValue(), false);
+			break;
+		case BYTEARRAY:
+		case STRING:
+			putString(variant.toString());
+			break;
+		case DATETIME: {
+			// Formatted without intermediate String, no escape needed
+			char[] buf = scratch;
+			int len = DateTimeFormat.getDefault().format(variant.longValue(),
+					buf, 1);
+			buf[0] = '"';
+			buf[len++] = '"';
+			put(buf, 0, len);
+			break;
+		}
+		case LIST:
+			writeList(variant.toList(), flags);
+			break;
+		case MAP:
+			writeMap(variant.toMap(), flags);
+			break;
+		case NULL:
+			put("null");
+			break;
+		case SHORT:
+		case USHORT:
+		case INT:
+		case UINT:
+		case LONG:
+			putLong(variant.longValue(), false);
+			break;
+		case ULONG:
+			putLong(variant.longValue(), true);
+			break;
+		case DOUBLE: {
+			double value = variant.doubleValue();
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				put(Double.toString(value));
+			} else {
+				put(scratch, 0, DoubleFormat.format(value, scratch, 0));
+			}
+			break;
+		}
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Write an integer two digits at a time from the end of the scratch
+	 * buffer, without intermediate String
+	 *
+	 * @param value integer value
+	 * @param unsigned if true, a negative value is written as the unsigned
+	 *            64 bits integer having the same bits
+	 */
+	private void putLong(long value, boolean unsigned) throws IOException {
+		char[] buf = scratch;
+		int pos = buf.length;
+		if (unsigned && value < 0) {
+			long q = (value >>> 1) / 5;
+			buf[--pos] = (char) ('0' + (value - q * 10));
+			value = q;
+		}
+		boolean negative = value < 0;
+		// Computed on the negative value to handle Long.MIN_VALUE
+		long v = negative ? value : -value;
+		while (v < Integer.MIN_VALUE) {
+			long q = v / 100;
+			int r = (int) (q * 100 - v);
+			v = q;
+			buf[--pos] = DIGIT_PAIRS[2 * r + 1];
+			buf[--pos] = DIGIT_PAIRS[2 * r];
+		}
+		int i = (int) v;
+		while (i <= -100) {
+			int q = i / 100;
+			int r = q * 100 - i;
+			i = q;
+			buf[--pos] = DIGIT_PAIRS[2 * r + 1];
+			buf[--pos] = DIGIT_PAIRS[2 * r];
+		}
+		buf[--pos] = DIGIT_PAIRS[-2 * i + 1];
+		if (i <= -10) {
+			buf[--pos] = DIGIT_PAIRS[-2 * i];
+		}
+		if (negative) {
+			buf[--pos] = '-';
+		}
+		put(buf, pos, buf.length - pos);
+	}
+
+	/**
+	 * Write the separator preceding an element
+	 */
+	private void separator(boolean first, boolean compact, int indentOff)
+			throws IOException {
+		if (!first) {
+			put(',');
+		}
+		if (indentOff != 0) {
+			put('\n');
+			putSpaces(indentOff);
+		} else if (!first && !compact) {
+			put(' ');
+		}
+	}
+
+	private void writeList(VariantList list, int flags) throws IOException {
+		int indentStep = flags & Variant.JSON_INDENT_MASK;
+		int indentOff = (flags >> 16) + indentStep;
+		flags = (flags & 0xFFFF) | (indentOff << 16);
+		put('[');
+		if (writeElements(list.readIterator(), list.size(), flags)
+				&& indentOff != 0) {
+			put('\n');
+			putSpaces(indentOff - indentStep);
+		}
+		put(']');
+	}
+
+	private void writeMap(VariantMap map, int flags)
+			throws IOException {
+		int indentStep = flags & Variant.JSON_INDENT_MASK;
+		int indentOff = (flags >> 16) + indentStep;
+		flags = (flags & 0xFFFF) | (indentOff << 16);
+		put('{');
+		if (writeElements(map.readIterator(), map.size(), flags)
+				&& indentOff != 0) {
+			put('\n');
+			putSpaces(indentOff - indentStep);
+		}
+		put('}');
+	}
+
+	/**
+	 * Write the elements of a list or the entries of a map
+	 *
+	 * @param it element iterator
+	 * @param size expected number of elements
+	 * @param flags serialization flags with the element indentation
+	 * @return false if there is no element
+	 */
+	private boolean writeElements(Iterator<?> it, int size, int flags)
+			throws IOException {
+		if (!it.hasNext()) {
+			return false;
+		}
+		if (pool != null && size >= PARALLEL_THRESHOLD) {
+			Object[] elts = new Object[size];
+			int count = 0;
+			while (it.hasNext()) {
+				if (count == elts.length) {
+					elts = Arrays.copyOf(elts, count * 2);
+				}
+				elts[count++] = it.next();
+			}
+			writeParallel(elts, count, flags);
+			return true;
+		}
+		boolean first = true;
+		do {
+			writeElement(it.next(), first, flags);
+			first = false;
+		} while (it.hasNext());
+		return true;
+	}
+
+	/**
+	 * Write a list element (Variant) or a map entry
+	 */
+	private void writeElement(Object elt, boolean first, int flags)
+			throws IOException {
+		boolean compact = (flags & Variant.FORMAT_JSON_COMPACT) != 0;
+		separator(first, compact, flags >> 16);
+		if (elt instanceof Entry) {
+			@SuppressWarnings("unchecked")
+			Entry<String, Variant> entry = (Entry<String, Variant>) elt;
+			putString(entry.getKey());
+			put(':');
+			if (!compact) {
+				put(' ');
+			}
+			writeValue(entry.getValue(), flags);
+		} else {
+			writeValue((Variant) elt, flags);
+		}
+	}
+
+	/**
+	 * Write elements by chunks encoded by the pool tasks, keeping at most two
+	 * chunks per pool thread in memory
+	 */
+	private void writeParallel(final Object[] elts, int count, final int flags)
+			throws IOException {
+		int parallelism = pool.getParallelism();
+		int chunkSize = Math.min(PARALLEL_MAX_CHUNK,
+				Math.max(PARALLEL_MIN_CHUNK, count / (8 * parallelism)));
+		ArrayDeque<Future<JSONWriter>> pending = new ArrayDeque<>();
+		int next = 0;
+		try {
+			while (next < count || !pending.isEmpty()) {
+				while (next < count && pending.size() < 2 * parallelism) {
+					final int from = next;
+					final int to = Math.min(count, next + chunkSize);
+					pending.add(pool.submit(new Callable<JSONWriter>() {
+						@Override
+						public JSONWriter call() throws IOException {
+							JSONWriter part = fork();
+							for (int i = from; i < to; i++) {
+								part.writeElement(elts[i], i == 0, flags);
+							}
+							return part;
+						}
+					}));
+					next = to;
+				}
+				append(Tasks.result(pending.poll()));
+			}
+		} finally {
+			for (Future<JSONWriter> future : pending) {
+				future.cancel(false);
+			}
+		}
+	}
+}
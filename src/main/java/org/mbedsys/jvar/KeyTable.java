@@ -0,0 +1,176 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Bounded symbol table giving the same String instance for the map keys
+ * having the same UTF-8 bytes. The lookup hashes the raw bytes and does not
+ * allocate when the key is found.
+ *
+ * The table is a fixed size array of immutable entries, indexed by the key
+ * hash: a new key replaces the one using the same slot. It can be shared by
+ * several threads without locking (a concurrent update is at worst lost).
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public final class KeyTable {
+
+	/**
+	 * Table used by the parsers created with the
+	 * {@link Variant#PARSE_INTERN_KEYS} flag
+	 */
+	public static final KeyTable SHARED = new KeyTable();
+
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * Longer keys are decoded without being stored
+	 */
+	private static final int MAX_KEY_LENGTH = 64;
+
+	private static final class Entry {
+		final int hash;
+		final byte[] bytes;
+		final String value;
+
+		Entry(int hash, byte[] bytes, String value) {
+			this.hash = hash;
+			this.bytes = bytes;
+			this.value = value;
+		}
+	}
+
+	private final Entry[] entries;
+
+	/**
+	 * Key table constructor with a capacity of 4096 keys
+	 */
+	public KeyTable() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Key table constructor
+	 *
+	 * @param capacity maximum number of keys (rounded up to a power of two)
+	 */
+	public KeyTable(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		int size = 1;
+		while (size < capacity && size < 1 << 30) {
+			size <<= 1;
+		}
+		entries = new Entry[size];
+	}
+
+	private int index(int hash) {
+		return (hash ^ (hash >>> 16)) & (entries.length - 1);
+	}
+
+	/**
+	 * Get the String of UTF-8 encoded bytes
+	 *
+	 * @param data byte array
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @return the canonical String instance
+	 */
+	public String intern(byte[] data, int off, int len) {
+		if (len > MAX_KEY_LENGTH) {
+			return new String(data, off, len, StandardCharsets.UTF_8);
+		}
+		int hash = 0;
+		for (int i = off; i < off + len; i++) {
+			hash = 31 * hash + data[i];
+		}
+		int index = index(hash);
+		Entry entry = entries[index];
+		if (entry != null && entry.hash == hash && entry.bytes.length == len) {
+			byte[] bytes = entry.bytes;
+			int i = 0;
+			while (i < len && bytes[i] == data[off + i]) {
+				i++;
+			}
+			if (i == len) {
+				return entry.value;
+			}
+		}
+		String value = new String(data, off, len, StandardCharsets.UTF_8);
+		entries[index] = new Entry(hash, Arrays.copyOfRange(data, off, off
+				+ len), value);
+		return value;
+	}
+
+	/**
+	 * Get the String of UTF-8 encoded bytes
+	 *
+	 * @param buffer byte buffer (its position is not used nor modified)
+	 * @param pos absolute index of the first byte
+	 * @param len number of bytes
+	 * @return the canonical String instance
+	 */
+	public String intern(ByteBuffer buffer, int pos, int len) {
+		if (buffer.hasArray()) {
+			return intern(buffer.array(), buffer.arrayOffset() + pos, len);
+		}
+		if (len > MAX_KEY_LENGTH) {
+			return new String(copy(buffer, pos, len), StandardCharsets.UTF_8);
+		}
+		int hash = 0;
+		for (int i = pos; i < pos + len; i++) {
+			hash = 31 * hash + buffer.get(i);
+		}
+		int index = index(hash);
+		Entry entry = entries[index];
+		if (entry != null && entry.hash == hash && entry.bytes.length == len) {
+			byte[] bytes = entry.bytes;
+			int i = 0;
+			while (i < len && bytes[i] == buffer.get(pos + i)) {
+				i++;
+			}
+			if (i == len) {
+				return entry.value;
+			}
+		}
+		byte[] data = copy(buffer, pos, len);
+		String value = new String(data, StandardCharsets.UTF_8);
+		entries[index] = new Entry(hash, data, value);
+		return value;
+	}
+
+	private static byte[] copy(ByteBuffer buffer, int pos, int len) {
+		byte[] data = new byte[len];
+		for (int i = 0; i < len; i++) {
+			data[i] = buffer.get(pos + i);
+		}
+		return data;
+	}
+
+	/**
+	 * Remove all the keys
+	 */
+	public void clear() {
+		Arrays.fill(entries, null);
+	}
+}
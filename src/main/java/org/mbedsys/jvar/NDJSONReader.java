@@ -0,0 +1,341 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Newline delimited JSON reader parsing the documents in parallel.
+ *
+ * The input is read by the calling thread in chunks ending on a line
+ * boundary, which are parsed by the tasks of a {@link ForkJoinPool}. At most
+ * two chunks per pool thread are buffered. The documents of a line must be
+ * objects or arrays and a document cannot span several lines.
+ *
+ * A parsing error is thrown by {@link #next(boolean)} in place of the
+ * documents of its line, with the line number in its message: the
+ * following documents can still be read.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class NDJSONReader extends Variant.Parser implements Closeable {
+
+	private static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	private static final Object[] EMPTY = new Object[0];
+
+	private final InputStream input;
+	private final ForkJoinPool pool;
+	private final boolean ownPool;
+	private final boolean ordered;
+	private final int chunkSize;
+	private final int maxPending;
+
+	/**
+	 * Parsing chunks in reading order (in unordered mode, only kept to be
+	 * cancelled by {@link #close()})
+	 */
+	private final ArrayDeque<Future<Object[]>> pending = new ArrayDeque<>();
+
+	/**
+	 * Parsing chunks in completion order (unordered mode)
+	 */
+	private final ExecutorCompletionService<Object[]> completion;
+
+	/**
+	 * Bytes read after the last submitted chunk
+	 */
+	private byte[] carry = new byte[256];
+	private int carryLength;
+
+	/**
+	 * Offset of the last new line in the carry buffer or -1
+	 */
+	private int lastNewLine = -1;
+
+	/**
+	 * Number of the first line of the carry buffer
+	 */
+	private long lineNumber = 1;
+
+	private boolean eof;
+
+	/**
+	 * Documents of the current chunk and parsing errors of its lines
+	 */
+	private Object[] current = EMPTY;
+	private int index;
+
+	/**
+	 * Reader constructor using its own pool with one thread per processor
+	 * and returning the documents in input order
+	 *
+	 * @param input data stream
+	 */
+	public NDJSONReader(InputStream input) {
+		this(input, null, true, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Reader constructor
+	 *
+	 * @param input data stream
+	 * @param pool pool running the parsing tasks (if null, a pool is created
+	 *            and shut down by {@link #close()})
+	 * @param ordered if false, the documents of a chunk are returned as soon
+	 *            as it is parsed, before the ones of the previous chunks
+	 */
+	public NDJSONReader(InputStream input, ForkJoinPool pool, boolean ordered) {
+		this(input, pool, ordered, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Reader constructor
+	 *
+	 * @param input data stream
+	 * @param pool pool running the parsing tasks (if null, a pool is created
+	 *            and shut down by {@link #close()})
+	 * @param ordered if false, the documents of a chunk are returned as soon
+	 *            as it is parsed, before the ones of the previous chunks
+	 * @param chunkSize number of bytes read per parsing task (extended to
+	 *            hold at least one line)
+	 */
+	public NDJSONReader(InputStream input, ForkJoinPool pool, boolean ordered,
+			int chunkSize) {
+		if (input == null) {
+			throw new IllegalArgumentException("input argument cannot be null");
+		}
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+		}
+		this.input = input;
+		ownPool = pool == null;
+		this.pool = ownPool ? new ForkJoinPool() : pool;
+		this.ordered = ordered;
+		this.chunkSize = chunkSize;
+		maxPending = 2 * this.pool.getParallelism();
+		completion = ordered ? null : new ExecutorCompletionService<Object[]>(
+				this.pool);
+	}
+
+	/**
+	 * Get the next document
+	 *
+	 * @param wait wait for the input and for the parsing tasks. If false,
+	 *            only the bytes available without blocking are read and
+	 *            the complete lines already read are parsed even if they
+	 *            do not fill a chunk.
+	 * @return a Variant object or null if wait=<code>false</code> and no
+	 *         document is parsed yet
+	 * @throws IOException on IO error, on parsing error of a line
+	 *             (ParserException) or at the end of the input
+	 *             (EOFException)
+	 */
+	@Override
+	public Variant next(boolean wait) throws IOException {
+		while (index == current.length) {
+			fill(wait);
+			if (pending.isEmpty()) {
+				if (eof) {
+					throw new EOFException();
+				}
+				return null;
+			}
+			Future<Object[]> future = take(wait);
+			if (future == null) {
+				return null;
+			}
+			// On unexpected task error, the documents of this chunk are
+			// skipped
+			current = EMPTY;
+			index = 0;
+			current = Tasks.result(future);
+		}
+		Object ret = current[index];
+		current[index++] = null;
+		if (ret instanceof IOException) {
+			throw (IOException) ret;
+		}
+		return (Variant) ret;
+	}
+
+	/**
+	 * Read and submit chunks until the maximum number of pending ones is
+	 * reached
+	 */
+	private void fill(boolean wait) throws IOException {
+		while (!eof && pending.size() < maxPending) {
+			byte[] chunk = readChunk(wait);
+			if (chunk == null) {
+				return;
+			}
+			submit(chunk);
+		}
+	}
+
+	/**
+	 * Read the next chunk of complete lines
+	 *
+	 * @param wait if false, read only the available bytes and give the
+	 *            complete lines read so far when no more byte is available
+	 * @return the chunk or null if there is no complete line to parse
+	 */
+	private byte[] readChunk(boolean wait) throws IOException {
+		while (carryLength < chunkSize || lastNewLine < 0) {
+			int count = carry.length - carryLength;
+			if (!wait) {
+				int available = input.available();
+				if (available <= 0) {
+					return lastNewLine < 0 ? null : cut(lastNewLine + 1);
+				}
+				count = Math.min(count, available);
+			}
+			if (count == 0) {
+				carry = Arrays.copyOf(carry, carry.length * 2);
+				continue;
+			}
+			int n = input.read(carry, carryLength, count);
+			if (n < 0) {
+				eof = true;
+				// The last line may have no new line character
+				return carryLength == 0 ? null : cut(carryLength);
+			}
+			for (int i = carryLength + n - 1; i >= carryLength; i--) {
+				if (carry[i] == '\n') {
+					lastNewLine = i;
+					break;
+				}
+			}
+			carryLength += n;
+		}
+		return cut(lastNewLine + 1);
+	}
+
+	/**
+	 * Remove a chunk from the start of the carry buffer
+	 */
+	private byte[] cut(int length) {
+		byte[] ret = Arrays.copyOf(carry, length);
+		carryLength -= length;
+		System.arraycopy(carry, length, carry, 0, carryLength);
+		lastNewLine = -1;
+		return ret;
+	}
+
+	private void submit(final byte[] chunk) {
+		final KeyTable keys = keyTable;
+		final long firstLine = lineNumber;
+		for (byte b : chunk) {
+			if (b == '\n') {
+				lineNumber++;
+			}
+		}
+		Callable<Object[]> task = new Callable<Object[]>() {
+			@Override
+			public Object[] call() {
+				return parse(chunk, keys, firstLine);
+			}
+		};
+		pending.add(ordered ? pool.submit(task) : completion.submit(task));
+	}
+
+	/**
+	 * Parse the documents of a chunk line by line
+	 *
+	 * @return the documents and, in place of the documents of an invalid
+	 *         line, its parsing error
+	 */
+	static Object[] parse(byte[] chunk, KeyTable keys, long firstLine) {
+		JSONTokenizer tokenizer = new JSONTokenizer();
+		JSONParser parser = new JSONParser(tokenizer);
+		parser.keyTable = keys;
+		ArrayList<Object> ret = new ArrayList<>();
+		long line = firstLine;
+		int off = 0;
+		while (off < chunk.length) {
+			int end = off;
+			while (end < chunk.length && chunk[end] != '\n') {
+				end++;
+			}
+			tokenizer.reset(chunk, off, end - off);
+			try {
+				while (tokenizer.ready()) {
+					ret.add(parser.next());
+				}
+			} catch (EOFException e) {
+				ret.add(new ParserException("Line " + line
+						+ ": incomplete document", e));
+			} catch (IOException e) {
+				ret.add(new ParserException("Line " + line + ": "
+						+ e.getMessage(), e));
+			}
+			off = end + 1;
+			line++;
+		}
+		return ret.toArray();
+	}
+
+	private Future<Object[]> take(boolean wait) throws IOException {
+		if (ordered) {
+			if (!wait && !pending.peek().isDone()) {
+				return null;
+			}
+			return pending.poll();
+		}
+		Future<Object[]> ret;
+		try {
+			ret = wait ? completion.take() : completion.poll();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if (ret != null) {
+			pending.remove(ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Close the input stream and cancel the pending tasks (the pool is shut
+	 * down if created by this reader)
+	 *
+	 * @throws IOException on IO error
+	 */
+	@Override
+	public void close() throws IOException {
+		for (Future<Object[]> future : pending) {
+			future.cancel(false);
+		}
+		pending.clear();
+		eof = true;
+		if (ownPool) {
+			pool.shutdown();
+		}
+		input.close();
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.ListIterator;
+import java.util.RandomAccess;
+
+/**
+ * List storage packing homogeneous numbers into a primitive array. The
+ * variants are built on each {@link #get(int)}. As soon as an element cannot
+ * be packed with the others, the content is moved into an ArrayList used from
+ * then on.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+class PackedList extends AbstractList<Variant> implements RandomAccess {
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	/**
+	 * Element kinds: none yet, variants built by
+	 * {@link VariantNumber#optimize(long)} (as produced by the JSON parsers),
+	 * {@link VariantInt}, {@link VariantLong} and {@link VariantDouble}
+	 */
+	private static final int EMPTY = 0;
+	private static final int OPTIMIZED = 1;
+	private static final int INT = 2;
+	private static final int LONG = 3;
+	private static final int DOUBLE = 4;
+
+	private int kind;
+	private int[] ints;
+	private long[] longs;
+	private double[] doubles;
+	private int size;
+	private ArrayList<Variant> list;
+
+	PackedList() {
+	}
+
+	PackedList(Collection<? extends Variant> c) {
+		if (c instanceof PackedList) {
+			PackedList other = (PackedList) c;
+			if (other.list != null) {
+				list = new ArrayList<>(other.list);
+				return;
+			}
+			kind = other.kind;
+			size = other.size;
+			int capacity = Math.max(size, INITIAL_CAPACITY);
+			if (other.ints != null) {
+				ints = Arrays.copyOf(other.ints, capacity);
+			} else if (other.longs != null) {
+				longs = Arrays.copyOf(other.longs, capacity);
+			} else if (other.doubles != null) {
+				doubles = Arrays.copyOf(other.doubles, capacity);
+			}
+			return;
+		}
+		for (Variant elt : c) {
+			add(elt);
+		}
+	}
+
+	PackedList(int[] values) {
+		kind = INT;
+		ints = values.clone();
+		size = values.length;
+	}
+
+	PackedList(long[] values) {
+		kind = LONG;
+		longs = values.clone();
+		size = values.length;
+	}
+
+	PackedList(double[] values) {
+		kind = DOUBLE;
+		doubles = values.clone();
+		size = values.length;
+	}
+
+	private static boolean accepts(int kind, Variant value) {
+		switch (kind) {
+		case OPTIMIZED:
+			return VariantNumber.isOptimized(value);
+		case INT:
+			return value.getClass() == VariantInt.class;
+		case LONG:
+			return value.getClass() == VariantLong.class;
+		case DOUBLE:
+			return value.getClass() == VariantDouble.class;
+		default:
+			return false;
+		}
+	}
+
+	private Object array() {
+		if (ints != null) {
+			return ints;
+		} else if (longs != null) {
+			return longs;
+		}
+		return doubles;
+	}
+
+	private void allocate(int capacity) {
+		switch (kind) {
+		case OPTIMIZED:
+		case INT:
+			ints = new int[capacity];
+			break;
+		case LONG:
+			longs = new long[capacity];
+			break;
+		default:
+			doubles = new double[capacity];
+			break;
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (ints != null) {
+			if (capacity > ints.length) {
+				ints = Arrays.copyOf(ints, Math.max(ints.length * 2, capacity));
+			}
+		} else if (longs != null) {
+			if (capacity > longs.length) {
+				longs = Arrays.copyOf(longs,
+						Math.max(longs.length * 2, capacity));
+			}
+		} else if (capacity > doubles.length) {
+			doubles = Arrays.copyOf(doubles,
+					Math.max(doubles.length * 2, capacity));
+		}
+	}
+
+	private void store(int index, Variant value) {
+		switch (kind) {
+		case INT:
+			ints[index] = value.intValue();
+			break;
+		case LONG:
+			longs[index] = value.longValue();
+			break;
+		case DOUBLE:
+			doubles[index] = value.doubleValue();
+			break;
+		default:
+			long number = value.longValue();
+			if (ints != null && (int) number != number) {
+				// Widen the optimized numbers storage
+				longs = new long[ints.length];
+				for (int i = 0; i < size; i++) {
+					longs[i] = ints[i];
+				}
+				ints = null;
+			}
+			if (ints != null) {
+				ints[index] = (int) number;
+			} else {
+				longs[index] = number;
+			}
+			break;
+		}
+	}
+
+	private Variant load(int index) {
+		switch (kind) {
+		case INT:
+			return VariantInt.valueOf(ints[index]);
+		case LONG:
+			return VariantLong.valueOf(longs[index]);
+		case DOUBLE:
+			return new VariantDouble(doubles[index]);
+		default:
+			return VariantNumber.optimize(ints != null ? (long) ints[index]
+					: longs[index]);
+		}
+	}
+
+	/**
+	 * Make the storage accept the given element, switching to an other kind
+	 * of packing or to an ArrayList
+	 */
+	private void adapt(Variant value) {
+		if (value != null) {
+			for (int k = OPTIMIZED; k <= DOUBLE; k++) {
+				if (k == kind || !accepts(k, value)) {
+					continue;
+				}
+				if (kind == EMPTY) {
+					kind = k;
+					allocate(INITIAL_CAPACITY);
+					return;
+				}
+				int i = 0;
+				while (i < size && accepts(k, load(i))) {
+					i++;
+				}
+				if (i == size) {
+					repack(k);
+					return;
+				}
+			}
+		}
+		unpack();
+	}
+
+	private void repack(int k) {
+		Variant[] elts = new Variant[size];
+		for (int i = 0; i < size; i++) {
+			elts[i] = load(i);
+		}
+		ints = null;
+		longs = null;
+		doubles = null;
+		kind = k;
+		allocate(Math.max(size + 1, INITIAL_CAPACITY));
+		for (int i = 0; i < size; i++) {
+			store(i, elts[i]);
+		}
+	}
+
+	private void unpack() {
+		list = new ArrayList<>(Math.max(size, INITIAL_CAPACITY));
+		for (int i = 0; i < size; i++) {
+			list.add(load(i));
+		}
+		ints = null;
+		longs = null;
+		doubles = null;
+		size = 0;
+	}
+
+	private void rangeCheck(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+	}
+
+	@Override
+	public int size() {
+		return list != null ? list.size() : size;
+	}
+
+	@Override
+	public Variant get(int index) {
+		if (list != null) {
+			return list.get(index);
+		}
+		rangeCheck(index);
+		return load(index);
+	}
+
+	@Override
+	public Variant set(int index, Variant element) {
+		if (list != null) {
+			return list.set(index, element);
+		}
+		rangeCheck(index);
+		Variant ret = load(index);
+		if (element == null || !accepts(kind, element)) {
+			adapt(element);
+			if (list != null) {
+				return list.set(index, element);
+			}
+		}
+		store(index, element);
+		return ret;
+	}
+
+	@Override
+	public boolean add(Variant element) {
+		add(size(), element);
+		return true;
+	}
+
+	@Override
+	public void add(int index, Variant element) {
+		modCount++;
+		if (list == null && (element == null || !accepts(kind, element))) {
+			adapt(element);
+		}
+		if (list != null) {
+			list.add(index, element);
+			return;
+		}
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+		ensureCapacity(size + 1);
+		if (index < size) {
+			Object array = array();
+			System.arraycopy(array, index, array, index + 1, size - index);
+		}
+		size++;
+		store(index, element);
+	}
+
+	@Override
+	public Variant remove(int index) {
+		if (list != null) {
+			modCount++;
+			return list.remove(index);
+		}
+		rangeCheck(index);
+		modCount++;
+		Variant ret = load(index);
+		Object array = array();
+		System.arraycopy(array, index + 1, array, index, size - index - 1);
+		size--;
+		return ret;
+	}
+
+	@Override
+	public void clear() {
+		modCount++;
+		if (list != null) {
+			list.clear();
+			return;
+		}
+		kind = EMPTY;
+		ints = null;
+		longs = null;
+		doubles = null;
+		size = 0;
+	}
+
+	@Override
+	public Iterator<Variant> iterator() {
+		return list != null ? list.iterator() : super.iterator();
+	}
+
+	@Override
+	public ListIterator<Variant> listIterator(int index) {
+		return list != null ? list.listIterator(index) : super
+				.listIterator(index);
+	}
+
+	/**
+	 * Test if the elements are stored in a primitive array
+	 *
+	 * @return false if they have been moved into an ArrayList
+	 */
+	boolean isPacked() {
+		return list == null;
+	}
+
+	/**
+	 * Get the long values of the elements
+	 *
+	 * @return a new array
+	 */
+	long[] toLongArray() {
+		if (list == null) {
+			if (longs != null) {
+				return Arrays.copyOf(longs, size);
+			}
+			long[] ret = new long[size];
+			if (ints != null) {
+				for (int i = 0; i < size; i++) {
+					ret[i] = ints[i];
+				}
+			} else if (doubles != null) {
+				for (int i = 0; i < size; i++) {
+					ret[i] = (long) doubles[i];
+				}
+			}
+			return ret;
+		}
+		long[] ret = new long[list.size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = list.get(i).longValue();
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the double values of the elements
+	 *
+	 * @return a new array
+	 */
+	double[] toDoubleArray() {
+		if (list == null) {
+			if (doubles != null) {
+				return Arrays.copyOf(doubles, size);
+			}
+			double[] ret = new double[size];
+			if (ints != null) {
+				for (int i = 0; i < size; i++) {
+					ret[i] = ints[i];
+				}
+			} else if (longs != null) {
+				for (int i = 0; i < size; i++) {
+					ret[i] = longs[i];
+				}
+			}
+			return ret;
+		}
+		double[] ret = new double[list.size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = list.get(i).doubleValue();
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+/**
+ * Tree of the map keys to keep while parsing, built from dotted paths (same
+ * syntax as {@link VariantMap#resolvePath(VariantMap, String)}).
+ *
+ * A projection applied to a list is applied to each of its elements. Values
+ * which are not maps or lists are dropped when the projection goes deeper.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+class PathProjection {
+
+	/**
+	 * Projection keeping the whole sub tree
+	 */
+	static final PathProjection ALL = new PathProjection();
+
+	private final HashMap<String, PathProjection> children = new HashMap<>();
+
+	/**
+	 * Build a projection from a set of dotted paths
+	 *
+	 * @param paths paths to keep
+	 * @return the root projection node
+	 */
+	static PathProjection compile(Collection<String> paths) {
+		PathProjection root = new PathProjection();
+		for (String path : paths) {
+			String[] parts = VariantString.split(path, '.');
+			if (parts.length == 0) {
+				return ALL;
+			}
+			PathProjection node = root;
+			for (int i = 0; i < parts.length && node != ALL; i++) {
+				PathProjection child = node.children.get(parts[i]);
+				if (i == parts.length - 1) {
+					child = ALL;
+				} else if (child == null) {
+					child = new PathProjection();
+				}
+				node.children.put(parts[i], child);
+				node = child;
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Get the projection to apply to the value of a map key
+	 *
+	 * @param key map key
+	 * @return the child projection or null if the key is not projected
+	 */
+	PathProjection child(String key) {
+		return this == ALL ? ALL : children.get(key);
+	}
+
+	/**
+	 * Apply the projection to an already built variant
+	 *
+	 * @param value source variant
+	 * @return the projected variant or null if the value is dropped
+	 */
+	Variant project(Variant value) {
+		if (this == ALL) {
+			return value;
+		}
+		switch (value.type()) {
+		case MAP: {
+			VariantMap map = value.toMap();
+			VariantMap ret = new VariantMap();
+			for (Entry<String, PathProjection> child : children.entrySet()) {
+				Variant elt = map.get(child.getKey());
+				if (elt != null && (elt = child.getValue().project(elt)) != null) {
+					ret.put(child.getKey(), elt);
+				}
+			}
+			return ret;
+		}
+		case LIST: {
+			VariantList ret = new VariantList();
+			for (Variant elt : value.toList()) {
+				if ((elt = project(elt)) != null) {
+					ret.add(elt);
+				}
+			}
+			return ret;
+		}
+		default:
+			return null;
+		}
+	}
+}
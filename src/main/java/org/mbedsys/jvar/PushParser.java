@@ -0,0 +1,405 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.mbedsys.jvar.Variant.Format;
+
+/**
+ * Non blocking parser fed with chunks of bytes, for instance read from a NIO
+ * channel. The documents are returned by {@link #next(boolean)} as soon as
+ * their last byte has been fed.
+ *
+ * The document boundaries are searched incrementally (the scanning state is
+ * kept between the chunks), then each complete document is parsed from the
+ * buffered bytes. A document can be split anywhere.
+ *
+ * Supported flags: {@link Variant#PARSE_BSON_LAZY} and
+ * {@link Variant#PARSE_INTERN_KEYS}.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class PushParser extends Variant.Parser {
+
+	private static final int INITIAL_CAPACITY = 8192;
+
+	private final Format format;
+	private final int flags;
+
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+
+	/**
+	 * Offset of the first byte of the current document
+	 */
+	private int start;
+
+	/**
+	 * Offset following the last fed byte
+	 */
+	private int end;
+
+	/**
+	 * Offset of the next byte to scan
+	 */
+	private int scan;
+
+	/**
+	 * Scanning state: container depth, JSON string state, BCON key state
+	 */
+	private int depth;
+	private boolean inString;
+	private boolean escape;
+	private boolean inKey;
+
+	/**
+	 * BCON container stack (true for a map)
+	 */
+	private boolean[] maps = new boolean[16];
+
+	private JSONTokenizer tokenizer;
+	private JSONParser jsonParser;
+
+	/**
+	 * Push parser constructor
+	 *
+	 * @param format data format
+	 */
+	public PushParser(Format format) {
+		this(format, 0);
+	}
+
+	/**
+	 * Push parser constructor
+	 *
+	 * @param format data format
+	 * @param flags parser flags (PARSE_BSON_LAZY, PARSE_INTERN_KEYS)
+	 */
+	public PushParser(Format format, int flags) {
+		if (format == null) {
+			throw new IllegalArgumentException("format argument cannot be null");
+		}
+		this.format = format;
+		this.flags = flags;
+		if ((flags & Variant.PARSE_INTERN_KEYS) != 0) {
+			keyTable = KeyTable.SHARED;
+		}
+		if (format == Format.JSON) {
+			tokenizer = new JSONTokenizer();
+			jsonParser = new JSONParser(tokenizer);
+		}
+	}
+
+	/**
+	 * Append the remaining bytes of a buffer (its position is moved to its
+	 * limit)
+	 *
+	 * @param input bytes to parse
+	 */
+	public void feed(ByteBuffer input) {
+		int len = input.remaining();
+		reserve(len);
+		input.get(buffer, end, len);
+		end += len;
+	}
+
+	/**
+	 * Append bytes
+	 *
+	 * @param data byte array
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 */
+	public void feed(byte[] data, int off, int len) {
+		reserve(len);
+		System.arraycopy(data, off, buffer, end, len);
+		end += len;
+	}
+
+	/**
+	 * Get the number of fed bytes not returned yet as a document
+	 *
+	 * @return 0 if no partial document is buffered
+	 */
+	public int buffered() {
+		return end - start;
+	}
+
+	private void reserve(int len) {
+		if (end + len <= buffer.length) {
+			return;
+		}
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			scan -= start;
+			start = 0;
+		}
+		if (end + len > buffer.length) {
+			buffer = Arrays.copyOf(buffer,
+					Math.max(buffer.length * 2, end + len));
+		}
+	}
+
+	/**
+	 * Get the next complete document. This method never blocks.
+	 *
+	 * @param wait if true, a missing document is reported as an
+	 *            EOFException instead of a null result
+	 * @return a Variant object or null if no document is complete
+	 * @throws IOException on parsing error (the invalid document is
+	 *             dropped)
+	 */
+	@Override
+	public Variant next(boolean wait) throws IOException {
+		int docEnd;
+		switch (format) {
+		case JSON:
+			docEnd = scanJSON();
+			break;
+		case BSON:
+			docEnd = scanBSON();
+			break;
+		default:
+			docEnd = scanBCON();
+			break;
+		}
+		if (docEnd < 0) {
+			if (wait) {
+				throw new EOFException("Incomplete document");
+			}
+			return null;
+		}
+		int off = start;
+		start = docEnd;
+		scan = docEnd;
+		depth = 0;
+		inString = false;
+		escape = false;
+		inKey = false;
+		return parse(off, docEnd - off);
+	}
+
+	private Variant parse(int off, int len) throws IOException {
+		switch (format) {
+		case JSON:
+			tokenizer.reset(buffer, off, len);
+			jsonParser.keyTable = keyTable;
+			return jsonParser.next();
+		case BSON:
+			if ((flags & Variant.PARSE_BSON_LAZY) != 0) {
+				return new VariantBSONMap(Arrays.copyOfRange(buffer, off, off
+						+ len));
+			}
+			return Variant.parseBSONDocument(new ByteArrayInputStream(buffer,
+					off, len), PathProjection.ALL, keyTable);
+		default:
+			BCONReader reader = new BCONReader(ByteBuffer.wrap(buffer, off, len));
+			reader.keyTable = keyTable;
+			return reader.read();
+		}
+	}
+
+	/**
+	 * Search the end of a JSON object or array
+	 *
+	 * @return the offset following the document or -1 if incomplete
+	 * @throws ParserException if the document does not start with a '{' or
+	 *             a '['
+	 */
+	private int scanJSON() throws ParserException {
+		byte[] buf = buffer;
+		while (scan < end) {
+			byte c = buf[scan++];
+			if (depth == 0) {
+				switch (c) {
+				case ' ':
+				case '\t':
+				case '\r':
+				case '\n':
+					start = scan;
+					continue;
+				case '{':
+				case '[':
+					depth = 1;
+					continue;
+				default:
+					start = scan;
+					throw new ParserException("Unexpected character '"
+							+ (char) (c & 0xFF) + "' before a JSON document");
+				}
+			}
+			if (inString) {
+				if (escape) {
+					escape = false;
+				} else if (c == '\\') {
+					escape = true;
+				} else if (c == '"') {
+					inString = false;
+				}
+				continue;
+			}
+			switch (c) {
+			case '"':
+				inString = true;
+				break;
+			case '{':
+			case '[':
+				depth++;
+				break;
+			case '}':
+			case ']':
+				if (--depth == 0) {
+					return scan;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the end of a BSON document from its length
+	 *
+	 * @return the offset following the document or -1 if incomplete
+	 * @throws ParserException on invalid length
+	 */
+	private int scanBSON() throws ParserException {
+		if (end - start < 4) {
+			return -1;
+		}
+		int len = (buffer[start] & 0xFF) | ((buffer[start + 1] & 0xFF) << 8)
+				| ((buffer[start + 2] & 0xFF) << 16)
+				| ((buffer[start + 3] & 0xFF) << 24);
+		if (len < 5) {
+			// Nothing can be resynchronized after a bad length
+			start = end;
+			scan = end;
+			throw new ParserException("Invalid BSON document length " + len);
+		}
+		return end - start >= len ? start + len : -1;
+	}
+
+	/**
+	 * Search the end of a BCON value, token by token
+	 *
+	 * @return the offset following the value or -1 if incomplete
+	 * @throws ParserException on invalid token
+	 */
+	private int scanBCON() throws ParserException {
+		byte[] buf = buffer;
+		while (scan < end) {
+			if (inKey) {
+				while (scan < end && buf[scan] != 0) {
+					scan++;
+				}
+				if (scan == end) {
+					return -1;
+				}
+				scan++;
+				inKey = false;
+				continue;
+			}
+			byte c = buf[scan];
+			int size;
+			if ((c & 0x80) != 0) {
+				size = 1 + (c & 0x3F);
+			} else if ((c & 0xF0) != 0) {
+				int n = (c & 0x30) >> 4;
+				if (n == 0) {
+					throw invalidBCON(c);
+				}
+				if (end - scan < 1 + n) {
+					return -1;
+				}
+				int len = c & 0x0F;
+				for (int i = 0; i < n; i++) {
+					len |= (buf[scan + 1 + i] & 0xFF) << (4 + 8 * i);
+				}
+				size = 1 + n + len;
+			} else {
+				switch (c) {
+				case Variant.BCON_TOKEN_NULL:
+				case Variant.BCON_TOKEN_TRUE:
+				case Variant.BCON_TOKEN_FALSE:
+					size = 1;
+					break;
+				case Variant.BCON_TOKEN_BYTE:
+					size = 2;
+					break;
+				case Variant.BCON_TOKEN_INT16:
+				case Variant.BCON_TOKEN_UINT16:
+					size = 3;
+					break;
+				case Variant.BCON_TOKEN_INT32:
+				case Variant.BCON_TOKEN_UINT32:
+					size = 5;
+					break;
+				case Variant.BCON_TOKEN_INT64:
+				case Variant.BCON_TOKEN_UINT64:
+				case Variant.BCON_TOKEN_DOUBLE:
+				case Variant.BCON_TOKEN_DATETIME:
+					size = 9;
+					break;
+				case Variant.BCON_TOKEN_MAP:
+				case Variant.BCON_TOKEN_LIST:
+					if (depth == maps.length) {
+						maps = Arrays.copyOf(maps, depth * 2);
+					}
+					maps[depth++] = c == Variant.BCON_TOKEN_MAP;
+					scan++;
+					continue;
+				case Variant.BCON_TOKEN_END:
+					if (depth == 0) {
+						throw invalidBCON(c);
+					}
+					depth--;
+					size = 1;
+					break;
+				default:
+					throw invalidBCON(c);
+				}
+			}
+			if (end - scan < size) {
+				return -1;
+			}
+			scan += size;
+			// A complete value: followed by its key inside a map
+			if (depth == 0) {
+				return scan;
+			}
+			inKey = maps[depth - 1];
+		}
+		return -1;
+	}
+
+	private ParserException invalidBCON(byte c) {
+		// The stream cannot be resynchronized
+		start = end;
+		scan = end;
+		depth = 0;
+		inKey = false;
+		return new ParserException("Invalid BCON token " + c);
+	}
+}
@@ -0,0 +1,381 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Persistent list storage: a 32-way trie of the elements followed by a tail
+ * array holding the last ones, whose nodes can be shared by several lists.
+ *
+ * As in {@link HashTrieMap}, the nodes created with the current
+ * {@link HashTrieMap.Edit} token of the list are modified in place and the
+ * other ones are copied along the path to the modified element (with the
+ * same copy on write mode): {@link #snapshot(boolean)} takes a constant
+ * time. Getting, setting, appending and removing the last element cost
+ * O(log32(n)); inserting or removing an other element rebuilds the list.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+class TrieList extends AbstractList<Variant> implements RandomAccess {
+
+	private static final class Node {
+		final HashTrieMap.Edit edit;
+		final Object[] array;
+
+		Node(HashTrieMap.Edit edit, Object[] array) {
+			this.edit = edit;
+			this.array = array;
+		}
+	}
+
+	private HashTrieMap.Edit edit = new HashTrieMap.Edit(false);
+	private int size;
+	private int shift = 5;
+	private Node root = new Node(edit, new Object[32]);
+	private Object[] tail = new Object[32];
+
+	/**
+	 * False if the tail array may be shared with an other list
+	 */
+	private boolean tailOwned = true;
+
+	TrieList() {
+	}
+
+	TrieList(Collection<? extends Variant> c) {
+		for (Variant elt : c) {
+			add(elt);
+		}
+	}
+
+	/**
+	 * Get a copy sharing all the nodes with this list (constant time)
+	 *
+	 * @param cow if true, the child maps and lists are shared too and both
+	 *            lists switch to copy on write mode
+	 * @return a new list
+	 */
+	TrieList snapshot(boolean cow) {
+		cow |= edit.cow;
+		edit = new HashTrieMap.Edit(cow);
+		tailOwned = false;
+		TrieList ret = new TrieList();
+		ret.edit = new HashTrieMap.Edit(cow);
+		ret.size = size;
+		ret.shift = shift;
+		ret.root = root;
+		ret.tail = tail;
+		ret.tailOwned = false;
+		return ret;
+	}
+
+	private int tailOffset() {
+		return size < 32 ? 0 : ((size - 1) >>> 5) << 5;
+	}
+
+	private Node editable(Node node) {
+		return node.edit == edit ? node : new Node(edit, edit.copy(node.array));
+	}
+
+	private void ensureTailOwned() {
+		if (!tailOwned) {
+			tail = edit.copy(tail);
+			tailOwned = true;
+		}
+	}
+
+	private Object[] arrayFor(int index) {
+		if (index >= tailOffset()) {
+			return tail;
+		}
+		Node node = root;
+		for (int level = shift; level > 0; level -= 5) {
+			node = (Node) node.array[(index >>> level) & 31];
+		}
+		return node.array;
+	}
+
+	private void rangeCheck(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Variant get(int index) {
+		rangeCheck(index);
+		Object ret = arrayFor(index)[index & 31];
+		if (edit.cow && HashTrieMap.isContainer(ret)) {
+			// Copy the path to get a child owned by this list
+			if (index >= tailOffset()) {
+				ensureTailOwned();
+			} else {
+				root = own(shift, root, index);
+			}
+			ret = arrayFor(index)[index & 31];
+		}
+		return (Variant) ret;
+	}
+
+	private Node own(int level, Node node, int index) {
+		Node ret = editable(node);
+		if (level > 0) {
+			int sub = (index >>> level) & 31;
+			ret.array[sub] = own(level - 5, (Node) node.array[sub], index);
+		}
+		return ret;
+	}
+
+	@Override
+	public Variant set(int index, Variant element) {
+		Variant ret = get(index);
+		if (index >= tailOffset()) {
+			ensureTailOwned();
+			tail[index & 31] = element;
+		} else {
+			root = set(shift, root, index, element);
+		}
+		return ret;
+	}
+
+	private Node set(int level, Node node, int index, Variant element) {
+		Node ret = editable(node);
+		if (level == 0) {
+			ret.array[index & 31] = element;
+		} else {
+			int sub = (index >>> level) & 31;
+			ret.array[sub] = set(level - 5, (Node) node.array[sub], index,
+					element);
+		}
+		return ret;
+	}
+
+	@Override
+	public boolean add(Variant element) {
+		modCount++;
+		if (size - tailOffset() < 32) {
+			ensureTailOwned();
+			tail[size & 31] = element;
+			size++;
+			return true;
+		}
+		Node tailNode = new Node(edit, tailOwned ? tail : edit.copy(tail));
+		if ((size >>> 5) > (1 << shift)) {
+			Node newRoot = new Node(edit, new Object[32]);
+			newRoot.array[0] = root;
+			newRoot.array[1] = newPath(shift, tailNode);
+			root = newRoot;
+			shift += 5;
+		} else {
+			root = pushTail(shift, root, tailNode);
+		}
+		tail = new Object[32];
+		tailOwned = true;
+		tail[0] = element;
+		size++;
+		return true;
+	}
+
+	private Node newPath(int level, Node node) {
+		if (level == 0) {
+			return node;
+		}
+		Node ret = new Node(edit, new Object[32]);
+		ret.array[0] = newPath(level - 5, node);
+		return ret;
+	}
+
+	private Node pushTail(int level, Node parent, Node tailNode) {
+		Node ret = editable(parent);
+		int sub = ((size - 1) >>> level) & 31;
+		Node child;
+		if (level == 5) {
+			child = tailNode;
+		} else {
+			Node node = (Node) parent.array[sub];
+			child = node != null ? pushTail(level - 5, node, tailNode)
+					: newPath(level - 5, tailNode);
+		}
+		ret.array[sub] = child;
+		return ret;
+	}
+
+	/**
+	 * Remove the last element
+	 */
+	private void removeLast() {
+		modCount++;
+		if (size == 1) {
+			clear();
+			return;
+		}
+		if (((size - 1) & 31) > 0) {
+			ensureTailOwned();
+			tail[(size - 1) & 31] = null;
+			size--;
+			return;
+		}
+		// The tail becomes empty: the last leaf is moved into it
+		Node leaf = root;
+		for (int level = shift; level > 0; level -= 5) {
+			leaf = (Node) leaf.array[((size - 2) >>> level) & 31];
+		}
+		tail = leaf.edit == edit ? leaf.array.clone() : edit.copy(leaf.array);
+		tailOwned = true;
+		Node newRoot = popTail(shift, root);
+		if (newRoot == null) {
+			newRoot = new Node(edit, new Object[32]);
+		}
+		if (shift > 5 && newRoot.array[1] == null) {
+			newRoot = (Node) newRoot.array[0];
+			shift -= 5;
+		}
+		root = newRoot;
+		size--;
+	}
+
+	private Node popTail(int level, Node node) {
+		int sub = ((size - 2) >>> level) & 31;
+		if (level > 5) {
+			Node child = popTail(level - 5, (Node) node.array[sub]);
+			if (child == null && sub == 0) {
+				return null;
+			}
+			Node ret = editable(node);
+			ret.array[sub] = child;
+			return ret;
+		} else if (sub == 0) {
+			return null;
+		}
+		Node ret = editable(node);
+		ret.array[sub] = null;
+		return ret;
+	}
+
+	@Override
+	public void add(int index, Variant element) {
+		if (index == size) {
+			add(element);
+			return;
+		}
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+		Object[] elts = toArray();
+		clear();
+		for (int i = 0; i < elts.length; i++) {
+			if (i == index) {
+				add(element);
+			}
+			add((Variant) elts[i]);
+		}
+	}
+
+	@Override
+	public Variant remove(int index) {
+		Variant ret = get(index);
+		if (index == size - 1) {
+			removeLast();
+			return ret;
+		}
+		Object[] elts = toArray();
+		clear();
+		for (int i = 0; i < elts.length; i++) {
+			if (i != index) {
+				add((Variant) elts[i]);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public void clear() {
+		modCount++;
+		size = 0;
+		shift = 5;
+		root = new Node(edit, new Object[32]);
+		tail = new Object[32];
+		tailOwned = true;
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		if (toIndex == size) {
+			while (size > fromIndex) {
+				removeLast();
+			}
+			return;
+		}
+		Object[] elts = toArray();
+		clear();
+		for (int i = 0; i < elts.length; i++) {
+			if (i < fromIndex || i >= toIndex) {
+				add((Variant) elts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Iterate over the elements without copying the shared child maps and
+	 * lists (which must not be modified)
+	 *
+	 * @return an iterator
+	 */
+	Iterator<Variant> readIterator() {
+		return new Iterator<Variant>() {
+			private final int expectedModCount = modCount;
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+
+			@Override
+			public Variant next() {
+				if (modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+				if (index >= size) {
+					throw new NoSuchElementException();
+				}
+				Variant ret = (Variant) arrayFor(index)[index & 31];
+				index++;
+				return ret;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -16,21 +16,19 @@
 
 package org.mbedsys.jvar;
 
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * The Variant abstract class describes an object which acts like a union for
@@ -66,23 +64,53 @@ public abstract class Variant implements Comparable<Object> {
 	 */
 	public static int UNMODIFIABLE = 0x00000002;
 
-	public static Variant IUD_GENERATOR = new VariantString("") {
-		private final long MSB = 0x8000000000000000L;
+	/**
+	 * Store the cloned maps and lists in persistent structures (flag used for
+	 * clone method): the clones of such maps and lists share their content
+	 * and are made in a constant time, each side copying only the parts it
+	 * modifies afterwards
+	 */
+	public static int PERSISTENT = 0x00000004;
 
-		private volatile Random numberGenerator = new Random();
+	/**
+	 * Lazy deep copy (flag used for clone method): the cloned maps and lists
+	 * are persistent and share their child maps and lists with the original
+	 * one, each side copying a child the first time it gets it. The original
+	 * keeps its storage and order; its views over all the elements (values,
+	 * entry set, iterators, sub lists, arrays) copy all the shared children
+	 * at once. The children obtained from the original before the clone must
+	 * no longer be modified.
+	 */
+	public static int COPY_ON_WRITE = 0x00000008;
 
-		@Override
-		public String toString() {
-			return VariantNumber.toHexString(MSB | numberGenerator.nextLong())
-					+ VariantNumber.toHexString(MSB
-							| numberGenerator.nextLong());
-		}
+	/**
+	 * Parse JSON using the JFlex generated scanner instead of the byte level
+	 * tokenizer (flag used for newParser method)
+	 */
+	public static int PARSE_JSON_SCANNER = 0x00000100;
 
-		@Override
-		public Type type() {
-			return Type.STRING;
-		}
-	};
+	/**
+	 * Read BSON documents as lazy {@link VariantBSONMap} views (flag used for
+	 * newParser method)
+	 */
+	public static int PARSE_BSON_LAZY = 0x00000200;
+
+	/**
+	 * Share the parsed map key strings through {@link KeyTable#SHARED} (flag
+	 * used for newParser method)
+	 */
+	public static int PARSE_INTERN_KEYS = 0x00000400;
+
+	/**
+	 * String variant giving a new random unique identifier each time its
+	 * value is read
+	 */
+	public static Variant IUD_GENERATOR = new VariantIdGenerator();
+
+	/**
+	 * Same as IUD_GENERATOR with identifiers starting with the current time
+	 */
+	public static Variant IUD_TIME_GENERATOR = new VariantIdGenerator(true);
 
 	public static int JSON_INDENT_MASK = 0x0000001F;
 
@@ -105,54 +133,49 @@ public abstract class Variant implements Comparable<Object> {
 		writer.write(spaces, 0, count);
 	}
 
-	private static final byte BCON_TOKEN_END = (byte) 0x00;
-	private static final byte BCON_TOKEN_NULL = (byte) 0x01;
-	private static final byte BCON_TOKEN_TRUE = (byte) 0x02;
-	private static final byte BCON_TOKEN_FALSE = (byte) 0x03;
-	private static final byte BCON_TOKEN_BYTE = (byte) 0x04;
-	private static final byte BCON_TOKEN_INT16 = (byte) 0x05;
-	private static final byte BCON_TOKEN_UINT16 = (byte) 0x06;
-	private static final byte BCON_TOKEN_INT32 = (byte) 0x07;
-	private static final byte BCON_TOKEN_UINT32 = (byte) 0x08;
-	private static final byte BCON_TOKEN_INT64 = (byte) 0x09;
-	private static final byte BCON_TOKEN_UINT64 = (byte) 0x0A;
-	private static final byte BCON_TOKEN_DOUBLE = (byte) 0x0B;
-	private static final byte BCON_TOKEN_DATETIME = (byte) 0x0C;
-	private static final byte BCON_TOKEN_LIST = (byte) 0x0E;
-	private static final byte BCON_TOKEN_MAP = (byte) 0x0F;
-	private static final byte BCON_TOKEN_DATA6 = (byte) 0xA0;
-	private static final byte BCON_TOKEN_STRING6 = (byte) 0xC0;
-	private static final byte BCON_TOKEN_DATA12 = (byte) 0x10;
-	private static final byte BCON_TOKEN_DATA20 = (byte) 0x20;
-	private static final byte BCON_TOKEN_DATA36 = (byte) 0x30;
-	private static final byte BCON_TOKEN_STRING12 = (byte) 0x50;
-	private static final byte BCON_TOKEN_STRING20 = (byte) 0x60;
-	private static final byte BCON_TOKEN_STRING36 = (byte) 0x70;
-
-	private static final int LENGTH2P6 = 64;
-	private static final int LENGTH2P12 = 4096;
-	private static final int LENGTH2P20 = 1048576;
-	private static final long LENGTH2P36 = 68719476736L;
-
-	private static final byte BSON_TOKEN_END = (byte) 0x00;
-	private static final byte BSON_TOKEN_NULL = (byte) 0x0A;
-	private static final byte BSON_TOKEN_UNDEF = (byte) 0x06;
-	private static final byte BSON_TOKEN_TRUE = (byte) 0x00;
-	private static final byte BSON_TOKEN_FALSE = (byte) 0x01;
-	private static final byte BSON_TOKEN_INT32 = (byte) 0x10;
-	private static final byte BSON_TOKEN_INT64 = (byte) 0x12;
-	private static final byte BSON_TOKEN_DOUBLE = (byte) 0x01;
-	private static final byte BSON_TOKEN_DATETIME = (byte) 0x09;
-	private static final byte BSON_TOKEN_STRING = (byte) 0x02;
-	private static final byte BSON_TOKEN_DATA = (byte) 0x05;
-	private static final byte BSON_TOKEN_JSCODE = (byte) 0x0D;
-	private static final byte BSON_TOKEN_OID = (byte) 0x07;
-	private static final byte BSON_TOKEN_BOOL = (byte) 0x08;
-	private static final byte BSON_TOKEN_MAP = (byte) 0x03;
-	private static final byte BSON_TOKEN_LIST = (byte) 0x04;
-	private static final byte BSON_TOKEN_GENERIC = (byte) 0x00;
-	private static final byte BSON_TOKEN_OLDUUID = (byte) 0x03;
-	private static final byte BSON_TOKEN_UUID = (byte) 0x04;
+	static final byte BCON_TOKEN_END = (byte) 0x00;
+	static final byte BCON_TOKEN_NULL = (byte) 0x01;
+	static final byte BCON_TOKEN_TRUE = (byte) 0x02;
+	static final byte BCON_TOKEN_FALSE = (byte) 0x03;
+	static final byte BCON_TOKEN_BYTE = (byte) 0x04;
+	static final byte BCON_TOKEN_INT16 = (byte) 0x05;
+	static final byte BCON_TOKEN_UINT16 = (byte) 0x06;
+	static final byte BCON_TOKEN_INT32 = (byte) 0x07;
+	static final byte BCON_TOKEN_UINT32 = (byte) 0x08;
+	static final byte BCON_TOKEN_INT64 = (byte) 0x09;
+	static final byte BCON_TOKEN_UINT64 = (byte) 0x0A;
+	static final byte BCON_TOKEN_DOUBLE = (byte) 0x0B;
+	static final byte BCON_TOKEN_DATETIME = (byte) 0x0C;
+	static final byte BCON_TOKEN_LIST = (byte) 0x0E;
+	static final byte BCON_TOKEN_MAP = (byte) 0x0F;
+	static final byte BCON_TOKEN_DATA6 = (byte) 0x80;
+	static final byte BCON_TOKEN_STRING6 = (byte) 0xC0;
+	static final byte BCON_TOKEN_DATA12 = (byte) 0x10;
+	static final byte BCON_TOKEN_DATA20 = (byte) 0x20;
+	static final byte BCON_TOKEN_DATA36 = (byte) 0x30;
+	static final byte BCON_TOKEN_STRING12 = (byte) 0x50;
+	static final byte BCON_TOKEN_STRING20 = (byte) 0x60;
+	static final byte BCON_TOKEN_STRING36 = (byte) 0x70;
+
+	static final byte BSON_TOKEN_END = (byte) 0x00;
+	static final byte BSON_TOKEN_NULL = (byte) 0x0A;
+	static final byte BSON_TOKEN_UNDEF = (byte) 0x06;
+	static final byte BSON_TOKEN_TRUE = (byte) 0x00;
+	static final byte BSON_TOKEN_FALSE = (byte) 0x01;
+	static final byte BSON_TOKEN_INT32 = (byte) 0x10;
+	static final byte BSON_TOKEN_INT64 = (byte) 0x12;
+	static final byte BSON_TOKEN_DOUBLE = (byte) 0x01;
+	static final byte BSON_TOKEN_DATETIME = (byte) 0x09;
+	static final byte BSON_TOKEN_STRING = (byte) 0x02;
+	static final byte BSON_TOKEN_DATA = (byte) 0x05;
+	static final byte BSON_TOKEN_JSCODE = (byte) 0x0D;
+	static final byte BSON_TOKEN_OID = (byte) 0x07;
+	static final byte BSON_TOKEN_BOOL = (byte) 0x08;
+	static final byte BSON_TOKEN_MAP = (byte) 0x03;
+	static final byte BSON_TOKEN_LIST = (byte) 0x04;
+	static final byte BSON_TOKEN_GENERIC = (byte) 0x00;
+	static final byte BSON_TOKEN_OLDUUID = (byte) 0x03;
+	static final byte BSON_TOKEN_UUID = (byte) 0x04;
 
 	public static final Variant TRUE = new VariantBool(true);
 
@@ -400,6 +423,19 @@ public abstract class Variant implements Comparable<Object> {
 	 * Abstract parser
 	 */
 	public static abstract class Parser {
+
+		KeyTable keyTable;
+
+		/**
+		 * Set the table used to share the map key strings between the parsed
+		 * documents
+		 * 
+		 * @param keyTable key table or null to disable the key sharing
+		 */
+		public void setKeyTable(KeyTable keyTable) {
+			this.keyTable = keyTable;
+		}
+
 		/**
 		 * Parse next node on the stream
 		 * 
@@ -428,28 +464,57 @@ public abstract class Variant implements Comparable<Object> {
 	 * @return the suitable parser
 	 */
 	public static Parser newParser(final InputStream input, Format format) {
+		return newParser(input, format, 0);
+	}
+
+	/**
+	 * Return the suitable parser corresponding to the given format
+	 * 
+	 * @param input Data stream
+	 * @param format Data format type
+	 * @param flags parser flags (PARSE_JSON_SCANNER, PARSE_BSON_LAZY,
+	 *            PARSE_INTERN_KEYS)
+	 * @return the suitable parser
+	 */
+	public static Parser newParser(final InputStream input, Format format,
+			int flags) {
+		Parser parser = createParser(input, format, flags);
+		if ((flags & PARSE_INTERN_KEYS) != 0) {
+			parser.setKeyTable(KeyTable.SHARED);
+		}
+		return parser;
+	}
+
+	private static Parser createParser(final InputStream input,
+			Format format, int flags) {
 		switch (format) {
 		case BCON:
-			return new Parser() {
-				@Override
-				public Variant next(boolean wait) throws IOException {
-					if (!wait && input.available() == 0) {
-						return null;
-					}
-					return parseBCON(input, null);
-				}
-			};
+			return new BCONReader(input);
 		case BSON:
+			if ((flags & PARSE_BSON_LAZY) != 0) {
+				return new Parser() {
+					@Override
+					public Variant next(boolean wait) throws IOException {
+						if (!wait && input.available() == 0) {
+							return null;
+						}
+						return new VariantBSONMap(readBSONDocument(input));
+					}
+				};
+			}
 			return new Parser() {
 				@Override
 				public Variant next(boolean wait) throws IOException {
 					if (!wait && input.available() == 0) {
 						return null;
 					}
-					return parseBSONDocument(input);
+					return parseBSONDocument(input, PathProjection.ALL, keyTable);
 				}
 			};
 		case JSON:
+			if ((flags & PARSE_JSON_SCANNER) == 0) {
+				return new JSONParser(input);
+			}
 			return new Parser() {
 				JSONScanner scanner = new JSONScanner(new InputStreamReader(
 						input));
@@ -480,456 +545,137 @@ public abstract class Variant implements Comparable<Object> {
 	}
 
 	/**
-	 * Write the value in JSON format
-	 * 
-	 * @param writer
-	 *            output stream writer
-	 * @throws IOException
-	 */
-	private static void serializeJSONList(OutputStreamWriter writer,
-			List<Variant> list, int flags) throws IOException {
-		boolean compact = (flags & FORMAT_JSON_COMPACT) != 0;
-		int indentStep = flags & JSON_INDENT_MASK;
-		int indentOff = (flags >> 16) + indentStep;
-		flags = (flags & 0xFFFF) | (indentOff << 16);
-		Iterator<Variant> it = list.iterator();
-		writer.write('[');
-		if (it.hasNext()) {
-			if (indentOff != 0) {
-				writer.write('\n');
-				appendSpaces(writer, indentOff);
-			}
-			serializeJSONElt(writer, it.next(), flags);
-			while (it.hasNext()) {
-				writer.write(',');
-				if (indentOff != 0) {
-					writer.write('\n');
-					appendSpaces(writer, indentOff);
-				} else if (!compact) {
-					writer.write(' ');
-				}
-				serializeJSONElt(writer, it.next(), flags);
-			}
-			if (indentOff != 0) {
-				writer.write('\n');
-				appendSpaces(writer, indentOff - indentStep);
-			}
-		}
-		writer.write(']');
-	}
-
-	/**
-	 * Write the value in JSON format
+	 * Return a parser only building the given paths of the parsed documents.
+	 * Other map keys are skipped without being materialized.
 	 * 
-	 * @param writer
-	 *            output stream writer
-	 * @throws IOException
+	 * @param input Data stream
+	 * @param format Data format type
+	 * @param paths dotted paths to keep (see
+	 *            {@link VariantMap#resolvePath(VariantMap, String)})
+	 * @return the suitable parser
 	 */
-	private static void serializeJSONMap(OutputStreamWriter writer,
-			Map<String, Variant> map, int flags) throws IOException {
-		Iterator<String> keys = map.keySet().iterator();
-		boolean compact = (flags & FORMAT_JSON_COMPACT) != 0;
-		int indentStep = flags & JSON_INDENT_MASK;
-		int indentOff = (flags >> 16) + indentStep;
-		flags = (flags & 0xFFFF) | (indentOff << 16);
-		String key;
-		writer.write('{');
-		if (keys.hasNext()) {
-			if (indentOff != 0) {
-				writer.write('\n');
-				appendSpaces(writer, indentOff);
-			}
-			key = keys.next();
-			VariantString.writeJSONTo(writer, key);
-			writer.write(':');
-			if (!compact) {
-				writer.write(' ');
-			}
-			serializeJSONElt(writer, map.get(key), flags);
-			while (keys.hasNext()) {
-				key = keys.next();
-				writer.write(',');
-				if (indentOff != 0) {
-					writer.write('\n');
-					appendSpaces(writer, indentOff);
-				} else if (!compact) {
-					writer.write(' ');
+	public static Parser newParser(final InputStream input, Format format,
+			Collection<String> paths) {
+		final PathProjection projection = PathProjection.compile(paths);
+		switch (format) {
+		case BCON:
+			// BCON keys follow their values: the projection can only be
+			// applied once the value is parsed
+			return new BCONReader(input) {
+				@Override
+				public Variant next(boolean wait) throws IOException {
+					Variant ret = super.next(wait);
+					if (ret == null) {
+						return null;
+					}
+					ret = projection.project(ret);
+					return ret == null ? NULL : ret;
 				}
-				VariantString.writeJSONTo(writer, key);
-				writer.write(':');
-				if (!compact) {
-					writer.write(' ');
+			};
+		case BSON:
+			return new Parser() {
+				@Override
+				public Variant next(boolean wait) throws IOException {
+					if (!wait && input.available() == 0) {
+						return null;
+					}
+					return parseBSONDocument(input, projection, keyTable);
 				}
-				serializeJSONElt(writer, map.get(key), flags);
-			}
-			if (indentOff != 0) {
-				writer.write('\n');
-				appendSpaces(writer, indentOff - indentStep);
-			}
+			};
+		case JSON:
+			return new JSONParser(input, projection);
+		default:
+			throw new IllegalArgumentException("Unsupported format");
 		}
-		writer.write('}');
 	}
 
 	protected static void serializeJSONElt(OutputStreamWriter writer,
 			Variant variant, int flags) throws IOException {
-		switch (variant.type()) {
-		case BOOL:
-			writer.append(variant.booleanValue() ? "true" : "false");
-			break;
-		case BYTE:
-			writer.append(Byte.toString(variant.byteValue()));
-			break;
-		case BYTEARRAY:
-		case STRING:
-		case DATETIME:
-			VariantString.writeJSONTo(writer, variant.toString());
-			break;
-		case LIST:
-			serializeJSONList(writer, variant.toList(), flags);
-			break;
-		case MAP:
-			serializeJSONMap(writer, variant.toMap(), flags);
-			break;
-		case NULL:
-			writer.append("null");
-			break;
-		case SHORT:
-		case USHORT:
-		case INT:
-		case UINT:
-		case LONG:
-		case ULONG:
-			writer.append(Long.toString(variant.longValue()));
-			break;
-		case DOUBLE:
-			writer.append(Double.toString(variant.doubleValue()));
-			break;
-		default:
-			break;
-
-		}
+		JSONCharWriter json = new JSONCharWriter(writer);
+		json.writeValue(variant, flags);
+		json.flush();
 	}
 
 	public static void serializeJSON(OutputStreamWriter writer,
 			Variant variant, int flags) throws IOException {
-		switch (variant.type()) {
-		case LIST:
-			serializeJSONList(writer, variant.toList(), flags);
-			break;
-		case MAP:
-			serializeJSONMap(writer, variant.toMap(), flags);
-			break;
-		default:
-			throw new IllegalArgumentException(
-					"The root node to serialize must be an map or an array");
-		}
+		JSONCharWriter json = new JSONCharWriter(writer);
+		json.write(variant, flags);
+		json.flush();
 	}
 
-	private static void write16(OutputStream output, byte type, short value)
-			throws IOException {
-		output.write(type);
-		output.write(((byte) ((value & 0xFF))));
-		output.write(((byte) (((value >> 8) & 0xFF))));
+	/**
+	 * Serialize a map or a list in JSON format, encoded in UTF-8
+	 * 
+	 * @param output output stream
+	 * @param variant root map or list
+	 * @param flags JSON_INDENT_MASK / FORMAT_JSON_COMPACT flags
+	 * @throws IOException on IO error
+	 */
+	public static void serializeJSON(OutputStream output, Variant variant,
+			int flags) throws IOException {
+		JSONByteWriter json = new JSONByteWriter(output);
+		json.write(variant, flags);
+		json.flush();
 	}
 
-	private static void write32(OutputStream output, byte type, int value)
-			throws IOException {
-		output.write(type);
-		output.write(((byte) ((value & 0xFF))));
-		output.write(((byte) (((value >> 8) & 0xFF))));
-		output.write(((byte) (((value >> 16) & 0xFF))));
-		output.write(((byte) (((value >> 24) & 0xFF))));
+	/**
+	 * Serialize a map or a list in JSON format, encoded in UTF-8, the large
+	 * lists and maps being encoded in parallel (same output as the
+	 * sequential serialization)
+	 * 
+	 * @param output output stream
+	 * @param variant root map or list
+	 * @param flags JSON_INDENT_MASK / FORMAT_JSON_COMPACT flags
+	 * @param pool pool running the encoding tasks
+	 * @throws IOException on IO error
+	 */
+	public static void serializeJSON(OutputStream output, Variant variant,
+			int flags, ForkJoinPool pool) throws IOException {
+		JSONByteWriter json = new JSONByteWriter(output);
+		json.setPool(pool);
+		json.write(variant, flags);
+		json.flush();
 	}
 
-	private static void write64(OutputStream output, byte type, long value)
-			throws IOException {
-		output.write(type);
-		output.write(((byte) ((value & 0xFF))));
-		output.write(((byte) (((value >> 8) & 0xFF))));
-		output.write(((byte) (((value >> 16) & 0xFF))));
-		output.write(((byte) (((value >> 24) & 0xFF))));
-		output.write(((byte) (((value >> 32) & 0xFF))));
-		output.write(((byte) (((value >> 40) & 0xFF))));
-		output.write(((byte) (((value >> 48) & 0xFF))));
-		output.write(((byte) (((value >> 56) & 0xFF))));
+	/**
+	 * Serialize a value in JSON format into a string builder
+	 * 
+	 * @param builder output string builder
+	 * @param variant value
+	 * @param flags JSON_INDENT_MASK / FORMAT_JSON_COMPACT flags
+	 */
+	static void serializeJSON(StringBuilder builder, Variant variant, int flags) {
+		try {
+			new JSONCharWriter(builder).writeValue(variant, flags);
+		} catch (IOException e) {
+			// Not thrown by a StringBuilder
+			throw new RuntimeException(e);
+		}
 	}
 
 	public static void serializeBCON(OutputStream output, Variant variant)
 			throws IOException {
-		serializeBCON(output, variant, null);
-	}
-
-	private static void serializeBCON(OutputStream output, Variant variant,
-			String key) throws IOException {
-		switch (variant.type()) {
-		case NULL:
-			output.write(BCON_TOKEN_NULL);
-			break;
-		case BOOL: // Case of BCON boolean
-			output.write((variant.booleanValue() ? BCON_TOKEN_TRUE
-					: BCON_TOKEN_FALSE));
-			break;
-		case BYTE: // Case of BCON boolean
-			output.write(BCON_TOKEN_BYTE);
-			output.write(variant.byteValue());
-			break;
-		case SHORT: {
-			write16(output, BCON_TOKEN_INT32, variant.shortValue());
-			break;
-		}
-		case USHORT: {
-			write16(output, BCON_TOKEN_UINT32, variant.shortValue());
-			break;
-		}
-		case INT: {
-			write32(output, BCON_TOKEN_INT32, variant.intValue());
-			break;
-		}
-		case UINT: {
-			write32(output, BCON_TOKEN_UINT32, variant.intValue());
-			break;
-		}
-		case LONG: {
-			write64(output, BCON_TOKEN_INT64, variant.longValue());
-			break;
-		}
-		case ULONG: {
-			write64(output, BCON_TOKEN_UINT64, variant.intValue());
-			break;
-		}
-		case DOUBLE: {
-			write64(output, BCON_TOKEN_DOUBLE, variant.longValue());
-			break;
-		}
-		case DATETIME: {
-			write64(output, BCON_TOKEN_DATETIME, variant.longValue());
-			break;
-		}
-		case MAP: // Case of BCON object
-		{
-			output.write(BCON_TOKEN_MAP);
-			for (Entry<String, Variant> entry : variant.toMap().entrySet()) {
-				serializeBCON(output, entry.getValue(), entry.getKey());
-			}
-			output.write(BCON_TOKEN_END);
-			break;
-		}
-		case LIST: // Case of BCON array
-		{
-			output.write(BCON_TOKEN_LIST);
-			for (Variant elt : variant.toList()) {
-				serializeBCON(output, elt, null);
-			}
-			output.write(BCON_TOKEN_END);
-			break;
-		}
-		case STRING: {
-			byte[] data = variant.toString().getBytes();
-			int len = data.length;
-			if (len < (LENGTH2P6)) {
-				output.write((byte) ((BCON_TOKEN_STRING6 & 0xFF) | (len & 0x3F)));
-				output.write(data);
-			} else if (len < (LENGTH2P12)) {
-				output.write((byte) ((BCON_TOKEN_STRING12 & 0xFF) | (len & 0x0F)));
-				output.write((byte) ((len & 0xFF0) >> 4));
-				output.write(data);
-			} else if (len < (LENGTH2P20)) {
-				output.write((byte) ((BCON_TOKEN_STRING20 & 0xFF) | (len & 0x0F)));
-				output.write((byte) ((len & 0xFF0) >> 4));
-				output.write((byte) ((len & 0xFF000) >> 12));
-				output.write(data);
-			} else if (len < (LENGTH2P36)) {
-				output.write((byte) ((BCON_TOKEN_STRING36 & 0xFF) | (len & 0x0F)));
-				output.write((byte) ((len & 0xFF0) >> 4));
-				output.write((byte) ((len & 0xFF000) >> 12));
-				output.write((byte) (len >> 20));
-				output.write(data);
-			} else {
-				throw new SerializerException("Fatal: too big String (length="
-						+ len + ")");
-			}
-			break;
-		}
-		case BYTEARRAY: // Case of BCON string
-		{
-			byte[] data = variant.toByteArray();
-			int len = data.length;
-			if (len < (LENGTH2P6)) {
-				output.write((byte) ((BCON_TOKEN_DATA6 & 0xFF) | (len & 0x3F)));
-				output.write(data);
-			} else if (len < (LENGTH2P12)) {
-				output.write((byte) ((BCON_TOKEN_DATA12 & 0xFF) | (len & 0x0F)));
-				output.write((byte) ((len & 0xFF0) >> 4));
-				output.write(data);
-			} else if (len < (LENGTH2P20)) {
-				output.write((byte) ((BCON_TOKEN_DATA20 & 0xFF) | (len & 0x0F)));
-				output.write((byte) ((len & 0xFF0) >> 4));
-				output.write((byte) ((len & 0xFF000) >> 12));
-				output.write(data);
-			} else if (len < (LENGTH2P36)) {
-				output.write((byte) ((BCON_TOKEN_DATA36 & 0xFF) | (len & 0x0F)));
-				output.write((byte) ((len & 0xFF0) >> 4));
-				output.write((byte) ((len & 0xFF000) >> 12));
-				output.write((byte) (len >> 20));
-				output.write(data);
-			} else {
-				throw new SerializerException(
-						"Fatal: too big byte array (length=" + len + ")");
-			}
-			break;
-		}
-		default:
-			throw new SerializerException("Fatal: QVariant type not managed.");
-
-		}
-
-		if (key != null) {
-			output.write(key.getBytes());
-			output.write('\0');
-		}
-	}
-
-	private static void write32(ByteArrayOutputStream output, int value) {
-		output.write((byte) ((value & 0xFF)));
-		output.write((byte) (((value >> 8) & 0xFF)));
-		output.write((byte) (((value >> 16) & 0xFF)));
-		output.write((byte) (((value >> 24) & 0xFF)));
-	}
-
-	private static void write64(ByteArrayOutputStream output, long value) {
-		output.write((byte) ((value & 0xFF)));
-		output.write((byte) (((value >> 8) & 0xFF)));
-		output.write((byte) (((value >> 16) & 0xFF)));
-		output.write((byte) (((value >> 24) & 0xFF)));
-		output.write((byte) (((value >> 32) & 0xFF)));
-		output.write((byte) (((value >> 40) & 0xFF)));
-		output.write((byte) (((value >> 48) & 0xFF)));
-		output.write((byte) (((value >> 56) & 0xFF)));
+		BCONWriter writer = new BCONWriter(output);
+		writer.write(variant);
+		writer.flush();
 	}
 
 	public static void serializeBSON(OutputStream output, Variant variant)
 			throws IOException {
-		output.write(serializeBSONDocument(variant));
-	}
-
-	private static byte[] serializeBSONDocument(Variant variant)
-			throws IOException {
-		ByteArrayOutputStream payload = new ByteArrayOutputStream();
-		switch (variant.type()) {
-		case MAP: // Case of BSON object
-		{
-			for (Entry<String, Variant> entry : variant.toMap().entrySet()) {
-				payload.write(serializeBSONElt(entry.getValue(), entry.getKey()));
-			}
-			break;
-		}
-		case LIST: // Case of BSON array
-		{
-			int i = 0;
-			for (Variant elt : variant.toList()) {
-				payload.write(serializeBSONElt(elt, String.valueOf(i++)));
-			}
-			break;
-		}
-		default:
-			throw new SerializerException("Fatal: Invalid document.");
-		}
-		byte[] payloadBytes = payload.toByteArray();
-		ByteArrayOutputStream ret = new ByteArrayOutputStream();
-		write32(ret, payloadBytes.length + 5);
-		ret.write(payloadBytes);
-		ret.write(BSON_TOKEN_END);
-		return ret.toByteArray();
+		BSONWriter writer = new BSONWriter();
+		writer.write(variant);
+		writer.writeTo(output);
 	}
 
-	private static byte[] serializeBSONElt(Variant variant, String key)
-			throws IOException {
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
-		switch (variant.type()) {
-		case NULL:
-			output.write(BSON_TOKEN_NULL);
-			output.write(key.getBytes());
-			output.write('\0');
-			break;
-		case BOOL: // Case of BSON boolean
-			output.write(BSON_TOKEN_BOOL);
-			output.write(key.getBytes());
-			output.write('\0');
-			output.write(variant.booleanValue() ? BSON_TOKEN_TRUE
-					: BSON_TOKEN_FALSE);
-			break;
-		case UINT:
-		case INT: {
-			output.write(BSON_TOKEN_INT32);
-			output.write(key.getBytes());
-			output.write('\0');
-			write32(output, variant.intValue());
-			break;
-		}
-		case ULONG:
-		case LONG: {
-			output.write(BSON_TOKEN_INT64);
-			output.write(key.getBytes());
-			output.write('\0');
-			write64(output, variant.intValue());
-			break;
-		}
-		case DOUBLE: {
-			output.write(BSON_TOKEN_DOUBLE);
-			output.write(key.getBytes());
-			output.write('\0');
-			write64(output, variant.longValue());
-			break;
-		}
-		case DATETIME: {
-			output.write(BSON_TOKEN_DATETIME);
-			output.write(key.getBytes());
-			output.write('\0');
-			write64(output, variant.longValue());
-			break;
-		}
-		case MAP: // Case of BSON object
-		{
-			output.write(BSON_TOKEN_MAP);
-			output.write(key.getBytes());
-			output.write('\0');
-			output.write(serializeBSONDocument(variant));
-			break;
-		}
-		case LIST: // Case of BSON array
-		{
-			output.write(BSON_TOKEN_LIST);
-			output.write(key.getBytes());
-			output.write('\0');
-			output.write(serializeBSONDocument(variant));
-			break;
-		}
-		case STRING: {
-			byte[] data = variant.toString().getBytes();
-			output.write(BSON_TOKEN_STRING);
-			output.write(key.getBytes());
-			output.write('\0');
-			write32(output, data.length + 1);
-			output.write(data);
-			output.write('\0');
-			break;
-		}
-		case BYTEARRAY: // Case of BSON string
-		{
-			byte[] data = variant.toByteArray();
-			output.write(BSON_TOKEN_DATA);
-			output.write(key.getBytes());
-			output.write('\0');
-			write32(output, data.length);
-			output.write(BSON_TOKEN_GENERIC);
-			output.write(data);
-			break;
-		}
-		default:
-			throw new SerializerException("Fatal: Variant type not managed.");
-
+	/**
+	 * Read one byte, failing at the end of the stream
+	 */
+	private static byte read8(InputStream input) throws IOException {
+		int c = input.read();
+		if (c < 0) {
+			throw new EOFException();
 		}
-		return output.toByteArray();
+		return (byte) c;
 	}
 
 	private static int read32(InputStream input) throws IOException {
@@ -937,10 +683,6 @@ public abstract class Variant implements Comparable<Object> {
 				| ((input.read() & 0xFF) << 16) | ((input.read() & 0xFF) << 24);
 	}
 
-	private static short read16(InputStream input) throws IOException {
-		return (short) ((input.read() & 0xFF) | ((input.read() & 0xFF) << 8));
-	}
-
 	private static long read64(InputStream input) throws IOException {
 		return (long) (input.read() & 0xFF)
 				| ((long) (input.read() & 0xFF) << 8)
@@ -952,162 +694,211 @@ public abstract class Variant implements Comparable<Object> {
 				| ((long) (input.read() & 0xFF) << 56);
 	}
 
-	private static Variant parseBCON(InputStream input, StringBuilder key)
-			throws IOException {
-		Variant ret;
-		byte c = (byte) input.read();
-		if ((c & 0x80) != 0) {
-			int len;
-			len = c & 0x3F;
-			byte[] buf = new byte[len];
-			for (int i = 0; i < len; i++) {
-				buf[i] = (byte) input.read();
-			}
-			ret = ((c & 0x40) != 0) ? new VariantString(new String(buf))
-					: new VariantByteArray(buf);
-		} else if ((c & 0xF0) != 0) {
-			int len;
-			len = c & 0x0F;
-			switch (c & 0x30) {
-			case 0x10:
-				len |= ((byte) input.read() & 0xFF) << 4;
-				break;
-			case 0x20:
-				len |= (((byte) input.read() & 0xFF) << 4)
-						| (((byte) input.read() & 0xFF) << 12);
-				break;
-			case 0x30:
-				len |= (((byte) input.read() & 0xFF) << 4)
-						| (((byte) input.read() & 0xFF) << 12)
-						| (((byte) input.read() & 0xFF) << 20);
-				break;
-			default:
-				throw new ParserException("Invalid "
-						+ (((c & 0x40) != 0) ? "BCON_TOKEN_STRING"
-								: "BCON_TOKEN_DATA") + " type "
-						+ VariantNumber.toHexString((byte) (c & 0x30)));
+	private static void skip(InputStream input, long count) throws IOException {
+		while (count > 0) {
+			long n = input.skip(count);
+			if (n <= 0) {
+				if (input.read() < 0) {
+					throw new EOFException();
+				}
+				n = 1;
 			}
-			byte[] buf = new byte[len];
-			for (int i = 0; i < len; i++) {
-				buf[i] = (byte) input.read();
+			count -= n;
+		}
+	}
+
+	/**
+	 * Read a raw BSON document
+	 * 
+	 * @param input data stream
+	 * @return the document bytes
+	 * @throws IOException on IO error
+	 */
+	private static byte[] readBSONDocument(InputStream input)
+			throws IOException {
+		int len = read32(input);
+		if (len < 5) {
+			throw new ParserException("Invalid BSON document length " + len);
+		}
+		byte[] ret = new byte[len];
+		ret[0] = (byte) len;
+		ret[1] = (byte) (len >> 8);
+		ret[2] = (byte) (len >> 16);
+		ret[3] = (byte) (len >> 24);
+		for (int off = 4; off < len;) {
+			int n = input.read(ret, off, len - off);
+			if (n < 0) {
+				throw new EOFException();
 			}
-			ret = (c & 0x40) != 0 ? new VariantString(new String(buf))
-					: new VariantByteArray(buf);
-		} else {
-			switch (c) {
-			case BCON_TOKEN_END:
-				return null;
-			case BCON_TOKEN_NULL:
-				ret = new VariantNull();
-				break;
-			case BCON_TOKEN_TRUE:
-				ret = new VariantBool(true);
-				break;
-			case BCON_TOKEN_FALSE:
-				ret = new VariantBool(false);
-				break;
-			case BCON_TOKEN_BYTE:
-				ret = new VariantByte((byte) input.read());
-				break;
-			case BCON_TOKEN_INT16:
-				ret = new VariantShort(read16(input));
-				break;
-			case BCON_TOKEN_UINT16:
-				ret = new VariantUShort(read16(input));
-				break;
-			case BCON_TOKEN_INT32:
-				ret = new VariantInt(read32(input));
-				break;
-			case BCON_TOKEN_UINT32:
-				ret = new VariantUInt(read32(input));
-				break;
-			case BCON_TOKEN_INT64:
-				ret = new VariantLong(read64(input));
-				break;
-			case BCON_TOKEN_UINT64:
-				ret = new VariantULong(read64(input));
-				break;
-			case BCON_TOKEN_DOUBLE:
-				ret = new VariantDouble((double) read64(input));
-				break;
-			case BCON_TOKEN_DATETIME:
-				ret = new VariantDateTime(read64(input));
-				break;
-			case BCON_TOKEN_MAP: {
-				HashMap<String, Variant> map = new HashMap<>();
-				while (true) {
-					StringBuilder subKey = new StringBuilder();
-					Variant subValue = parseBCON(input, subKey);
-					if (subValue == null)
-						break;
-					map.put(subKey.toString(), subValue);
+			off += n;
+		}
+		return ret;
+	}
+
+	/**
+	 * Parse state shared by a BSON document and its nested documents
+	 */
+	private static final class BSONKeys {
+
+		/**
+		 * Table sharing the key strings or null
+		 */
+		final KeyTable table;
+
+		/**
+		 * Bytes of the key being read, decoded before the value
+		 */
+		byte[] buffer = new byte[64];
+
+		BSONKeys(KeyTable table) {
+			this.table = table;
+		}
+	}
+
+	static Variant parseBSONDocument(InputStream input,
+			PathProjection node, KeyTable keys) throws IOException {
+		read32(input);
+		VariantMap map = new VariantMap();
+		parseBSONElts(input, map, null, node, new BSONKeys(keys));
+		return map;
+	}
+
+	/**
+	 * Parse the elements of a BSON document into a map or a list
+	 * 
+	 * @param input data stream
+	 * @param map target map (null for a list)
+	 * @param list target list (null for a map)
+	 * @param node projection to apply to the document
+	 * @param keys key table and buffer of the parse
+	 * @throws IOException on IO/parsing error
+	 */
+	private static void parseBSONElts(InputStream input, VariantMap map,
+			VariantList list, PathProjection node, BSONKeys keys)
+			throws IOException {
+		String key = null;
+		byte c, t;
+		while ((t = read8(input)) != BSON_TOKEN_END) {
+			PathProjection child = node;
+			if (map != null) {
+				byte[] buf = keys.buffer;
+				int len = 0;
+				while ((c = read8(input)) != '\0') {
+					if (len == buf.length) {
+						buf = keys.buffer = Arrays.copyOf(buf, len * 2);
+					}
+					buf[len++] = c;
 				}
-				ret = new VariantMap(map);
-				break;
-			}
-			case BCON_TOKEN_LIST: {
-				ArrayList<Variant> list = new ArrayList<>();
-				while (true) {
-					Variant subValue = parseBCON(input, null);
-					if (subValue == null)
-						break;
-					list.add(subValue);
+				key = keys.table != null ? keys.table.intern(buf, 0, len)
+						: new String(buf, 0, len, StandardCharsets.UTF_8);
+				child = node.child(key);
+			} else {
+				// List indexes are implicit
+				while (read8(input) != '\0') {
 				}
-				ret = new VariantList(list);
-				break;
 			}
-			default:
-				throw new ParserException("Invalid token " + c);
+			if (child == null) {
+				skipBSONElt(input, t);
+				continue;
 			}
-		}
-		if (key != null) {
-			while ((c = (byte) input.read()) != '\0') {
-				key.append((char)c);
+			Variant value = parseBSONElt(input, t, child, keys);
+			if (value == null) {
+				continue;
+			}
+			if (map != null) {
+				map.put(key, value);
+			} else {
+				list.add(value);
 			}
 		}
-		return ret;
 	}
 
-	private static Variant parseBSONDocument(InputStream input)
+	private static void skipBSONElt(InputStream input, byte t)
 			throws IOException {
-		read32(input);
-		HashMap<String, Variant> map = new HashMap<>();
-		while (true) {
-			StringBuilder key = new StringBuilder();
-			Variant value = parseBSONElt(input, key);
-			if (value == null)
-				break;
-			map.put(key.toString(), value);
+		switch (t) {
+		case BSON_TOKEN_UNDEF:
+		case BSON_TOKEN_NULL:
+			break;
+		case BSON_TOKEN_BOOL:
+			skip(input, 1);
+			break;
+		case BSON_TOKEN_INT32:
+			skip(input, 4);
+			break;
+		case BSON_TOKEN_INT64:
+		case BSON_TOKEN_DOUBLE:
+		case BSON_TOKEN_DATETIME:
+			skip(input, 8);
+			break;
+		case BSON_TOKEN_STRING:
+		case BSON_TOKEN_JSCODE:
+			skip(input, read32(input));
+			break;
+		case BSON_TOKEN_OID:
+			skip(input, 12);
+			break;
+		case BSON_TOKEN_DATA:
+			skip(input, read32(input) + 1);
+			break;
+		case BSON_TOKEN_MAP:
+		case BSON_TOKEN_LIST:
+			skip(input, read32(input) - 4);
+			break;
+		default:
+			throw new ParserException("Unsupported token "
+					+ VariantNumber.toHexString(t));
 		}
-		return new VariantMap(map);
 	}
 
-	private static Variant parseBSONElt(InputStream input, StringBuilder key)
-			throws IOException {
-		byte c, t = (byte) input.read();
+	/**
+	 * Parse a BSON element value
+	 * 
+	 * @param input data stream
+	 * @param t element type
+	 * @param node projection to apply to the element
+	 * @param keys key table and buffer of the parse
+	 * @return the value or null if dropped by the projection
+	 * @throws IOException on IO/parsing error
+	 */
+	private static Variant parseBSONElt(InputStream input, byte t,
+			PathProjection node, BSONKeys keys) throws IOException {
 		Variant res;
-		if (t == BSON_TOKEN_END) {
-			return null;
+		switch (t) {
+		case BSON_TOKEN_MAP: {
+			read32(input);
+			VariantMap map = new VariantMap();
+			parseBSONElts(input, map, null, node, keys);
+			return map;
 		}
-		while ((c = (byte) input.read()) != '\0') {
-			key.append((char)c);
+		case BSON_TOKEN_LIST: {
+			read32(input);
+			VariantList list = new VariantList();
+			parseBSONElts(input, null, list, node, keys);
+			return list;
+		}
+		default:
+			if (node != PathProjection.ALL) {
+				skipBSONElt(input, t);
+				return null;
+			}
+			break;
 		}
 		switch (t) {
 		case BSON_TOKEN_UNDEF:
 		case BSON_TOKEN_NULL:
-			res = new VariantNull();
+			res = NULL;
 			break;
 		case BSON_TOKEN_BOOL:
-			res = new VariantBool((byte) input.read() == BSON_TOKEN_TRUE);
+			res = (byte) input.read() == BSON_TOKEN_TRUE ? TRUE : FALSE;
 			break;
 		case BSON_TOKEN_INT32:
-			res = new VariantInt(read32(input));
+			res = VariantInt.valueOf(read32(input));
 			break;
 		case BSON_TOKEN_INT64:
-			res = new VariantLong(read64(input));
+			res = VariantLong.valueOf(read64(input));
 			break;
 		case BSON_TOKEN_DOUBLE:
-			res = new VariantDouble((double) read64(input));
+			res = new VariantDouble(Double.longBitsToDouble(read64(input)));
 			break;
 		case BSON_TOKEN_DATETIME:
 			res = new VariantDateTime(read64(input));
@@ -1120,7 +911,7 @@ public abstract class Variant implements Comparable<Object> {
 				buf[i] = (byte) input.read();
 			}
 			input.read();
-			res = new VariantString(new String(buf));
+			res = VariantString.valueOf(new String(buf, StandardCharsets.UTF_8));
 			break;
 		}
 		case BSON_TOKEN_OID: {
@@ -1133,8 +924,8 @@ public abstract class Variant implements Comparable<Object> {
 			break;
 		}
 		case BSON_TOKEN_DATA: {
-			byte type = (byte) input.read();
 			int len = read32(input);
+			byte type = (byte) input.read();
 			byte[] buf = new byte[len];
 			for (int i = 0; i < len; i++) {
 				buf[i] = (byte) input.read();
@@ -1148,32 +939,6 @@ public abstract class Variant implements Comparable<Object> {
 			}
 			break;
 		}
-		case BSON_TOKEN_MAP: {
-			read32(input);
-			HashMap<String, Variant> map = new HashMap<>();
-			while (true) {
-				StringBuilder subKey = new StringBuilder();
-				Variant subValue = parseBSONElt(input, subKey);
-				if (subValue == null)
-					break;
-				map.put(subKey.toString(), subValue);
-			}
-			res = new VariantMap(map);
-			break;
-		}
-		case BSON_TOKEN_LIST: {
-			read32(input);
-			ArrayList<Variant> list = new ArrayList<>();
-			while (true) {
-				StringBuilder subKey = new StringBuilder();
-				Variant subValue = parseBSONElt(input, subKey);
-				if (subValue == null)
-					break;
-				list.add(Integer.parseInt(subKey.toString()), subValue);
-			}
-			res = new VariantList(list);
-			break;
-		}
 		default:
 			throw new ParserException("Unsupported token "
 					+ VariantNumber.toHexString(t));
@@ -1183,7 +948,7 @@ public abstract class Variant implements Comparable<Object> {
 
 	private static Variant parseJSONObject(JSONScanner scanner)
 			throws IOException {
-		HashMap<String, Variant> map = new HashMap<>();
+		VariantMap map = new VariantMap();
 		JSONTocken tocken;
 		String key = null;
 		Variant value = null;
@@ -1194,7 +959,7 @@ public abstract class Variant implements Comparable<Object> {
 				if (value != null) {
 					map.put(key, value);
 				}
-				return new VariantMap(map);
+				return map;
 			case JSONTocken.TELEMENTSEP:
 				if (value == null) {
 					throwJSONError(tocken, JSONTocken.TSTRING);
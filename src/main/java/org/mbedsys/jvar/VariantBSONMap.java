@@ -0,0 +1,461 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lazy map view over a raw BSON document.
+ *
+ * The document bytes are not copied: the element offsets are indexed on the
+ * first access and each value is only decoded when requested with
+ * {@link #get(Object)}. Nested documents are themselves lazy views over a
+ * slice of the same buffer.
+ *
+ * The map is fully decoded as soon as it is modified or one of its
+ * collection views is requested. As long as no decoded value has been
+ * modified, {@link #isModified()} returns false and the original bytes are
+ * written as is by {@link Variant#serializeBSON(java.io.OutputStream, Variant)}.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class VariantBSONMap extends VariantMap {
+
+	/**
+	 * Index a HashMap above this number of keys (linear search below)
+	 */
+	private static final int HASH_INDEX_THRESHOLD = 8;
+
+	private final ByteBuffer buffer;
+
+	private int count = -1;
+	private String[] keys;
+	private int[] offsets;
+	private byte[] types;
+	private Variant[] values;
+	private ListSnapshot[] snapshots;
+	private HashMap<String, Integer> index;
+	private boolean materialized;
+
+	/**
+	 * Elements of a decoded list, used to detect modifications
+	 */
+	private static class ListSnapshot {
+		Variant[] elements;
+		ListSnapshot[] lists;
+	}
+
+	/**
+	 * Lazy BSON map constructor
+	 *
+	 * @param buffer buffer holding a BSON document at its current position
+	 *            (the buffer position is not modified)
+	 */
+	public VariantBSONMap(ByteBuffer buffer) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.order(ByteOrder.LITTLE_ENDIAN);
+		int length = slice.getInt(slice.position());
+		if (length < 5 || length > slice.remaining()) {
+			throw new IllegalArgumentException("Invalid BSON document length "
+					+ length);
+		}
+		slice = slice.slice();
+		slice.limit(length);
+		this.buffer = slice.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Lazy BSON map constructor
+	 *
+	 * @param data BSON document
+	 */
+	public VariantBSONMap(byte[] data) {
+		this(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Get the raw BSON document
+	 *
+	 * @return a read only buffer holding the original document bytes
+	 */
+	public ByteBuffer rawBuffer() {
+		return buffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Test if the map or one of its decoded values has been modified since
+	 * it has been read
+	 *
+	 * @return false if the raw document still matches the map content
+	 */
+	public boolean isModified() {
+		if (count < 0) {
+			return false;
+		}
+		if (materialized) {
+			if (data.size() != count) {
+				return true;
+			}
+			for (int i = 0; i < count; i++) {
+				if (data.get(keys[i]) != values[i]) {
+					return true;
+				}
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (values[i] != null && isModified(values[i], snapshots[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isModified(Variant value, ListSnapshot snapshot) {
+		if (value instanceof VariantBSONMap) {
+			return ((VariantBSONMap) value).isModified();
+		} else if (snapshot == null) {
+			return false;
+		}
+		VariantList list = (VariantList) value;
+		if (list.size() != snapshot.elements.length) {
+			return true;
+		}
+		for (int i = 0; i < snapshot.elements.length; i++) {
+			Variant elt = list.get(i);
+			Variant prev = snapshot.elements[i];
+			if (elt != prev) {
+				// Packed lists build a new variant on each access
+				if (!(elt instanceof VariantNumber)
+						|| elt.getClass() != prev.getClass()
+						|| !elt.equals(prev)) {
+					return true;
+				}
+			} else if (isModified(prev, snapshot.lists[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Build the element offset index
+	 */
+	private void index() {
+		if (count >= 0) {
+			return;
+		}
+		int n = 0;
+		int capacity = 8;
+		String[] keys = new String[capacity];
+		int[] offsets = new int[capacity];
+		byte[] types = new byte[capacity];
+		int pos = 4;
+		byte t;
+		while ((t = buffer.get(pos++)) != BSON_TOKEN_END) {
+			int end = pos;
+			while (buffer.get(end) != 0) {
+				end++;
+			}
+			if (n == capacity) {
+				capacity *= 2;
+				keys = Arrays.copyOf(keys, capacity);
+				offsets = Arrays.copyOf(offsets, capacity);
+				types = Arrays.copyOf(types, capacity);
+			}
+			keys[n] = decodeString(buffer, pos, end - pos);
+			types[n] = t;
+			offsets[n] = end + 1;
+			pos = end + 1 + eltSize(buffer, t, end + 1);
+			n++;
+		}
+		if (n > HASH_INDEX_THRESHOLD) {
+			index = new HashMap<>(n * 2);
+			for (int i = 0; i < n; i++) {
+				index.put(keys[i], i);
+			}
+		}
+		this.keys = keys;
+		this.offsets = offsets;
+		this.types = types;
+		this.values = new Variant[n];
+		this.snapshots = new ListSnapshot[n];
+		this.count = n;
+	}
+
+	private int slot(Object key) {
+		index();
+		if (index != null) {
+			Integer i = index.get(key);
+			return i == null ? -1 : i;
+		}
+		for (int i = 0; i < count; i++) {
+			if (keys[i].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private Variant value(int i) {
+		if (values[i] == null) {
+			values[i] = decode(buffer, types[i], offsets[i]);
+			if (types[i] == BSON_TOKEN_LIST) {
+				snapshots[i] = snapshot(values[i].toList());
+			}
+		}
+		return values[i];
+	}
+
+	/**
+	 * Decode all the values, the map is no more lazy
+	 */
+	private void materialize() {
+		if (materialized) {
+			return;
+		}
+		index();
+		data.clear();
+		for (int i = 0; i < count; i++) {
+			data.put(keys[i], value(i));
+		}
+		materialized = true;
+	}
+
+	/**
+	 * Compute the size of an element value
+	 */
+	private static int eltSize(ByteBuffer buffer, byte t, int pos) {
+		switch (t) {
+		case BSON_TOKEN_UNDEF:
+		case BSON_TOKEN_NULL:
+			return 0;
+		case BSON_TOKEN_BOOL:
+			return 1;
+		case BSON_TOKEN_INT32:
+			return 4;
+		case BSON_TOKEN_INT64:
+		case BSON_TOKEN_DOUBLE:
+		case BSON_TOKEN_DATETIME:
+			return 8;
+		case BSON_TOKEN_STRING:
+		case BSON_TOKEN_JSCODE:
+			return 4 + buffer.getInt(pos);
+		case BSON_TOKEN_OID:
+			return 12;
+		case BSON_TOKEN_DATA:
+			return 5 + buffer.getInt(pos);
+		case BSON_TOKEN_MAP:
+		case BSON_TOKEN_LIST:
+			return buffer.getInt(pos);
+		default:
+			throw new IllegalArgumentException("Unsupported BSON token "
+					+ VariantNumber.toHexString(t));
+		}
+	}
+
+	private static String decodeString(ByteBuffer buffer, int pos, int len) {
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + pos, len,
+					StandardCharsets.UTF_8);
+		}
+		return new String(getBytes(buffer, pos, len), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] getBytes(ByteBuffer buffer, int pos, int len) {
+		byte[] ret = new byte[len];
+		ByteBuffer src = buffer.duplicate();
+		src.position(pos);
+		src.get(ret);
+		return ret;
+	}
+
+	/**
+	 * Decode an element value
+	 */
+	private static Variant decode(ByteBuffer buffer, byte t, int pos) {
+		switch (t) {
+		case BSON_TOKEN_UNDEF:
+		case BSON_TOKEN_NULL:
+			return NULL;
+		case BSON_TOKEN_BOOL:
+			return buffer.get(pos) == BSON_TOKEN_TRUE ? TRUE : FALSE;
+		case BSON_TOKEN_INT32:
+			return VariantInt.valueOf(buffer.getInt(pos));
+		case BSON_TOKEN_INT64:
+			return VariantLong.valueOf(buffer.getLong(pos));
+		case BSON_TOKEN_DOUBLE:
+			return new VariantDouble(buffer.getDouble(pos));
+		case BSON_TOKEN_DATETIME:
+			return new VariantDateTime(buffer.getLong(pos));
+		case BSON_TOKEN_STRING:
+		case BSON_TOKEN_JSCODE:
+			return VariantString.valueOf(decodeString(buffer, pos + 4,
+					buffer.getInt(pos) - 1));
+		case BSON_TOKEN_OID:
+			return new VariantByteArray(getBytes(buffer, pos, 12));
+		case BSON_TOKEN_DATA:
+			return new VariantByteArray(getBytes(buffer, pos + 5,
+					buffer.getInt(pos)));
+		case BSON_TOKEN_MAP: {
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(pos);
+			return new VariantBSONMap(slice);
+		}
+		case BSON_TOKEN_LIST:
+			return decodeList(buffer, pos);
+		default:
+			throw new IllegalArgumentException("Unsupported BSON token "
+					+ VariantNumber.toHexString(t));
+		}
+	}
+
+	private static VariantList decodeList(ByteBuffer buffer, int pos) {
+		VariantList list = new VariantList();
+		pos += 4;
+		byte t;
+		while ((t = buffer.get(pos++)) != BSON_TOKEN_END) {
+			while (buffer.get(pos++) != 0) {
+			}
+			list.add(decode(buffer, t, pos));
+			pos += eltSize(buffer, t, pos);
+		}
+		return list;
+	}
+
+	private static ListSnapshot snapshot(VariantList list) {
+		ListSnapshot ret = new ListSnapshot();
+		int n = list.size();
+		ret.elements = list.toArray(new Variant[n]);
+		ret.lists = new ListSnapshot[n];
+		for (int i = 0; i < n; i++) {
+			if (ret.elements[i].type() == Type.LIST) {
+				ret.lists[i] = snapshot(ret.elements[i].toList());
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public int size() {
+		if (materialized) {
+			return super.size();
+		}
+		index();
+		return count;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (materialized) {
+			return super.containsKey(key);
+		}
+		return slot(key) >= 0;
+	}
+
+	@Override
+	public Variant get(Object key) {
+		if (materialized) {
+			return super.get(key);
+		}
+		int i = slot(key);
+		return i < 0 ? null : value(i);
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		materialize();
+		return super.containsValue(value);
+	}
+
+	@Override
+	public Variant put(String key, Variant value) {
+		materialize();
+		return super.put(key, value);
+	}
+
+	@Override
+	public Variant remove(Object key) {
+		materialize();
+		return super.remove(key);
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends Variant> m) {
+		materialize();
+		super.putAll(m);
+	}
+
+	@Override
+	public void clear() {
+		materialize();
+		super.clear();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		materialize();
+		return super.keySet();
+	}
+
+	@Override
+	public Collection<Variant> values() {
+		materialize();
+		return super.values();
+	}
+
+	@Override
+	public Set<java.util.Map.Entry<String, Variant>> entrySet() {
+		materialize();
+		return super.entrySet();
+	}
+
+	@Override
+	Iterator<java.util.Map.Entry<String, Variant>> readIterator() {
+		materialize();
+		return super.readIterator();
+	}
+
+	@Override
+	public VariantList toList() {
+		materialize();
+		return super.toList();
+	}
+
+	@Override
+	public Variant clone(int flags) {
+		if (!isModified() && (flags & UNMODIFIABLE) == 0) {
+			// The raw document is immutable: share it
+			return new VariantBSONMap(buffer);
+		}
+		materialize();
+		return super.clone(flags);
+	}
+}
@@ -35,6 +35,24 @@ public class VariantByte extends VariantNumber {
 		data = value;
 	}
 
+	private static final VariantByte[] CACHE = new VariantByte[256];
+
+	static {
+		for (int i = 0; i < CACHE.length; i++) {
+			CACHE[i] = new VariantByte((byte) i);
+		}
+	}
+
+	/**
+	 * Get the shared variant holding the given value
+	 * 
+	 * @param value
+	 * @return a variant
+	 */
+	public static VariantByte valueOf(byte value) {
+		return CACHE[value & 0xFF];
+	}
+
 	@Override
 	public boolean booleanValue() {
 		return data != 0;
@@ -81,7 +81,7 @@ public class VariantByteArray extends Variant {
 
 	@Override
 	public int compareTo(Object other) {
-		return data == ((VariantByteArray)other).data? 0 : -1;
+		return data == ((VariantByteArray)other).toByteArray()? 0 : -1;
 	}
 
 	@Override
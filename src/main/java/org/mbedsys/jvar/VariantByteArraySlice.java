@@ -0,0 +1,87 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte array variant backed by a buffer slice, copied on the first call to
+ * {@link #toByteArray()}
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class VariantByteArraySlice extends VariantByteArray {
+
+	private final ByteBuffer slice;
+
+	/**
+	 * Constructor from a buffer
+	 *
+	 * @param slice buffer holding the bytes between its position and its
+	 *            limit (the buffer is not copied)
+	 */
+	public VariantByteArraySlice(ByteBuffer slice) {
+		super(null);
+		this.slice = slice.slice();
+	}
+
+	/**
+	 * Get the bytes without copying them
+	 *
+	 * @return a read only buffer
+	 */
+	public ByteBuffer slice() {
+		return slice.asReadOnlyBuffer();
+	}
+
+	@Override
+	public byte[] toByteArray() {
+		if (data == null) {
+			data = new byte[slice.remaining()];
+			slice.duplicate().get(data);
+		}
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		toByteArray();
+		return super.toString();
+	}
+
+	@Override
+	public int compareTo(Object other) {
+		return toByteArray() == ((VariantByteArray) other).toByteArray() ? 0
+				: -1;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !slice.hasRemaining();
+	}
+
+	@Override
+	public boolean isNull() {
+		return false;
+	}
+
+	@Override
+	public Variant clone(int flags) {
+		return new VariantByteArray(toByteArray());
+	}
+}
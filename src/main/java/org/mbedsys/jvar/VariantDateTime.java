@@ -16,9 +16,7 @@
 
 package org.mbedsys.jvar;
 
-import java.util.Calendar;
 import java.util.Date;
-import java.util.TimeZone;
 
 /**
  * 
@@ -26,56 +24,38 @@ import java.util.TimeZone;
  * Copyright 2014 MbedSYS
  */
 public class VariantDateTime extends Variant {
-	private static Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("Europe/Paris"));
-
+	/**
+	 * Format a date with the default {@link DateTimeFormat}
+	 * 
+	 * @param date date to format
+	 * @return a String
+	 */
 	public static String toString(Date date) {
-		StringBuffer buff = new StringBuffer();
-
-		synchronized (calendar) {
-			calendar.setTime(date);
-
-			buff.insert(0, calendar.get(Calendar.SECOND));
-			if (buff.length() < 2) {
-				buff.insert(0, '0');
-			}
-			buff.insert(0, ':');
-			buff.insert(0, calendar.get(Calendar.MINUTE));
-			if (buff.length() < 5) {
-				buff.insert(0, '0');
-			}
-			buff.insert(0, ':');
-			buff.insert(0, calendar.get(Calendar.HOUR_OF_DAY));
-			if (buff.length() < 8) {
-				buff.insert(0, ' ');
-			}
-			buff.insert(0, ' ');
-			buff.insert(0, calendar.get(Calendar.DAY_OF_MONTH));
-			if (buff.length() < 11) {
-				buff.insert(0, '0');
-			}
-			buff.insert(0, '-');
-			buff.insert(0, calendar.get(Calendar.MONTH) + 1);
-			if (buff.length() < 14) {
-				buff.insert(0, '0');
-			}
-			buff.insert(0, '-');
-			buff.insert(0, calendar.get(Calendar.YEAR));
-		}
-
-		return buff.toString();
+		return DateTimeFormat.getDefault().format(date.getTime());
 	}
 
+	/**
+	 * Get a date from its fields in the zone of the default
+	 * {@link DateTimeFormat}
+	 * 
+	 * @param month month from 0 (January) to 11
+	 * @return a date
+	 */
 	public static Date getDate(int year, int month, int day, int hour, int minute, int second, int millisecond) {
-		synchronized (calendar) {
-			calendar.set(Calendar.YEAR, year);
-			calendar.set(Calendar.MONTH, month);
-			calendar.set(Calendar.DAY_OF_MONTH, day);
-			calendar.set(Calendar.HOUR_OF_DAY, hour);
-			calendar.set(Calendar.MINUTE, minute);
-			calendar.set(Calendar.SECOND, second);
-			calendar.set(Calendar.MILLISECOND, millisecond);
-			return calendar.getTime();
-		}
+		return new Date(DateTimeFormat.getDefault().toMillis(year, month, day,
+				hour, minute, second, millisecond));
+	}
+
+	/**
+	 * Parse a date formatted by {@link #toString()}, in the zone of the
+	 * default {@link DateTimeFormat}
+	 * 
+	 * @param text text to parse
+	 * @return a date time variant
+	 * @throws IllegalArgumentException if the text is not a valid date time
+	 */
+	public static VariantDateTime parse(String text) {
+		return new VariantDateTime(DateTimeFormat.getDefault().parse(text));
 	}
 
 	private long data;
@@ -135,7 +115,17 @@ public class VariantDateTime extends Variant {
 
 	@Override
 	public String toString() {
-		return toString(new Date(data));
+		return DateTimeFormat.getDefault().format(data);
+	}
+
+	/**
+	 * Format the date with the given formatter
+	 * 
+	 * @param format formatter
+	 * @return a String
+	 */
+	public String toString(DateTimeFormat format) {
+		return format.format(data);
 	}
 
 	@Override
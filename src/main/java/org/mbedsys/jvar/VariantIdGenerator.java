@@ -0,0 +1,97 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * String variant giving a new unique identifier each time its value is read
+ * (32 upper case hexadecimal digits, the first digit of each 16 digits half
+ * being 8 or more).
+ *
+ * The random numbers come from the per thread {@link ThreadLocalRandom}, so
+ * the threads do not contend on a shared seed. In time ordered mode, the
+ * first half holds the current time in milliseconds: identifiers generated
+ * in sequence are close in index order.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class VariantIdGenerator extends VariantString {
+
+	private static final long MSB = 0x8000000000000000L;
+
+	private static final char[] HEX = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+	private final boolean timeOrdered;
+
+	/**
+	 * Random identifier generator constructor
+	 */
+	public VariantIdGenerator() {
+		this(false);
+	}
+
+	/**
+	 * Identifier generator constructor
+	 *
+	 * @param timeOrdered if true, the identifiers start with the current time
+	 *            in milliseconds followed by 16 random bits
+	 */
+	public VariantIdGenerator(boolean timeOrdered) {
+		super("");
+		this.timeOrdered = timeOrdered;
+	}
+
+	/**
+	 * Generate a new identifier
+	 *
+	 * @return a String of 32 hexadecimal digits
+	 */
+	public String nextId() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long high;
+		if (timeOrdered) {
+			high = (System.currentTimeMillis() << 16)
+					| (random.nextInt() & 0xFFFF);
+		} else {
+			high = random.nextLong();
+		}
+		char[] buf = new char[32];
+		putHex(buf, 0, MSB | high);
+		putHex(buf, 16, MSB | random.nextLong());
+		return new String(buf);
+	}
+
+	private static void putHex(char[] buf, int off, long value) {
+		for (int i = off + 15; i >= off; i--) {
+			buf[i] = HEX[(int) value & 0xF];
+			value >>>= 4;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return nextId();
+	}
+
+	@Override
+	public Type type() {
+		return Type.STRING;
+	}
+}
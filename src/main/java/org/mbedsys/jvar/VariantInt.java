@@ -36,6 +36,28 @@ public class VariantInt extends VariantNumber {
 		data = value;
 	}
 
+	private static final VariantInt[] CACHE = new VariantInt[CACHE_HIGH - CACHE_LOW + 1];
+
+	static {
+		for (int i = 0; i < CACHE.length; i++) {
+			CACHE[i] = new VariantInt(i + CACHE_LOW);
+		}
+	}
+
+	/**
+	 * Get a variant holding the given value. Values from CACHE_LOW to
+	 * CACHE_HIGH are shared instances.
+	 * 
+	 * @param value
+	 * @return a variant
+	 */
+	public static VariantInt valueOf(int value) {
+		if (value >= CACHE_LOW && value <= CACHE_HIGH) {
+			return CACHE[value - CACHE_LOW];
+		}
+		return new VariantInt(value);
+	}
+
 	@Override
 	public boolean booleanValue() {
 		return data != 0;
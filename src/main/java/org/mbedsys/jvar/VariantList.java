@@ -16,16 +16,14 @@
 
 package org.mbedsys.jvar;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
 
 /**
  * 
@@ -36,18 +34,53 @@ public class VariantList extends Variant implements List<Variant> {
 	
 	List<Variant> data;
 
+	/**
+	 * Child maps and lists shared with a copy on write clone (null if none):
+	 * each one is replaced by a copy before being given
+	 */
+	private Set<Variant> shared;
+
     public VariantList(Collection<Variant> collection) {
     	if (collection == null)
 			throw new IllegalArgumentException("value argument cannot be null");
-		data = new ArrayList<>(collection);
+		data = new PackedList(collection);
 	}
 
 	public VariantList() {
-		data = new ArrayList<>();
+		data = new PackedList();
+	}
+
+	/**
+	 * Constructor from integer values, packed without one variant per
+	 * element
+	 * 
+	 * @param values values to copy
+	 */
+	public VariantList(int[] values) {
+		data = new PackedList(values);
+	}
+
+	/**
+	 * Constructor from long integer values, packed without one variant per
+	 * element
+	 * 
+	 * @param values values to copy
+	 */
+	public VariantList(long[] values) {
+		data = new PackedList(values);
+	}
+
+	/**
+	 * Constructor from double values, packed without one variant per element
+	 * 
+	 * @param values values to copy
+	 */
+	public VariantList(double[] values) {
+		data = new PackedList(values);
 	}
 
 	public VariantList add(boolean value) {
-		data.add(new VariantBool(value));
+		data.add(value ? TRUE : FALSE);
 		return this;
 	}
 
@@ -57,7 +90,7 @@ public class VariantList extends Variant implements List<Variant> {
 	}
 
 	public VariantList add(int value) {
-		data.add(new VariantInt(value));
+		data.add(VariantInt.valueOf(value));
 		return this;
 	}
 
@@ -67,7 +100,7 @@ public class VariantList extends Variant implements List<Variant> {
 	}
 
 	public VariantList add(long value) {
-		data.add(new VariantLong(value));
+		data.add(VariantLong.valueOf(value));
 		return this;
 	}
 
@@ -118,7 +151,18 @@ public class VariantList extends Variant implements List<Variant> {
 
 	@Override
 	public Variant get(int index) {
-		return data.get(index);
+		Variant ret = data.get(index);
+		if (shared != null && shared.contains(ret)) {
+			if (data instanceof PackedList) {
+				// Only this child is copied
+				ret = ret.clone(COPY_ON_WRITE);
+				data.set(index, ret);
+			} else {
+				unshare();
+				ret = data.get(index);
+			}
+		}
+		return ret;
 	}
 
 	@Override
@@ -138,9 +182,61 @@ public class VariantList extends Variant implements List<Variant> {
 
 	@Override
 	public Iterator<Variant> iterator() {
+		if (shared != null) {
+			unshare();
+		}
 		return data.iterator();
 	}
 
+	/**
+	 * Iterate over the elements to read them: in copy on write mode, the
+	 * shared child maps and lists are given without being copied, so they
+	 * must not be modified
+	 *
+	 * @return an iterator
+	 */
+	Iterator<Variant> readIterator() {
+		if (data instanceof TrieList) {
+			return ((TrieList) data).readIterator();
+		}
+		return data.iterator();
+	}
+
+	/**
+	 * Get an element removed from this list, copied if it is shared with a
+	 * copy on write clone
+	 */
+	private Variant detach(Variant elt) {
+		if (shared != null && shared.contains(elt)) {
+			return elt.clone(COPY_ON_WRITE);
+		}
+		return elt;
+	}
+
+	/**
+	 * Replace all the child maps and lists shared with a copy on write clone
+	 * by copy on write copies, keeping the storage
+	 */
+	private void unshare() {
+		Set<Variant> children = shared;
+		shared = null;
+		if (data instanceof PackedList) {
+			for (int i = 0, n = data.size(); i < n; i++) {
+				Variant elt = data.get(i);
+				if (children.contains(elt)) {
+					data.set(i, elt.clone(COPY_ON_WRITE));
+				}
+			}
+			return;
+		}
+		// Unmodifiable storage: rebuilt in the same order
+		PackedList copy = new PackedList();
+		for (Variant elt : data) {
+			copy.add(children.contains(elt) ? elt.clone(COPY_ON_WRITE) : elt);
+		}
+		data = Collections.unmodifiableList(copy);
+	}
+
 	@Override
 	public int lastIndexOf(Object o) {
 		return data.lastIndexOf(o);
@@ -148,17 +244,23 @@ public class VariantList extends Variant implements List<Variant> {
 
 	@Override
 	public ListIterator<Variant> listIterator() {
+		if (shared != null) {
+			unshare();
+		}
 		return data.listIterator();
 	}
 
 	@Override
 	public ListIterator<Variant> listIterator(int index) {
+		if (shared != null) {
+			unshare();
+		}
 		return data.listIterator(index);
 	}
 
 	@Override
 	public Variant remove(int index) {
-		return data.remove(index);
+		return detach(data.remove(index));
 	}
 
 	@Override
@@ -178,7 +280,7 @@ public class VariantList extends Variant implements List<Variant> {
 
 	@Override
 	public Variant set(int index, Variant element) {
-		return data.set(index, element);
+		return detach(data.set(index, element));
 	}
 
 	@Override
@@ -188,30 +290,69 @@ public class VariantList extends Variant implements List<Variant> {
 
 	@Override
 	public List<Variant> subList(int fromIndex, int toIndex) {
+		if (shared != null) {
+			unshare();
+		}
 		return data.subList(fromIndex, toIndex);
 	}
 
 	@Override
 	public Object[] toArray() {
+		if (shared != null) {
+			unshare();
+		}
 		return data.toArray();
 	}
 
 	@Override
 	public <T> T[] toArray(T[] a) {
+		if (shared != null) {
+			unshare();
+		}
 		return data.toArray(a);
 	}
 
+	/**
+	 * Get the long values of the elements, copied at once when they are
+	 * packed
+	 * 
+	 * @return a new array
+	 */
+	public long[] toLongArray() {
+		if (data instanceof PackedList) {
+			return ((PackedList) data).toLongArray();
+		}
+		long[] ret = new long[data.size()];
+		int i = 0;
+		for (Variant elt : data) {
+			ret[i++] = elt.longValue();
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the double values of the elements, copied at once when they are
+	 * packed
+	 * 
+	 * @return a new array
+	 */
+	public double[] toDoubleArray() {
+		if (data instanceof PackedList) {
+			return ((PackedList) data).toDoubleArray();
+		}
+		double[] ret = new double[data.size()];
+		int i = 0;
+		for (Variant elt : data) {
+			ret[i++] = elt.doubleValue();
+		}
+		return ret;
+	}
+
 	@Override
 	public String toString() {
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
-		OutputStreamWriter writer = new OutputStreamWriter(output);
-		try {
-			serializeJSON(writer, this, 4);
-			writer.flush();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-		return new String(output.toByteArray());
+		StringBuilder builder = new StringBuilder();
+		serializeJSON(builder, this, 4);
+		return builder.toString();
 	}
 	
 	@Override
@@ -227,13 +368,49 @@ public class VariantList extends Variant implements List<Variant> {
 	@Override
 	public Variant clone(int flags) {
 		VariantList list;
-		if ((flags & DEEP_COPY) != 0) {
+		if ((flags & COPY_ON_WRITE) != 0) {
+			list = new VariantList();
+			if (data instanceof TrieList) {
+				list.data = ((TrieList) data).snapshot(true);
+			} else if (data instanceof PackedList && ((PackedList) data).isPacked()) {
+				// Numbers only: copying the primitive array is cheap
+				list.data = new PackedList(data);
+			} else {
+				// This list keeps its storage and copies each child it shares
+				// with the clone the next time it gives it
+				list.data = new TrieList(data).snapshot(true);
+				for (Variant elt : data) {
+					if (HashTrieMap.isContainer(elt)) {
+						if (shared == null) {
+							shared = Collections.newSetFromMap(
+									new IdentityHashMap<Variant, Boolean>());
+						}
+						shared.add(elt);
+					}
+				}
+			}
+		} else if ((flags & DEEP_COPY) != 0) {
 			list = new VariantList();
-			for (Variant elt: data) {
-				list.add(elt.clone(flags));
+			if ((flags & PERSISTENT) != 0) {
+				list.data = new TrieList();
 			}
+			Iterator<Variant> it = readIterator();
+			while (it.hasNext()) {
+				list.add(it.next().clone(flags));
+			}
+		} else if (data instanceof TrieList) {
+			list = new VariantList();
+			list.data = ((TrieList) data).snapshot(false);
 		} else {
-			list = new VariantList(data);
+			if (shared != null) {
+				unshare();
+			}
+			if ((flags & PERSISTENT) != 0) {
+				list = new VariantList();
+				list.data = new TrieList(data);
+			} else {
+				list = new VariantList(data);
+			}
 		}
 		if ((flags & UNMODIFIABLE) != 0) {
 			list.data = Collections.unmodifiableList(list.data);
@@ -35,6 +35,28 @@ public class VariantLong extends VariantNumber {
 	public VariantLong(long value) {
 		data = value;
 	}
+
+	private static final VariantLong[] CACHE = new VariantLong[CACHE_HIGH - CACHE_LOW + 1];
+
+	static {
+		for (int i = 0; i < CACHE.length; i++) {
+			CACHE[i] = new VariantLong((long) (i + CACHE_LOW));
+		}
+	}
+
+	/**
+	 * Get a variant holding the given value. Values from CACHE_LOW to
+	 * CACHE_HIGH are shared instances.
+	 * 
+	 * @param value
+	 * @return a variant
+	 */
+	public static VariantLong valueOf(long value) {
+		if (value >= CACHE_LOW && value <= CACHE_HIGH) {
+			return CACHE[(int) (value - CACHE_LOW)];
+		}
+		return new VariantLong(value);
+	}
 	
 	@Override
 	public boolean booleanValue() {
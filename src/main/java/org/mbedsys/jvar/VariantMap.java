@@ -16,14 +16,13 @@
 
 package org.mbedsys.jvar;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -34,10 +33,16 @@ import java.util.Set;
  */
 public class VariantMap extends Variant implements Map<String, Variant> {
 	
-	private Map<String, Variant> data;
+	Map<String, Variant> data;
+
+	/**
+	 * Child maps and lists shared with a copy on write clone (null if none):
+	 * each one is replaced by a copy before being given
+	 */
+	private Set<Variant> shared;
 	
 	public VariantMap(Dictionary<String, String> dic) {
-		data = new HashMap<>();
+		data = new CompactMap();
 		Enumeration<String> elts = dic.keys();
 		while (elts.hasMoreElements()) {
 			 String key = elts.nextElement();
@@ -48,11 +53,15 @@ public class VariantMap extends Variant implements Map<String, Variant> {
 	public VariantMap(Map<String, Variant> value) {
 		if (value == null)
 			throw new IllegalArgumentException("value argument cannot be null");
-		this.data = new HashMap<>(value);
+		if (value.size() <= CompactMap.MAX_SIZE) {
+			this.data = new CompactMap(value);
+		} else {
+			this.data = new HashMap<>(value);
+		}
 	}
 
 	public VariantMap() {
-    	this.data = new HashMap<>();
+		this.data = new CompactMap();
 	}
 
 	@Override
@@ -61,32 +70,32 @@ public class VariantMap extends Variant implements Map<String, Variant> {
 	}
 
 	public VariantMap put(String key, boolean value) {
-		data.put(key, new VariantBool(value));
+		put(key, value ? TRUE : FALSE);
 		return this;
 	}
 
 	public VariantMap put(String key, int value) {
-		data.put(key, new VariantInt(value));
+		put(key, VariantInt.valueOf(value));
 		return this;
 	}
 
 	public VariantMap put(String key, long value) {
-		data.put(key, new VariantLong(value));
+		put(key, VariantLong.valueOf(value));
 		return this;
 	}
 
 	public VariantMap put(String key, double value) {
-		data.put(key, new VariantDouble(value));
+		put(key, new VariantDouble(value));
 		return this;
 	}
 
 	public VariantMap put(String key, Object value) {
 		if (value == null) {
-			data.put(key, Variant.NULL);
+			put(key, Variant.NULL);
 		} else if (value instanceof Variant) {
-			data.put(key, (Variant) value);
+			put(key, (Variant) value);
 		} else if (value instanceof String) {
-			data.put(key, new VariantString((String) value));
+			put(key, new VariantString((String) value));
 		} else {
 			throw new IllegalArgumentException("Unsupported value type");
 		}
@@ -98,11 +107,21 @@ public class VariantMap extends Variant implements Map<String, Variant> {
     }
 
     public static VariantMap resolvePath(VariantMap data, String path, char sep) {
-        for (String key: VariantString.split(path, sep)) {
-            if (!data.containsKey(key)) {
-                return null;
+        int len = path.length();
+        int start = 0;
+        while (start < len) {
+            int end = path.indexOf(sep, start);
+            if (end < 0) {
+                end = len;
             }
-            data = data.get(key).toMap();
+            if (end > start) {
+                Variant child = data.get(path.substring(start, end));
+                if (child == null) {
+                    return null;
+                }
+                data = child.toMap();
+            }
+            start = end + 1;
         }
         return data;
     }
@@ -117,8 +136,8 @@ public class VariantMap extends Variant implements Map<String, Variant> {
             }
             return;
         }
-        Variant subNode;
-        if (!node.containsKey(k) || (subNode = node.get(k)).type() != Variant.Type.MAP) {
+        Variant subNode = node.get(k);
+        if (subNode == null || subNode.type() != Variant.Type.MAP) {
             node.put(k, subNode = new VariantMap());
         }
         updatePath((VariantMap) subNode, pathParts, value, i);
@@ -133,7 +152,39 @@ public class VariantMap extends Variant implements Map<String, Variant> {
     }
 
     public static Variant updatePath(Variant data, String path, Variant value) {
-        return updatePath(data, VariantString.split(path, '.'), value);
+        if (data == null || data.type() != Variant.Type.MAP) {
+            data = new VariantMap();
+        }
+        VariantMap node = (VariantMap) data;
+        String key = null;
+        int len = path.length();
+        int start = 0;
+        while (start < len) {
+            int end = path.indexOf('.', start);
+            if (end < 0) {
+                end = len;
+            }
+            if (end > start) {
+                if (key != null) {
+                    Variant subNode = node.get(key);
+                    if (subNode == null || subNode.type() != Variant.Type.MAP) {
+                        node.put(key, subNode = new VariantMap());
+                    }
+                    node = (VariantMap) subNode;
+                }
+                key = path.substring(start, end);
+            }
+            start = end + 1;
+        }
+        if (key == null) {
+            return data;
+        }
+        if (value == null) {
+            node.remove(key);
+        } else {
+            node.put(key, value);
+        }
+        return data;
     }
 
 	@Override
@@ -158,17 +209,28 @@ public class VariantMap extends Variant implements Map<String, Variant> {
 
 	@Override
 	public Variant get(Object key) {
-		return data.get(key);
+		Variant ret = data.get(key);
+		if (shared != null && shared.contains(ret)) {
+			if (data instanceof CompactMap || data instanceof HashMap) {
+				// Only this child is copied
+				ret = ret.clone(COPY_ON_WRITE);
+				data.put((String) key, ret);
+			} else {
+				unshare();
+				ret = data.get(key);
+			}
+		}
+		return ret;
 	}
 
 	@Override
 	public Variant put(String key, Variant value) {
-		return data.put(key, value);
+		return detach(data.put(key, value));
 	}
 
 	@Override
 	public Variant remove(Object key) {
-		return data.remove(key);
+		return detach(data.remove(key));
 	}
 
 	@Override
@@ -188,14 +250,71 @@ public class VariantMap extends Variant implements Map<String, Variant> {
 
 	@Override
 	public Collection<Variant> values() {
+		if (shared != null) {
+			unshare();
+		}
 		return data.values();
 	}
 
 	@Override
 	public Set<java.util.Map.Entry<String, Variant>> entrySet() {
+		if (shared != null) {
+			unshare();
+		}
 		return data.entrySet();
 	}
 
+	/**
+	 * Get a value removed from this map, copied if it is shared with a copy
+	 * on write clone
+	 */
+	private Variant detach(Variant value) {
+		if (shared != null && shared.contains(value)) {
+			return value.clone(COPY_ON_WRITE);
+		}
+		return value;
+	}
+
+	/**
+	 * Replace all the child maps and lists shared with a copy on write clone
+	 * by copy on write copies, keeping the storage and the entry order
+	 */
+	private void unshare() {
+		Set<Variant> children = shared;
+		shared = null;
+		if (data instanceof CompactMap || data instanceof HashMap) {
+			for (Entry<String, Variant> entry : data.entrySet()) {
+				Variant value = entry.getValue();
+				if (children.contains(value)) {
+					entry.setValue(value.clone(COPY_ON_WRITE));
+				}
+			}
+			return;
+		}
+		// Unmodifiable storage: rebuilt in the same order
+		CompactMap copy = new CompactMap();
+		for (Entry<String, Variant> entry : data.entrySet()) {
+			Variant value = entry.getValue();
+			copy.put(entry.getKey(), children.contains(value) ? value
+					.clone(COPY_ON_WRITE) : value);
+		}
+		data = Collections.unmodifiableMap(copy);
+	}
+
+	/**
+	 * Iterate over the entries to read them: in copy on write mode, the
+	 * shared child maps and lists are given without being copied, so they
+	 * must not be modified
+	 *
+	 * @return an iterator
+	 */
+	Iterator<Entry<String, Variant>> readIterator() {
+		if (data instanceof HashTrieMap) {
+			return ((HashTrieMap) data).readIterator();
+		}
+		return data.entrySet().iterator();
+	}
+
 	@Override
 	public boolean isEmpty() {
 		return data.isEmpty();
@@ -208,15 +327,9 @@ public class VariantMap extends Variant implements Map<String, Variant> {
 
 	@Override
 	public String toString() {
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
-		OutputStreamWriter writer = new OutputStreamWriter(output);
-		try {
-			serializeJSONElt(writer, this, 4);
-			writer.flush();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-		return new String(output.toByteArray());
+		StringBuilder builder = new StringBuilder();
+		serializeJSON(builder, this, 4);
+		return builder.toString();
 	}
 	
 	@Override
@@ -226,19 +339,53 @@ public class VariantMap extends Variant implements Map<String, Variant> {
 	
 	@Override
 	public VariantList toList() {
-		return new VariantList(data.values());
+		return new VariantList(values());
 	}
 
 	@Override
 	public Variant clone(int flags) {
 		VariantMap list;
-		if ((flags & DEEP_COPY) != 0) {
+		if ((flags & COPY_ON_WRITE) != 0) {
+			list = new VariantMap();
+			if (data instanceof HashTrieMap) {
+				list.data = ((HashTrieMap) data).snapshot(true);
+			} else {
+				// This map keeps its storage and copies each child it shares
+				// with the clone the next time it gives it
+				list.data = new HashTrieMap(data).snapshot(true);
+				for (Variant value : data.values()) {
+					if (HashTrieMap.isContainer(value)) {
+						if (shared == null) {
+							shared = Collections.newSetFromMap(
+									new IdentityHashMap<Variant, Boolean>());
+						}
+						shared.add(value);
+					}
+				}
+			}
+		} else if ((flags & DEEP_COPY) != 0) {
 			list = new VariantMap();
-			for (Entry<String, Variant> elt: data.entrySet()) {
+			if ((flags & PERSISTENT) != 0) {
+				list.data = new HashTrieMap();
+			}
+			Iterator<Entry<String, Variant>> it = readIterator();
+			while (it.hasNext()) {
+				Entry<String, Variant> elt = it.next();
 				list.put(elt.getKey(), elt.getValue().clone(flags));
 			}
+		} else if (data instanceof HashTrieMap) {
+			list = new VariantMap();
+			list.data = ((HashTrieMap) data).snapshot(false);
 		} else {
-			list = new VariantMap(data);
+			if (shared != null) {
+				unshare();
+			}
+			if ((flags & PERSISTENT) != 0) {
+				list = new VariantMap();
+				list.data = new HashTrieMap(data);
+			} else {
+				list = new VariantMap(data);
+			}
 		}
 		if ((flags & UNMODIFIABLE) != 0) {
 			list.data = Collections.unmodifiableMap(list.data);
@@ -23,6 +23,13 @@ package org.mbedsys.jvar;
  */
 public abstract class VariantNumber extends Variant {
 
+	/**
+	 * Range of the values shared by the valueOf methods of the number
+	 * variants (the unsigned ones start at 0)
+	 */
+	static final int CACHE_LOW = -128;
+	static final int CACHE_HIGH = 1023;
+
     /**
      * Convert byte value to an hexadecimal string
      *
@@ -65,33 +72,64 @@ public abstract class VariantNumber extends Variant {
 	
 	public static VariantNumber optimize(int number) {
 		if ((number & 0x7FFFFF80) == 0) {
-			return new VariantByte((byte)number);
+			return VariantByte.valueOf((byte)number);
 		} else if ((number & 0xFFFF8000) == 0) {
-			return new VariantUShort((short)number);
+			return VariantUShort.valueOf((short)number);
 		} else if ((number & 0x7FFF8000) == 0) {
-			return new VariantShort((short)number);
+			return VariantShort.valueOf((short)number);
 		} else if ((number & 0x80000000) == 0) {
-			return new VariantUInt(number);
+			return VariantUInt.valueOf(number);
 		} else {
-			return new VariantInt(number);
+			return VariantInt.valueOf(number);
 		}
 	}
 	
 	public static VariantNumber optimize(long number) {
 		if ((number & 0x7FFFFFFFFFFFFF80L) == 0) {
-			return new VariantByte((byte)number);
+			return VariantByte.valueOf((byte)number);
+		} else if ((number & 0xFFFFFFFFFFFF8000L) == 0) {
+			return VariantUShort.valueOf((short)number);
+		} else if ((number & 0x7FFFFFFFFFFF8000L) == 0) {
+			return VariantShort.valueOf((short)number);
+		} else if ((number & 0xFFFFFFFF80000000L) == 0) {
+			return VariantUInt.valueOf((int)number);
+		} else if ((number & 0x7FFFFFFF80000000L) == 0) {
+			return VariantInt.valueOf((int)number);
+		} else if ((number & 0x8000000000000000L) == 0) {
+			return VariantULong.valueOf(number);
+		} else {
+			return VariantLong.valueOf(number);
+		}
+	}
+
+	/**
+	 * Check whether a variant is of the type {@link #optimize(long)} returns
+	 * for its value, so it can be rebuilt from its long value
+	 * 
+	 * @param value variant to check
+	 * @return true if optimize(value.longValue()) gives an equal variant of
+	 *         the same type
+	 */
+	static boolean isOptimized(Variant value) {
+		if (!(value instanceof VariantNumber)) {
+			return false;
+		}
+		long number = value.longValue();
+		Class<?> type = value.getClass();
+		if ((number & 0x7FFFFFFFFFFFFF80L) == 0) {
+			return type == VariantByte.class;
 		} else if ((number & 0xFFFFFFFFFFFF8000L) == 0) {
-			return new VariantUShort((short)number);
+			return type == VariantUShort.class;
 		} else if ((number & 0x7FFFFFFFFFFF8000L) == 0) {
-			return new VariantShort((short)number);
+			return type == VariantShort.class;
 		} else if ((number & 0xFFFFFFFF80000000L) == 0) {
-			return new VariantUInt((int)number);
+			return type == VariantUInt.class;
 		} else if ((number & 0x7FFFFFFF80000000L) == 0) {
-			return new VariantInt((int)number);
+			return type == VariantInt.class;
 		} else if ((number & 0x8000000000000000L) == 0) {
-			return new VariantULong(number);
+			return type == VariantULong.class;
 		} else {
-			return new VariantLong(number);
+			return type == VariantLong.class;
 		}
 	}
 
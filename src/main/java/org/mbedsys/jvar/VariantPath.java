@@ -0,0 +1,259 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compiled path to a value inside maps and lists, parsed once and reusable
+ * (thread safe).
+ *
+ * The path is made of the separated parts (empty parts are ignored, like in
+ * {@link VariantMap#resolvePath(VariantMap, String)}). A part is used as a
+ * key on a map and, if it is a decimal number, as an index on a list:
+ * "users.0.name" gives the name of the first user.
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public final class VariantPath {
+
+	private final String path;
+	private final String[] keys;
+	private final int[] indexes;
+
+	private VariantPath(String path, String[] keys) {
+		this.path = path;
+		this.keys = keys;
+		indexes = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			indexes[i] = parseIndex(keys[i]);
+		}
+	}
+
+	private static int parseIndex(String key) {
+		int len = key.length();
+		if (len > 9) {
+			return -1;
+		}
+		int ret = 0;
+		for (int i = 0; i < len; i++) {
+			char c = key.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			ret = ret * 10 + c - '0';
+		}
+		return ret;
+	}
+
+	/**
+	 * Compile a dotted path
+	 *
+	 * @param path path to compile
+	 * @return a path object
+	 */
+	public static VariantPath compile(String path) {
+		return compile(path, '.');
+	}
+
+	/**
+	 * Compile a path
+	 *
+	 * @param path path to compile
+	 * @param sep part separator
+	 * @return a path object
+	 */
+	public static VariantPath compile(String path, char sep) {
+		ArrayList<String> keys = new ArrayList<>();
+		int len = path.length();
+		int start = 0;
+		while (start < len) {
+			int end = path.indexOf(sep, start);
+			if (end < 0) {
+				end = len;
+			}
+			if (end > start) {
+				keys.add(path.substring(start, end));
+			}
+			start = end + 1;
+		}
+		return new VariantPath(path, keys.toArray(new String[keys.size()]));
+	}
+
+	/**
+	 * Build a path from its parts
+	 *
+	 * @param keys map keys or list indexes
+	 * @return a path object
+	 */
+	public static VariantPath of(String... keys) {
+		StringBuilder path = new StringBuilder();
+		for (int i = 0; i < keys.length; i++) {
+			if (i != 0) {
+				path.append('.');
+			}
+			path.append(keys[i]);
+		}
+		return new VariantPath(path.toString(), keys.clone());
+	}
+
+	/**
+	 * Get the number of parts
+	 *
+	 * @return a number of map keys or list indexes
+	 */
+	public int depth() {
+		return keys.length;
+	}
+
+	/**
+	 * Get the child of a map or a list
+	 *
+	 * @return the child or null if not found
+	 */
+	private Variant child(Variant node, int i) {
+		if (node instanceof VariantMap) {
+			return ((VariantMap) node).get(keys[i]);
+		} else if (node instanceof VariantList) {
+			VariantList list = (VariantList) node;
+			int index = indexes[i];
+			return index >= 0 && index < list.size() ? list.get(index) : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the value at this path
+	 *
+	 * @param root root map or list
+	 * @return the value or null if the path does not exist
+	 */
+	public Variant get(Variant root) {
+		Variant node = root;
+		for (int i = 0; i < keys.length && node != null; i++) {
+			node = child(node, i);
+		}
+		return node;
+	}
+
+	/**
+	 * Test if a value exists at this path
+	 *
+	 * @param root root map or list
+	 * @return true if the value exists
+	 */
+	public boolean exists(Variant root) {
+		return get(root) != null;
+	}
+
+	/**
+	 * Set the value at this path. The missing maps are created, as well as
+	 * the ones replacing the values which are neither maps nor lists. On a
+	 * list, an index equal to the list size appends the value.
+	 *
+	 * @param root root map or list (a new map is created if null or of an
+	 *            other type)
+	 * @param value value to set
+	 * @return the root
+	 * @throws IndexOutOfBoundsException if a list index is greater than the
+	 *             list size
+	 */
+	public Variant set(Variant root, Variant value) {
+		if (value == null) {
+			throw new IllegalArgumentException("value argument cannot be null");
+		}
+		if (!(root instanceof VariantMap || root instanceof VariantList)) {
+			root = new VariantMap();
+		}
+		if (keys.length == 0) {
+			return root;
+		}
+		Variant node = root;
+		int last = keys.length - 1;
+		for (int i = 0; i < last; i++) {
+			Variant child = child(node, i);
+			if (!(child instanceof VariantMap || child instanceof VariantList)) {
+				child = new VariantMap();
+				put(node, i, child);
+			}
+			node = child;
+		}
+		put(node, last, value);
+		return root;
+	}
+
+	private void put(Variant node, int i, Variant value) {
+		if (node instanceof VariantMap) {
+			((VariantMap) node).put(keys[i], value);
+			return;
+		}
+		VariantList list = (VariantList) node;
+		int index = indexes[i];
+		if (index < 0) {
+			throw new IndexOutOfBoundsException("Invalid list index "
+					+ keys[i]);
+		} else if (index == list.size()) {
+			list.add(value);
+		} else {
+			list.set(index, value);
+		}
+	}
+
+	/**
+	 * Remove the value at this path
+	 *
+	 * @param root root map or list
+	 * @return the removed value or null if the path does not exist
+	 */
+	public Variant remove(Variant root) {
+		if (keys.length == 0) {
+			return null;
+		}
+		Variant node = root;
+		int last = keys.length - 1;
+		for (int i = 0; i < last && node != null; i++) {
+			node = child(node, i);
+		}
+		if (node instanceof VariantMap) {
+			return ((VariantMap) node).remove(keys[last]);
+		} else if (node instanceof VariantList) {
+			VariantList list = (VariantList) node;
+			int index = indexes[last];
+			return index >= 0 && index < list.size() ? list.remove(index)
+					: null;
+		}
+		return null;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(keys);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof VariantPath
+				&& Arrays.equals(keys, ((VariantPath) obj).keys);
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+}
@@ -41,6 +41,23 @@ public class VariantString extends Variant {
 		data = value;
 	}
 
+	/**
+	 * Shared empty string variant
+	 */
+	public static final VariantString EMPTY = new VariantString("");
+
+	/**
+	 * Get a variant holding the given string, the empty string variant is
+	 * shared
+	 * 
+	 * @param value
+	 *            String
+	 * @return a variant
+	 */
+	public static VariantString valueOf(String value) {
+		return value.isEmpty() ? EMPTY : new VariantString(value);
+	}
+
 	@Override
 	public boolean booleanValue() {
 		return !(data == null || data.trim().equalsIgnoreCase("false")
@@ -96,31 +113,15 @@ public class VariantString extends Variant {
 	 */
 	public static void writeJSONTo(OutputStreamWriter writer, String value)
 			throws IOException {
-		char c;
-		writer.write('"');
-		for (int i = 0; i < value.length(); i++) {
-			c = value.charAt(i);
-			switch (c) {
-			case '\\':
-			case '"':
-			case '\b':
-			case '\f':
-			case '\n':
-			case '\r':
-			case '\t':
-				writer.write('\\');
-			default:
-				writer.write(c);
-				break;
-			}
-		}
-		writer.write('"');
+		JSONCharWriter json = new JSONCharWriter(writer);
+		json.putString(value);
+		json.flush();
 	}
 
 	@Override
 	public int compareTo(Object other) {
 		if (other instanceof VariantString) {
-			return data.compareTo(((VariantString) other).data);
+			return data.compareTo(((VariantString) other).toString());
 		} else {
 			return data.compareTo((String) other);
 		}
@@ -134,7 +135,7 @@ public class VariantString extends Variant {
 	@Override
 	public boolean equals(Object obj) {
 		if (obj instanceof VariantString) {
-			return data.equals(((VariantString) obj).data);
+			return data.equals(((VariantString) obj).toString());
 		} else {
 			return data.equals((String) obj);
 		}
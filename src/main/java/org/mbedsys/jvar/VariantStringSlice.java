@@ -0,0 +1,149 @@
+/*
+ *   Copyright 2014 Emeric Verschuur <emericv@mbedsys.org>
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *		   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.mbedsys.jvar;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * String variant backed by a slice of UTF-8 encoded bytes, decoded on the
+ * first access to its value
+ *
+ * @author <a href="mailto:emericv@mbedsys.org">Emeric Verschuur</a>
+ * Copyright 2014 MbedSYS
+ */
+public class VariantStringSlice extends VariantString {
+
+	private final ByteBuffer slice;
+
+	/**
+	 * Constructor from an UTF-8 encoded buffer
+	 *
+	 * @param slice buffer holding the string bytes between its position and
+	 *            its limit (the buffer is not copied)
+	 */
+	public VariantStringSlice(ByteBuffer slice) {
+		super("");
+		this.slice = slice.slice();
+		data = null;
+	}
+
+	/**
+	 * Get the raw UTF-8 bytes without decoding them
+	 *
+	 * @return a read only buffer
+	 */
+	public ByteBuffer slice() {
+		return slice.asReadOnlyBuffer();
+	}
+
+	private void decode() {
+		if (data != null) {
+			return;
+		}
+		if (slice.hasArray()) {
+			data = new String(slice.array(), slice.arrayOffset(),
+					slice.remaining(), StandardCharsets.UTF_8);
+		} else {
+			byte[] bytes = new byte[slice.remaining()];
+			slice.duplicate().get(bytes);
+			data = new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	@Override
+	public boolean booleanValue() {
+		decode();
+		return super.booleanValue();
+	}
+
+	@Override
+	public byte byteValue() {
+		decode();
+		return super.byteValue();
+	}
+
+	@Override
+	public short shortValue() {
+		decode();
+		return super.shortValue();
+	}
+
+	@Override
+	public int intValue() {
+		decode();
+		return super.intValue();
+	}
+
+	@Override
+	public long longValue() {
+		decode();
+		return super.longValue();
+	}
+
+	@Override
+	public float floatValue() {
+		decode();
+		return super.floatValue();
+	}
+
+	@Override
+	public double doubleValue() {
+		decode();
+		return super.doubleValue();
+	}
+
+	@Override
+	public byte[] toByteArray() {
+		decode();
+		return super.toByteArray();
+	}
+
+	@Override
+	public String toString() {
+		decode();
+		return data;
+	}
+
+	@Override
+	public int compareTo(Object other) {
+		decode();
+		return super.compareTo(other);
+	}
+
+	@Override
+	public int hashCode() {
+		decode();
+		return super.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		decode();
+		return super.equals(obj);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !slice.hasRemaining();
+	}
+
+	@Override
+	public Variant clone(int flags) {
+		return new VariantString(toString());
+	}
+}
@@ -36,6 +36,28 @@ public class VariantUInt extends VariantNumber {
 		data = value;
 	}
 
+	private static final VariantUInt[] CACHE = new VariantUInt[CACHE_HIGH + 1];
+
+	static {
+		for (int i = 0; i < CACHE.length; i++) {
+			CACHE[i] = new VariantUInt(i);
+		}
+	}
+
+	/**
+	 * Get a variant holding the given value. Values from 0 to
+	 * CACHE_HIGH are shared instances.
+	 * 
+	 * @param value
+	 * @return a variant
+	 */
+	public static VariantUInt valueOf(int value) {
+		if (value >= 0 && value <= CACHE_HIGH) {
+			return CACHE[value];
+		}
+		return new VariantUInt(value);
+	}
+
 	@Override
 	public boolean booleanValue() {
 		return data != 0;
@@ -35,6 +35,28 @@ public class VariantULong extends VariantNumber {
 	public VariantULong(long value) {
 		data = value;
 	}
+
+	private static final VariantULong[] CACHE = new VariantULong[CACHE_HIGH + 1];
+
+	static {
+		for (int i = 0; i < CACHE.length; i++) {
+			CACHE[i] = new VariantULong((long) i);
+		}
+	}
+
+	/**
+	 * Get a variant holding the given value. Values from 0 to
+	 * CACHE_HIGH are shared instances.
+	 * 
+	 * @param value
+	 * @return a variant
+	 */
+	public static VariantULong valueOf(long value) {
+		if (value >= 0 && value <= CACHE_HIGH) {
+			return CACHE[(int) value];
+		}
+		return new VariantULong(value);
+	}
 	
 	@Override
 	public boolean booleanValue() {
@@ -36,6 +36,28 @@ public class VariantUShort extends VariantNumber {
 		data = value;
 	}
 
+	private static final VariantUShort[] CACHE = new VariantUShort[CACHE_HIGH + 1];
+
+	static {
+		for (int i = 0; i < CACHE.length; i++) {
+			CACHE[i] = new VariantUShort((short) i);
+		}
+	}
+
+	/**
+	 * Get a variant holding the given value. Values from 0 to
+	 * CACHE_HIGH are shared instances.
+	 * 
+	 * @param value
+	 * @return a variant
+	 */
+	public static VariantUShort valueOf(short value) {
+		if (value >= 0 && value <= CACHE_HIGH) {
+			return CACHE[value];
+		}
+		return new VariantUShort(value);
+	}
+
 	@Override
 	public boolean booleanValue() {
 		return data != 0;
@@ -83,7 +105,7 @@ public class VariantUShort extends VariantNumber {
 
 	@Override
 	public long longValue() {
-		return data & 0xFFFFFFFFL;
+		return data & 0xFFFFL;
 	}
 
 	@Override
@@ -1,16 +1,61 @@
 package org.mbedsys;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
-
+import org.mbedsys.jvar.BCONFileReader;
+import org.mbedsys.jvar.BCONReader;
+import org.mbedsys.jvar.BCONWriter;
+import org.mbedsys.jvar.BSONWriter;
+import org.mbedsys.jvar.DateTimeFormat;
+import org.mbedsys.jvar.JSONByteWriter;
+import org.mbedsys.jvar.JSONCharWriter;
+import org.mbedsys.jvar.JSONContext;
+import org.mbedsys.jvar.JSONEventReader;
+import org.mbedsys.jvar.JSONEventReader.Event;
+import org.mbedsys.jvar.KeyTable;
+import org.mbedsys.jvar.ParserException;
+import org.mbedsys.jvar.Variant;
+import org.mbedsys.jvar.Variant.Format;
+import org.mbedsys.jvar.VariantBSONMap;
+import org.mbedsys.jvar.VariantByte;
+import org.mbedsys.jvar.VariantByteArray;
+import org.mbedsys.jvar.VariantByteArraySlice;
+import org.mbedsys.jvar.VariantDateTime;
+import org.mbedsys.jvar.VariantDouble;
+import org.mbedsys.jvar.VariantInt;
+import org.mbedsys.jvar.VariantLong;
+import org.mbedsys.jvar.VariantShort;
+import org.mbedsys.jvar.VariantStringSlice;
+import org.mbedsys.jvar.VariantUInt;
+import org.mbedsys.jvar.VariantULong;
+import org.mbedsys.jvar.VariantUShort;
+import org.mbedsys.jvar.VariantList;
+import org.mbedsys.jvar.VariantMap;
+import org.mbedsys.jvar.VariantNumber;
+import org.mbedsys.jvar.VariantPath;
+import org.mbedsys.jvar.VariantString;
 
 /**
  * Unit test for simple App.
  */
 public class VariantTest extends TestCase {
 
+	private static final String JSON_SAMPLE = "{\"name\": \"cafe \\\"au\\\" lait\\n\", "
+			+ "\"count\": 42, \"big\": 12345678901, \"neg\": -7, "
+			+ "\"ratio\": 0.25, \"exp\": 1.5e3, \"ok\": true, \"ko\": false, "
+			+ "\"none\": null, \"esc\": \"\\u00e9\\t\", "
+			+ "\"list\": [1, \"two\", [], {}, [3.5, {\"a\": [null]}]], "
+			+ "\"map\": {\"x\": {\"y\": \"z\"}}}";
+
 	/**
 	 * Create the test case
 	 * 
@@ -27,8 +72,1531 @@ public class VariantTest extends TestCase {
 	public static Test suite() {
 		return new TestSuite(VariantTest.class);
 	}
+
+	private static InputStream stream(String data) {
+		return new ByteArrayInputStream(data.getBytes(
+				java.nio.charset.StandardCharsets.UTF_8));
+	}
+	
+	private static void assertVariantEquals(Variant expected, Variant actual) {
+		assertEquals(expected.type(), actual.type());
+		switch (expected.type()) {
+		case MAP:
+			assertEquals(expected.toMap().keySet(), actual.toMap().keySet());
+			for (String key : expected.toMap().keySet()) {
+				assertVariantEquals(expected.toMap().get(key), actual.toMap()
+						.get(key));
+			}
+			break;
+		case LIST:
+			assertEquals(expected.toList().size(), actual.toList().size());
+			for (int i = 0; i < expected.toList().size(); i++) {
+				assertVariantEquals(expected.toList().get(i), actual.toList()
+						.get(i));
+			}
+			break;
+		case BYTEARRAY:
+			assertTrue(java.util.Arrays.equals(expected.toByteArray(),
+					actual.toByteArray()));
+			break;
+		default:
+			assertEquals(expected.toString(), actual.toString());
+		}
+	}
 	
 	public void test() throws Exception {
 		
 	}
+
+	public void testJSONParserMatchesScanner() throws Exception {
+		Variant expected = Variant.newParser(stream(JSON_SAMPLE), Format.JSON,
+				Variant.PARSE_JSON_SCANNER).next();
+		Variant actual = Variant.newParser(stream(JSON_SAMPLE), Format.JSON)
+				.next();
+		assertVariantEquals(expected, actual);
+		VariantMap map = actual.toMap();
+		assertEquals("cafe \"au\" lait\n", map.get("name").toString());
+		assertEquals(Variant.Type.BYTE, map.get("count").type());
+		assertEquals(12345678901L, map.get("big").longValue());
+		assertEquals(1500.0, map.get("exp").doubleValue());
+		assertTrue(map.get("none").isNull());
+		VariantList list = map.get("list").toList();
+		assertEquals(5, list.size());
+		assertEquals(3.5, list.get(4).toList().get(0).doubleValue());
+	}
+
+	public void testJSONParserUTF8() throws Exception {
+		Variant actual = Variant.newParser(stream("[\"caf\u00e9 \u20ac \ud83d\ude00\"]"),
+				Format.JSON).next();
+		assertEquals("caf\u00e9 \u20ac \ud83d\ude00", actual.toList().get(0).toString());
+	}
+
+	public void testJSONParserStream() throws Exception {
+		Variant.Parser parser = Variant.newParser(
+				stream("[1]\n{\"a\": 2}  [] "), Format.JSON);
+		assertEquals(1, parser.next().toList().size());
+		assertEquals(2, parser.next().toMap().get("a").intValue());
+		assertTrue(parser.next().toList().isEmpty());
+		assertNull(parser.next(false));
+		try {
+			parser.next();
+			fail();
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	public void testJSONParserErrors() throws Exception {
+		String[] invalid = { "{\"a\" 1}", "[1,]", "[1 2]", "{\"a\": }", "\"a\"",
+				"[tru]", "[\"abc" };
+		for (String data : invalid) {
+			try {
+				Variant.newParser(stream(data), Format.JSON).next();
+				fail(data);
+			} catch (ParserException e) {
+				// expected
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testJSONEventReader() throws Exception {
+		JSONEventReader reader = new JSONEventReader(stream(
+				"[{\"id\": 1, \"skip\": {\"a\": [\"]\"]}, \"v\": 2.5},"
+				+ " {\"id\": 12345678901, \"sub\": {\"x\": \"y\"}}] {}"));
+		assertEquals(Event.START_ARRAY, reader.next());
+		assertEquals(Event.START_OBJECT, reader.next());
+		assertEquals(Event.KEY, reader.next());
+		assertEquals("id", reader.key());
+		assertEquals(Event.VALUE, reader.next());
+		assertEquals(1L, reader.longValue());
+		assertEquals(Event.KEY, reader.next());
+		assertEquals(Event.START_OBJECT, reader.next());
+		reader.skipChildren();
+		assertEquals(Event.KEY, reader.next());
+		assertEquals("v", reader.key());
+		assertEquals(Event.VALUE, reader.next());
+		assertEquals(2.5, reader.doubleValue());
+		assertEquals(Event.END_OBJECT, reader.next());
+		assertEquals(Event.START_OBJECT, reader.next());
+		assertEquals(2, reader.depth());
+		assertEquals(Event.KEY, reader.next());
+		reader.skipValue();
+		assertEquals(Event.KEY, reader.event());
+		assertEquals("id", reader.key());
+		try {
+			reader.longValue();
+			fail("Skipped value read");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			reader.readVariant();
+			fail("Skipped value read");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(Event.KEY, reader.next());
+		assertEquals("y", reader.readVariant().toMap().get("x").toString());
+		assertEquals(Event.END_OBJECT, reader.next());
+		try {
+			reader.value();
+			fail("Value read on END_OBJECT");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(Event.END_ARRAY, reader.next());
+		assertEquals(0, reader.depth());
+		assertEquals(Event.START_OBJECT, reader.next());
+		assertEquals(Event.END_OBJECT, reader.next());
+		assertNull(reader.next());
+	}
+
+	private static VariantMap sampleDocument() {
+		VariantMap sub = new VariantMap().put("b", 1).put("c", "two");
+		sub.put("d", new VariantList().add(3).add("four"));
+		VariantList list = new VariantList();
+		list.add(new VariantMap().put("b", 5).put("c", 6));
+		list.add(7);
+		VariantMap doc = new VariantMap().put("s", "str").put("t", true);
+		doc.put("a", sub);
+		doc.put("l", list);
+		doc.put("n", Variant.NULL);
+		return doc;
+	}
+
+	public void testProjection() throws Exception {
+		VariantMap doc = sampleDocument();
+		java.util.List<String> paths = Arrays.asList("a.b", "a.d", "l.b", "t",
+				"s.x", "missing.key");
+		String expected = "{a={b=1, d=[3, four]}, l=[{b=5}], t=true}";
+
+		ByteArrayOutputStream bson = new ByteArrayOutputStream();
+		Variant.serializeBSON(bson, doc);
+		ByteArrayOutputStream bcon = new ByteArrayOutputStream();
+		Variant.serializeBCON(bcon, doc);
+		String json = doc.toString();
+
+		Variant[] results = {
+				Variant.newParser(stream(json), Format.JSON, paths).next(),
+				Variant.newParser(new ByteArrayInputStream(bson.toByteArray()),
+						Format.BSON, paths).next(),
+				Variant.newParser(new ByteArrayInputStream(bcon.toByteArray()),
+						Format.BCON, paths).next() };
+		for (Variant result : results) {
+			assertEquals(expected, canonical(result));
+		}
+		Variant full = Variant.newParser(new ByteArrayInputStream(bson.toByteArray()),
+				Format.BSON).next();
+		assertEquals(canonical(doc), canonical(full));
+
+		// Keys longer than the initial key buffer, in nested documents
+		char[] longKey = new char[150];
+		Arrays.fill(longKey, 'k');
+		VariantMap nested = new VariantMap().put(new String(longKey), 1);
+		VariantMap outerDoc = new VariantMap().put(new String(longKey, 0, 100), 2);
+		outerDoc.put("n", nested);
+		outerDoc.put("z", 3);
+		ByteArrayOutputStream nestedBson = new ByteArrayOutputStream();
+		Variant.serializeBSON(nestedBson, outerDoc);
+		assertEquals(canonical(outerDoc), canonical(Variant.newParser(
+				new ByteArrayInputStream(nestedBson.toByteArray()),
+				Format.BSON).next()));
+
+		// Truncated in a map key and in a list index
+		byte[] data = bson.toByteArray();
+		int list = 0;
+		while (data[list] != 0x04 || data[list + 1] != 'l' || data[list + 2] != 0) {
+			list++;
+		}
+		for (int len : new int[] { 5, 6, list + 8, list + 9 }) {
+			try {
+				Variant.newParser(new ByteArrayInputStream(data, 0, len),
+						Format.BSON, paths).next();
+				fail("length " + len);
+			} catch (EOFException e) {
+				// expected
+			}
+		}
+	}
+
+	private static String canonical(Variant value) {
+		switch (value.type()) {
+		case MAP: {
+			java.util.TreeMap<String, String> ret = new java.util.TreeMap<>();
+			for (java.util.Map.Entry<String, Variant> elt : value.toMap().entrySet()) {
+				ret.put(elt.getKey(), canonical(elt.getValue()));
+			}
+			return ret.toString();
+		}
+		case LIST: {
+			java.util.List<String> ret = new java.util.ArrayList<>();
+			for (Variant elt : value.toList()) {
+				ret.add(canonical(elt));
+			}
+			return ret.toString();
+		}
+		default:
+			return value.toString();
+		}
+	}
+
+	public void testLazyBSONMap() throws Exception {
+		VariantMap doc = sampleDocument();
+		doc.put("d", 0.1);
+		doc.put("long", 1L << 40);
+		doc.put("bin", new VariantByteArray(new byte[] { 1, 2, 3 }));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Variant.serializeBSON(output, doc);
+		byte[] raw = output.toByteArray();
+
+		VariantBSONMap lazy = new VariantBSONMap(raw);
+		assertEquals(doc.size(), lazy.size());
+		assertEquals(0.1, lazy.get("d").doubleValue());
+		assertEquals(1L << 40, lazy.get("long").longValue());
+		assertEquals(1, lazy.get("a").toMap().get("b").intValue());
+		assertEquals("four", lazy.get("a").toMap().get("d").toList().get(1)
+				.toString());
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, lazy.get("bin")
+				.toByteArray()));
+		assertNull(lazy.get("missing"));
+		assertEquals(canonical(doc), canonical(lazy));
+		assertFalse(lazy.isModified());
+
+		output.reset();
+		Variant.serializeBSON(output, lazy);
+		assertTrue(Arrays.equals(raw, output.toByteArray()));
+
+		lazy.get("a").toMap().get("d").toList().add(5);
+		assertTrue(lazy.isModified());
+		output.reset();
+		Variant.serializeBSON(output, lazy);
+		Variant parsed = Variant.newParser(
+				new ByteArrayInputStream(output.toByteArray()), Format.BSON,
+				Variant.PARSE_BSON_LAZY).next();
+		assertEquals(3, parsed.toMap().get("a").toMap().get("d").toList()
+				.size());
+
+		// The serializers read the lazy content
+		VariantBSONMap fresh = new VariantBSONMap(raw);
+		assertEquals(serialize(doc, 0), serialize(fresh, 0));
+		VariantMap outer = new VariantMap();
+		outer.put("lazy", new VariantBSONMap(raw));
+		assertEquals(canonical(doc), canonical(Variant.newParser(
+				stream(serialize(outer, 0)), Format.JSON).next().toMap()
+				.get("lazy")));
+		output.reset();
+		Variant.serializeBCON(output, new VariantBSONMap(raw));
+		assertEquals(canonical(doc), canonical(Variant.newParser(
+				new ByteArrayInputStream(output.toByteArray()), Format.BCON)
+				.next()));
+		fresh.get("l").toList().add(2);
+		assertTrue(fresh.isModified());
+		output.reset();
+		Variant.serializeBSON(output, fresh);
+		parsed = Variant.newParser(
+				new ByteArrayInputStream(output.toByteArray()), Format.BSON)
+				.next();
+		assertEquals(doc.size(), parsed.toMap().size());
+		assertEquals(3, parsed.toMap().get("l").toList().size());
+	}
+
+	public void testBSONWriter() throws Exception {
+		VariantMap doc = sampleDocument();
+		VariantMap deep = doc;
+		for (int i = 0; i < 20; i++) {
+			VariantMap sub = new VariantMap().put("i", i).put("s", "\u00e9t\u00e9");
+			deep.put("sub", sub);
+			deep = sub;
+		}
+		BSONWriter writer = new BSONWriter(16);
+		writer.write(doc);
+		Variant parsed = Variant.newParser(
+				new ByteArrayInputStream(writer.toByteArray()), Format.BSON)
+				.next();
+		assertEquals(canonical(doc), canonical(parsed));
+
+		java.nio.ByteBuffer target = java.nio.ByteBuffer.allocate(writer.size());
+		new BSONWriter(target).write(doc);
+		assertFalse(target.hasRemaining());
+		assertEquals(java.nio.ByteOrder.BIG_ENDIAN, target.order());
+		assertTrue(Arrays.equals(writer.toByteArray(), target.array()));
+		// Caller buffer holding other bytes before the document
+		java.nio.ByteBuffer shifted = java.nio.ByteBuffer
+				.allocate(writer.size() + 3);
+		shifted.put(new byte[] { 7, 7, 7 });
+		BSONWriter shiftedWriter = new BSONWriter(shifted);
+		shiftedWriter.write(doc);
+		assertEquals(writer.size(), shiftedWriter.size());
+		assertTrue(Arrays.equals(writer.toByteArray(),
+				shiftedWriter.toByteArray()));
+		ByteArrayOutputStream shiftedOutput = new ByteArrayOutputStream();
+		shiftedWriter.writeTo(shiftedOutput);
+		assertTrue(Arrays.equals(writer.toByteArray(),
+				shiftedOutput.toByteArray()));
+		shiftedWriter.reset();
+		assertEquals(0, shiftedWriter.size());
+		assertEquals(3, shifted.position());
+		try {
+			new BSONWriter(java.nio.ByteBuffer.allocate(8)).write(doc);
+			fail();
+		} catch (java.nio.BufferOverflowException e) {
+			// expected
+		}
+	}
+
+	public void testBCONCodec() throws Exception {
+		char[] big = new char[(1 << 20) + 5];
+		Arrays.fill(big, 'x');
+		VariantMap doc = sampleDocument();
+		doc.put("short", new VariantShort((short) -2));
+		doc.put("ushort", new VariantUShort((short) 1000));
+		doc.put("ulong", new VariantULong(-1L));
+		doc.put("double", new VariantDouble(0.1));
+		doc.put("bin", new VariantByteArray(new byte[] { 1, 2, 3 }));
+		doc.put("bin12", new VariantByteArray(new byte[100]));
+		doc.put("bin20", new VariantByteArray(new byte[5000]));
+		doc.put("\u00e9t\u00e9", "\u00e9t\u00e9");
+		doc.put("big", new String(big));
+
+		final int[] reads = { 0 };
+		ByteArrayOutputStream output = new ByteArrayOutputStream() {
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				reads[0]++;
+				super.write(b, off, len);
+			}
+		};
+		Variant.serializeBCON(output, doc);
+		Variant.serializeBCON(output, new VariantList().add(7));
+		assertTrue(reads[0] < 10);
+
+		reads[0] = 0;
+		InputStream input = new ByteArrayInputStream(output.toByteArray()) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				reads[0]++;
+				return super.read(b, off, len);
+			}
+		};
+		Variant.Parser parser = Variant.newParser(input, Format.BCON);
+		Variant parsed = parser.next();
+		assertEquals(canonical(doc), canonical(parsed));
+		assertEquals(-2, parsed.toMap().get("short").intValue());
+		assertEquals(1000, parsed.toMap().get("ushort").intValue());
+		assertEquals(-1L, parsed.toMap().get("ulong").longValue());
+		assertEquals(0.1, parsed.toMap().get("double").doubleValue());
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, parsed.toMap()
+				.get("bin").toByteArray()));
+		assertEquals("[7]", canonical(parser.next()));
+		assertTrue(reads[0] < 10);
+
+		BCONWriter writer = new BCONWriter();
+		writer.write(doc);
+		java.nio.ByteBuffer source = java.nio.ByteBuffer.allocateDirect(writer
+				.size());
+		new BCONWriter(source).write(doc);
+		assertFalse(source.hasRemaining());
+		assertEquals(java.nio.ByteOrder.BIG_ENDIAN, source.order());
+		source.flip();
+		assertEquals(canonical(doc), canonical(new BCONReader(source).read()));
+		assertFalse(source.hasRemaining());
+		assertEquals(java.nio.ByteOrder.BIG_ENDIAN, source.order());
+
+		// Caller buffer holding other bytes before the value
+		java.nio.ByteBuffer shifted = java.nio.ByteBuffer
+				.allocate(writer.size() + 3);
+		shifted.put(new byte[] { 7, 7, 7 });
+		BCONWriter shiftedWriter = new BCONWriter(shifted);
+		shiftedWriter.write(doc);
+		assertEquals(writer.size(), shiftedWriter.size());
+		assertTrue(Arrays.equals(writer.toByteArray(),
+				shiftedWriter.toByteArray()));
+		ByteArrayOutputStream shiftedOutput = new ByteArrayOutputStream();
+		shiftedWriter.writeTo(shiftedOutput);
+		assertTrue(Arrays.equals(writer.toByteArray(),
+				shiftedOutput.toByteArray()));
+		shiftedWriter.reset();
+		assertEquals(0, shiftedWriter.size());
+		assertEquals(3, shifted.position());
+	}
+
+	public void testBCONFileReader() throws Exception {
+		java.io.File file = java.io.File.createTempFile("jvar", ".bcon");
+		try {
+			java.io.FileOutputStream output = new java.io.FileOutputStream(file);
+			for (int i = 0; i < 10; i++) {
+				VariantMap doc = sampleDocument();
+				doc.put("i", i);
+				doc.put("bin", new VariantByteArray(new byte[] { (byte) i }));
+				Variant.serializeBCON(output, doc);
+			}
+			output.close();
+
+			// Small mapping window to cross the window boundaries
+			BCONFileReader reader = new BCONFileReader(file, 256);
+			int i = 0;
+			while (reader.hasNext()) {
+				Variant doc = reader.next();
+				assertEquals(i, doc.toMap().get("i").intValue());
+				assertTrue(doc.toMap().get("s") instanceof VariantStringSlice);
+				assertEquals("str", doc.toMap().get("s").toString());
+				assertEquals("two", doc.toMap().get("a").toMap().get("c")
+						.toString());
+				VariantByteArraySlice bin = (VariantByteArraySlice) doc
+						.toMap().get("bin");
+				assertEquals(1, bin.slice().remaining());
+				assertEquals(i, bin.toByteArray()[0]);
+				i++;
+			}
+			assertEquals(10, i);
+			assertEquals(file.length(), reader.position());
+			reader.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testJSONWriter() throws Exception {
+		VariantList escapes = new VariantList().add("a\"b\\/\n\t\u0001\u001f\u00e9\u20ac\ud83d\ude00");
+		StringBuilder builder = new StringBuilder();
+		new JSONCharWriter(builder).write(escapes, Variant.FORMAT_JSON_COMPACT);
+		assertEquals("[\"a\\\"b\\\\/\\n\\t\\u0001\\u001f\u00e9\u20ac\ud83d\ude00\"]",
+				builder.toString());
+
+		VariantList nested = new VariantList().add(1);
+		nested.add(new VariantList().add(2));
+		nested.add(new VariantMap());
+		assertEquals("[\n    1,\n    [\n        2\n    ],\n    {}\n]",
+				nested.toString());
+		assertEquals("[1, [2], {}]", serialize(nested, 0));
+		assertEquals("[1,[2],{}]", serialize(nested, Variant.FORMAT_JSON_COMPACT));
+
+		char[] big = new char[20000];
+		Arrays.fill(big, '\u00e9');
+		VariantMap doc = sampleDocument();
+		doc.put("escapes", escapes);
+		doc.put("big", new String(big));
+		for (int flags : new int[] { 0, 2, Variant.FORMAT_JSON_COMPACT }) {
+			String expected = serialize(doc, flags);
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			Variant.serializeJSON(output, doc, flags);
+			assertEquals(expected, new String(output.toByteArray(), "UTF-8"));
+
+			JSONByteWriter writer = new JSONByteWriter(16);
+			writer.write(doc, flags);
+			assertTrue(Arrays.equals(output.toByteArray(), writer.toByteArray()));
+
+			java.nio.ByteBuffer target = java.nio.ByteBuffer.allocate(writer.size());
+			JSONByteWriter bufferWriter = new JSONByteWriter(target);
+			bufferWriter.write(doc, flags);
+			bufferWriter.flush();
+			assertTrue(Arrays.equals(writer.toByteArray(), target.array()));
+
+			Variant parsed = Variant.newParser(
+					new ByteArrayInputStream(output.toByteArray()), Format.JSON)
+					.next();
+			assertEquals(canonical(doc), canonical(parsed));
+		}
+	}
+
+	private static String serialize(Variant variant, int flags)
+			throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		java.io.OutputStreamWriter writer = new java.io.OutputStreamWriter(
+				output, "UTF-8");
+		Variant.serializeJSON(writer, variant, flags);
+		writer.flush();
+		return new String(output.toByteArray(), "UTF-8");
+	}
+
+	public void testValueCache() throws Exception {
+		assertSame(VariantNumber.optimize(5), VariantNumber.optimize(5L));
+		assertSame(VariantNumber.optimize(1000), VariantNumber.optimize(1000));
+		assertSame(VariantNumber.optimize(-3), VariantNumber.optimize(-3));
+		assertNotSame(VariantNumber.optimize(100000),
+				VariantNumber.optimize(100000));
+		// Same variant types as the uncached values
+		assertEquals("VariantByte", VariantNumber.optimize(5).getClass()
+				.getSimpleName());
+		assertEquals("VariantUShort", VariantNumber.optimize(1000).getClass()
+				.getSimpleName());
+		assertEquals("VariantInt", VariantNumber.optimize(-3).getClass()
+				.getSimpleName());
+		assertEquals(-3, VariantNumber.optimize(-3).intValue());
+
+		for (Format format : Format.values()) {
+			VariantList list = new VariantList().add(7).add(7).add(true)
+					.add(true).add("").add("");
+			list.add(Variant.NULL);
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			if (format == Format.JSON) {
+				Variant.serializeJSON(output, list, 0);
+			} else if (format == Format.BSON) {
+				Variant.serializeBSON(output, list);
+			} else {
+				Variant.serializeBCON(output, list);
+			}
+			Variant parsed = Variant.newParser(
+					new ByteArrayInputStream(output.toByteArray()), format)
+					.next();
+			java.util.List<Variant> values = new java.util.ArrayList<Variant>(
+					format == Format.BSON ? parsed.toMap().values() : parsed
+							.toList());
+			if (format != Format.BSON) {
+				assertSame(values.get(0), values.get(1));
+				assertSame(Variant.TRUE, values.get(2));
+				assertSame(VariantString.EMPTY, values.get(4));
+				assertSame(Variant.NULL, values.get(6));
+			} else {
+				assertEquals(7, values.size());
+			}
+		}
+		assertSame(new VariantList().add(3).get(0), new VariantMap().put(
+				"k", 3).get("k"));
+	}
+
+	public void testCompactMap() throws Exception {
+		java.util.Random random = new java.util.Random(42);
+		for (int round = 0; round < 200; round++) {
+			VariantMap map = new VariantMap();
+			java.util.Map<String, Variant> expected = new java.util.HashMap<String, Variant>();
+			java.util.Set<String> keys = map.keySet();
+			for (int op = 0; op < 60; op++) {
+				String key = "k" + random.nextInt(20);
+				switch (random.nextInt(5)) {
+				case 0:
+				case 1:
+					Variant value = VariantNumber.optimize(op);
+					assertEquals(expected.put(key, value), map.put(key, value));
+					break;
+				case 2:
+					assertEquals(expected.remove(key), map.remove(key));
+					break;
+				case 3: {
+					java.util.Iterator<java.util.Map.Entry<String, Variant>> it = map
+							.entrySet().iterator();
+					while (it.hasNext()) {
+						java.util.Map.Entry<String, Variant> entry = it.next();
+						if (entry.getKey().equals(key)) {
+							it.remove();
+							expected.remove(key);
+						} else {
+							entry.setValue(Variant.TRUE);
+							expected.put(entry.getKey(), Variant.TRUE);
+						}
+					}
+					break;
+				}
+				default:
+					assertEquals(expected.get(key), map.get(key));
+					assertEquals(expected.containsKey(key), map.containsKey(key));
+					break;
+				}
+				assertEquals(expected.size(), map.size());
+				assertEquals(expected.keySet(), keys);
+				assertEquals(expected, new java.util.HashMap<String, Variant>(map));
+			}
+		}
+	}
+
+	public void testPackedList() throws Exception {
+		String json = "[[1, 300, 70000, 5000000000, -7], [0.5, 1.5, -2.0],"
+				+ " [1, 2.5], [1, \"a\"]]";
+		VariantList lists = Variant.newParser(stream(json), Format.JSON)
+				.next().toList();
+		Variant expected = Variant.newParser(stream(json), Format.JSON,
+				Variant.PARSE_JSON_SCANNER).next();
+		assertVariantEquals(expected, lists);
+		VariantList ints = lists.get(0).toList();
+		assertEquals(Variant.Type.BYTE, ints.get(0).type());
+		assertEquals(Variant.Type.LONG, ints.get(4).type());
+		assertEquals(5000000000L, ints.get(3).longValue());
+		assertTrue(Arrays.equals(new long[] { 1, 300, 70000, 5000000000L, -7 },
+				ints.toLongArray()));
+		assertTrue(Arrays.equals(new double[] { 0.5, 1.5, -2.0 }, lists.get(1)
+				.toList().toDoubleArray()));
+		assertEquals(2.5, lists.get(2).toList().get(1).doubleValue());
+		assertEquals("a", lists.get(3).toList().get(1).toString());
+
+		// Elements of an other kind switch the storage
+		VariantList list = new VariantList(new long[] { -1, -2 });
+		assertEquals(Variant.Type.LONG, list.get(0).type());
+		list.add(VariantNumber.optimize(3L));
+		assertEquals(Variant.Type.LONG, list.get(1).type());
+		assertEquals(Variant.Type.BYTE, list.get(2).type());
+		list.add(1, new VariantDouble(0.5));
+		list.set(0, new VariantString("x"));
+		list.remove(3);
+		assertEquals("[x, 0.5, -2]", canonical(list));
+
+		list = new VariantList(new int[] { 1, 2, 3 });
+		list.remove(0);
+		list.add(0, VariantInt.valueOf(9));
+		assertEquals(Variant.Type.INT, list.get(0).type());
+		assertTrue(Arrays.equals(new long[] { 9, 2, 3 }, list.toLongArray()));
+		VariantList copy = (VariantList) list.clone(0);
+		copy.set(0, VariantInt.valueOf(4));
+		assertEquals(9, list.get(0).intValue());
+		assertEquals("[4, 2, 3]", canonical(copy));
+		java.util.Iterator<Variant> it = list.iterator();
+		it.next();
+		it.remove();
+		assertEquals("[2, 3]", canonical(list));
+
+		for (Format format : Format.values()) {
+			VariantMap doc = new VariantMap();
+			doc.put("d", new VariantList(new double[] { 1.25, -3, 1e300 }));
+			doc.put("l", new VariantList(new long[] { 1, 1L << 40 }));
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			if (format == Format.JSON) {
+				Variant.serializeJSON(output, doc, 0);
+			} else if (format == Format.BSON) {
+				Variant.serializeBSON(output, doc);
+			} else {
+				Variant.serializeBCON(output, doc);
+			}
+			VariantMap parsed = Variant.newParser(
+					new ByteArrayInputStream(output.toByteArray()), format)
+					.next().toMap();
+			assertTrue(Arrays.equals(new double[] { 1.25, -3, 1e300 }, parsed
+					.get("d").toList().toDoubleArray()));
+			assertTrue(Arrays.equals(new long[] { 1, 1L << 40 },
+					parsed.get("l").toList().toLongArray()));
+		}
+	}
+
+	public void testKeyTable() throws Exception {
+		KeyTable table = new KeyTable(16);
+		byte[] bytes = "xcaf\u00e9".getBytes("UTF-8");
+		String key = table.intern(bytes, 1, bytes.length - 1);
+		assertEquals("caf\u00e9", key);
+		assertSame(key, table.intern(bytes.clone(), 1, bytes.length - 1));
+		assertSame(key, table.intern(java.nio.ByteBuffer.allocateDirect(16)
+				.put(bytes), 1, bytes.length - 1));
+
+		for (Format format : Format.values()) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			for (int i = 0; i < 2; i++) {
+				VariantMap doc = new VariantMap().put("name", "n" + i).put(
+						"value", i);
+				doc.put("sub", new VariantMap().put("name", i));
+				if (format == Format.JSON) {
+					Variant.serializeJSON(output, doc, 0);
+				} else if (format == Format.BSON) {
+					Variant.serializeBSON(output, doc);
+				} else {
+					Variant.serializeBCON(output, doc);
+				}
+			}
+			Variant.Parser parser = Variant.newParser(new ByteArrayInputStream(
+					output.toByteArray()), format, Variant.PARSE_INTERN_KEYS);
+			VariantMap first = parser.next().toMap();
+			VariantMap second = parser.next().toMap();
+			assertEquals("n1", second.get("name").toString());
+			assertSame(keyOf(first, "name"), keyOf(second, "name"));
+			assertSame(keyOf(first, "name"), keyOf(second.get("sub").toMap(),
+					"name"));
+
+			parser = Variant.newParser(new ByteArrayInputStream(
+					output.toByteArray()), format);
+			first = parser.next().toMap();
+			second = parser.next().toMap();
+			assertNotSame(keyOf(first, "name"), keyOf(second, "name"));
+		}
+	}
+
+	private static String keyOf(VariantMap map, String key) {
+		for (String k : map.keySet()) {
+			if (k.equals(key)) {
+				return k;
+			}
+		}
+		return null;
+	}
+
+	public void testVariantPath() throws Exception {
+		VariantMap root = Variant.newParser(
+				stream("{\"users\": [{\"name\": \"a\"}, {\"name\": \"b\"}],"
+						+ " \"n\": 1}"), Format.JSON).next().toMap();
+		VariantPath name = VariantPath.compile("users.1.name");
+		assertEquals(3, name.depth());
+		assertEquals("b", name.get(root).toString());
+		assertNull(VariantPath.compile("users.2.name").get(root));
+		assertNull(VariantPath.compile("n.x").get(root));
+		assertEquals(VariantPath.of("users", "1", "name"), VariantPath.compile(
+				"/users/1/name", '/'));
+
+		name.set(root, new VariantString("c"));
+		assertEquals("c", name.get(root).toString());
+		VariantPath.compile("users.2.name").set(root, new VariantString("d"));
+		assertEquals(3, root.get("users").toList().size());
+		VariantPath.compile("n.x.y").set(root, Variant.TRUE);
+		assertTrue(root.get("n").toMap().get("x").toMap().get("y")
+				.booleanValue());
+		try {
+			VariantPath.compile("users.9.name").set(root, Variant.TRUE);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+		assertEquals("a", VariantPath.compile("users.0.name").remove(root)
+				.toString());
+		assertNull(VariantPath.compile("users.0.name").get(root));
+		assertEquals("c", VariantPath.compile("users.1").remove(root).toMap()
+				.get("name").toString());
+		assertNull(VariantPath.compile("none.a").remove(root));
+
+		Variant created = VariantPath.compile("a.b").set(null, Variant.TRUE);
+		assertEquals("{a={b=true}}", canonical(created));
+
+		// Legacy helpers
+		VariantMap data = new VariantMap();
+		VariantMap.updatePath(data, "..x.y.", VariantNumber.optimize(1));
+		assertEquals(1, VariantMap.resolvePath(data, "x").toMap().get("y")
+				.intValue());
+		assertNull(VariantMap.resolvePath(data, "x.z"));
+		VariantMap.updatePath(data, "x.y", null);
+		assertTrue(VariantMap.resolvePath(data, ".x").isEmpty());
+	}
+
+	public void testDateTimeFormat() throws Exception {
+		java.util.Random random = new java.util.Random(7);
+		for (String id : new String[] { "Europe/Paris", "UTC",
+				"America/New_York", "Asia/Kolkata", "Australia/Lord_Howe" }) {
+			java.util.TimeZone zone = java.util.TimeZone.getTimeZone(id);
+			DateTimeFormat format = new DateTimeFormat(zone);
+			java.util.Calendar calendar = java.util.Calendar.getInstance(zone);
+			for (int i = 0; i < 2000; i++) {
+				// From 1901 to 2100
+				long millis = (long) ((random.nextDouble() - 0.45) * 7.0e12);
+				calendar.setTimeInMillis(millis);
+				String expected = String.format("%d-%02d-%02d %2d:%02d:%02d",
+						calendar.get(java.util.Calendar.YEAR),
+						calendar.get(java.util.Calendar.MONTH) + 1,
+						calendar.get(java.util.Calendar.DAY_OF_MONTH),
+						calendar.get(java.util.Calendar.HOUR_OF_DAY),
+						calendar.get(java.util.Calendar.MINUTE),
+						calendar.get(java.util.Calendar.SECOND));
+				assertEquals(expected, format.format(millis));
+				// Same instant as a Calendar for the ambiguous local times
+				int[] fields = { calendar.get(java.util.Calendar.YEAR),
+						calendar.get(java.util.Calendar.MONTH),
+						calendar.get(java.util.Calendar.DAY_OF_MONTH),
+						calendar.get(java.util.Calendar.HOUR_OF_DAY),
+						calendar.get(java.util.Calendar.MINUTE),
+						calendar.get(java.util.Calendar.SECOND),
+						calendar.get(java.util.Calendar.MILLISECOND) };
+				calendar.clear();
+				calendar.set(fields[0], fields[1], fields[2], fields[3],
+						fields[4], fields[5]);
+				assertEquals(calendar.getTimeInMillis(), format.parse(expected));
+				assertEquals(calendar.getTimeInMillis() + fields[6],
+						format.parse(expected + "."
+								+ String.format("%03d", fields[6])));
+				assertEquals(calendar.getTimeInMillis(), format.toMillis(
+						fields[0], fields[1], fields[2], fields[3], fields[4],
+						fields[5], 0));
+			}
+		}
+		// Local times skipped or repeated by a transition
+		Object[][] transitions = {
+				{ "Europe/Paris", new int[] { 1929, 9, 5, 23, 34, 44 } },
+				{ "Europe/Paris", new int[] { 1939, 3, 15, 23, 12, 7 } },
+				{ "Europe/Paris", new int[] { 2021, 2, 28, 2, 30, 0 } },
+				{ "Europe/Paris", new int[] { 2021, 9, 31, 2, 30, 0 } },
+				{ "America/New_York", new int[] { 2021, 2, 14, 2, 30, 0 } },
+				{ "America/New_York", new int[] { 2021, 10, 7, 1, 30, 0 } },
+				{ "Australia/Lord_Howe", new int[] { 2021, 9, 3, 2, 15, 0 } },
+				{ "Australia/Lord_Howe", new int[] { 2021, 3, 4, 1, 45, 0 } } };
+		for (Object[] transition : transitions) {
+			java.util.TimeZone zone = java.util.TimeZone
+					.getTimeZone((String) transition[0]);
+			int[] fields = (int[]) transition[1];
+			java.util.Calendar calendar = java.util.Calendar.getInstance(zone);
+			calendar.clear();
+			calendar.set(fields[0], fields[1], fields[2], fields[3], fields[4],
+					fields[5]);
+			assertEquals(calendar.getTimeInMillis(), new DateTimeFormat(zone)
+					.toMillis(fields[0], fields[1], fields[2], fields[3],
+							fields[4], fields[5], 0));
+		}
+		java.util.Calendar calendar = java.util.Calendar.getInstance(
+				java.util.TimeZone.getTimeZone("Europe/Paris"));
+		calendar.clear();
+		calendar.set(2014, 13, 35, 25, 61, 0);
+		assertEquals(calendar.getTimeInMillis(), VariantDateTime.getDate(2014,
+				13, 35, 25, 61, 0, 0).getTime());
+
+		VariantDateTime date = new VariantDateTime(VariantDateTime.getDate(
+				2014, 2, 5, 7, 8, 9, 0));
+		assertEquals("2014-03-05  7:08:09", date.toString());
+		assertEquals("2014-03-05  6:08:09", date.toString(new DateTimeFormat(
+				java.util.TimeZone.getTimeZone("UTC"))));
+		assertEquals(date.longValue(), VariantDateTime.parse(date.toString())
+				.longValue());
+		VariantList list = new VariantList();
+		list.add(date);
+		assertEquals("[\"2014-03-05  7:08:09\"]", serialize(list,
+				Variant.FORMAT_JSON_COMPACT));
+		try {
+			VariantDateTime.parse("2014-3-05 07:08:09");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testIdGenerator() throws Exception {
+		java.util.Set<String> ids = new java.util.HashSet<String>();
+		for (int i = 0; i < 1000; i++) {
+			String id = Variant.IUD_GENERATOR.toString();
+			assertTrue(id, id.matches("[89A-F][0-9A-F]{15}[89A-F][0-9A-F]{15}"));
+			assertTrue(ids.add(id));
+		}
+		String first = Variant.IUD_TIME_GENERATOR.toString();
+		Thread.sleep(2);
+		String second = Variant.IUD_TIME_GENERATOR.toString();
+		assertTrue(first.compareTo(second) < 0);
+		long millis = Long.parseLong(second.substring(0, 12), 16) & 0x7FFFFFFFFFFFL;
+		assertTrue(Math.abs(System.currentTimeMillis() - millis) < 1000);
+		assertEquals(Variant.Type.STRING, Variant.IUD_TIME_GENERATOR.type());
+		VariantMap doc = new VariantMap();
+		doc.put("id", Variant.IUD_GENERATOR);
+		String json = serialize(doc, Variant.FORMAT_JSON_COMPACT);
+		assertEquals(41, json.length());
+	}
+
+	public void testPersistentMap() throws Exception {
+		java.util.Random random = new java.util.Random(42);
+		java.util.List<VariantMap> maps = new java.util.ArrayList<VariantMap>();
+		java.util.List<java.util.Map<String, Variant>> expected = new java.util.ArrayList<java.util.Map<String, Variant>>();
+		maps.add((VariantMap) new VariantMap().clone(Variant.PERSISTENT));
+		expected.add(new java.util.HashMap<String, Variant>());
+		for (int op = 0; op < 20000; op++) {
+			int v = random.nextInt(maps.size());
+			VariantMap map = maps.get(v);
+			java.util.Map<String, Variant> exp = expected.get(v);
+			// "Aa" and "BB" have the same hash code
+			String key = random.nextInt(10) == 0 ? (random.nextBoolean() ? "Aa"
+					: "BB") : "k" + random.nextInt(500);
+			switch (random.nextInt(8)) {
+			case 0:
+				if (maps.size() < 10) {
+					maps.add((VariantMap) map.clone(0));
+					expected.add(new java.util.HashMap<String, Variant>(exp));
+				}
+				break;
+			case 1:
+				assertEquals(exp.remove(key), map.remove(key));
+				break;
+			case 2:
+				assertEquals(exp.get(key), map.get(key));
+				assertEquals(exp.containsKey(key), map.containsKey(key));
+				break;
+			default:
+				Variant value = VariantNumber.optimize(op);
+				assertEquals(exp.put(key, value), map.put(key, value));
+				break;
+			}
+		}
+		for (int i = 0; i < maps.size(); i++) {
+			assertEquals(expected.get(i).size(), maps.get(i).size());
+			assertEquals(expected.get(i), new java.util.HashMap<String, Variant>(maps.get(i)));
+			java.util.Iterator<String> it = maps.get(i).keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().startsWith("k1")) {
+					it.remove();
+				}
+			}
+			for (String key : maps.get(i).keySet()) {
+				assertFalse(key.startsWith("k1"));
+			}
+		}
+
+		VariantMap doc = Variant.newParser(
+				stream("{\"a\": {\"b\": [1, 2, 3]}, \"c\": \"d\"}"),
+				Format.JSON).next().toMap();
+		VariantMap copy = (VariantMap) doc.clone(Variant.DEEP_COPY
+				| Variant.PERSISTENT);
+		assertEquals(doc.toString(), copy.toString());
+		VariantMap frozen = (VariantMap) copy.clone(Variant.UNMODIFIABLE);
+		copy.put("c", "e");
+		copy.get("a").toMap().get("b").toList().add(4);
+		assertEquals("d", frozen.get("c").toString());
+		assertEquals("e", copy.get("c").toString());
+		assertEquals("d", doc.get("c").toString());
+		assertEquals(3, doc.get("a").toMap().get("b").toList().size());
+		try {
+			frozen.put("c", "f");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
+	public void testPersistentList() throws Exception {
+		VariantList list = (VariantList) new VariantList().clone(Variant.PERSISTENT);
+		int count = 40000;
+		for (int i = 0; i < count; i++) {
+			list.add(i);
+		}
+		VariantList copy = (VariantList) list.clone(0);
+		for (int i = 0; i < count; i += 7) {
+			copy.set(i, VariantInt.valueOf(-i));
+		}
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, list.get(i).intValue());
+			assertEquals(i % 7 == 0 ? -i : i, copy.get(i).intValue());
+		}
+		VariantList other = (VariantList) copy.clone(0);
+		while (copy.size() > 5) {
+			copy.remove(copy.size() - 1);
+		}
+		assertEquals("[0, 1, 2, 3, 4]", list.subList(0, 5).toString());
+		assertEquals(5, copy.size());
+		assertEquals(count, other.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals(i % 7 == 0 ? -i : i, other.get(i).intValue());
+		}
+		for (int i = 0; i < 100; i++) {
+			other.add(i);
+			assertEquals(i, other.get(count + i).intValue());
+		}
+		copy.add(1, VariantInt.valueOf(10));
+		copy.remove(3);
+		assertEquals(Arrays.asList(0, 10, 1, 3, 4), Arrays.asList(copy.get(0)
+				.intValue(), copy.get(1).intValue(), copy.get(2).intValue(),
+				copy.get(3).intValue(), copy.get(4).intValue()));
+		assertEquals(count, list.size());
+		list.subList(10, count).clear();
+		assertEquals(10, list.size());
+		assertEquals(9, list.get(9).intValue());
+	}
+
+	public void testCopyOnWrite() throws Exception {
+		java.util.Random random = new java.util.Random(42);
+		String[] keys = { "x", "y", "z" };
+		java.util.List<VariantMap> versions = new java.util.ArrayList<VariantMap>();
+		java.util.List<VariantMap> expected = new java.util.ArrayList<VariantMap>();
+		versions.add(new VariantMap());
+		expected.add(new VariantMap());
+		for (int op = 0; op < 5000; op++) {
+			int v = random.nextInt(versions.size());
+			StringBuilder path = new StringBuilder();
+			int depth = 1 + random.nextInt(4);
+			for (int i = 0; i < depth; i++) {
+				path.append('.').append(keys[random.nextInt(keys.length)]);
+			}
+			VariantPath p = VariantPath.compile(path.toString());
+			switch (random.nextInt(6)) {
+			case 0:
+				if (versions.size() < 8) {
+					versions.add((VariantMap) versions.get(v).clone(Variant.COPY_ON_WRITE));
+					expected.add((VariantMap) expected.get(v).clone(Variant.DEEP_COPY));
+				}
+				break;
+			case 1:
+				Variant removed = p.remove(expected.get(v));
+				Variant actual = p.remove(versions.get(v));
+				assertEquals(removed == null ? null : canonical(removed),
+						actual == null ? null : canonical(actual));
+				break;
+			default:
+				p.set(versions.get(v), VariantInt.valueOf(op));
+				p.set(expected.get(v), VariantInt.valueOf(op));
+				break;
+			}
+			if (op % 100 == 0) {
+				for (int i = 0; i < versions.size(); i++) {
+					assertEquals(canonical(expected.get(i)), canonical(versions.get(i)));
+				}
+			}
+		}
+		for (int i = 0; i < versions.size(); i++) {
+			assertEquals(canonical(expected.get(i)), canonical(versions.get(i)));
+		}
+
+		VariantMap doc = new VariantMap();
+		VariantList items = new VariantList();
+		for (int i = 0; i < 100; i++) {
+			VariantMap item = new VariantMap();
+			item.put("id", i);
+			items.add(item);
+		}
+		doc.put("items", items);
+		doc.put("name", "doc");
+		VariantMap copy = (VariantMap) doc.clone(Variant.COPY_ON_WRITE);
+		String json = serialize(doc, Variant.FORMAT_JSON_COMPACT);
+		assertEquals(canonical(doc), canonical(copy));
+		copy.get("items").toList().get(42).toMap().put("id", -1);
+		copy.get("items").toList().add(new VariantMap());
+		assertEquals(json, serialize(doc, Variant.FORMAT_JSON_COMPACT));
+		assertEquals(-1, copy.get("items").toList().get(42).toMap().get("id").intValue());
+		assertEquals(101, copy.get("items").toList().size());
+		doc.get("items").toList().get(7).toMap().put("id", -7);
+		assertEquals(7, copy.get("items").toList().get(7).toMap().get("id").intValue());
+		assertEquals(-7, doc.get("items").toList().get(7).toMap().get("id").intValue());
+		VariantList list = doc.get("items").toList();
+		assertSame(list, doc.get("items"));
+		assertSame(list.get(3), list.get(3));
+
+		// The original keeps its storage and order
+		VariantMap ordered = new VariantMap();
+		for (int i = 0; i < 9; i++) {
+			ordered.put("k" + i, i);
+		}
+		VariantMap child = new VariantMap();
+		child.put("id", 1);
+		ordered.put("child", child);
+		VariantList values = new VariantList();
+		values.add("a");
+		values.add(child.clone(Variant.DEEP_COPY));
+		ordered.put("values", values);
+		json = serialize(ordered, 0);
+		Variant orderedCopy = ordered.clone(Variant.COPY_ON_WRITE);
+		assertEquals(json, serialize(ordered, 0));
+		assertEquals(canonical(ordered), canonical(orderedCopy));
+		assertEquals(5, ordered.get("k5").intValue());
+		ordered.put("last", 9);
+		assertTrue(serialize(ordered, 0).startsWith(json.substring(0,
+				json.indexOf("\"child\""))));
+		values = ordered.get("values").toList();
+		String listJson = serialize(values, 0);
+		Variant valuesCopy = values.clone(Variant.COPY_ON_WRITE);
+		assertEquals(listJson, serialize(values, 0));
+		values.get(1).toMap().put("id", 3);
+		assertEquals(1, valuesCopy.toList().get(1).toMap().get("id").intValue());
+		// A child taken again from the original is isolated from the clone
+		ordered.get("child").toMap().put("id", 2);
+		assertEquals(1, orderedCopy.toMap().get("child").toMap().get("id").intValue());
+		// The reference taken before the clone is no longer the child of the
+		// original (see COPY_ON_WRITE)
+		assertNotSame(child, ordered.get("child"));
+
+		// Each shared child is copied on its own, aliases included
+		VariantMap parent = new VariantMap();
+		VariantMap alias = new VariantMap().put("v", 0);
+		parent.put("a", alias);
+		parent.put("b", alias);
+		parent.put("c", new VariantList().add(0));
+		VariantMap parentCopy = (VariantMap) parent.clone(Variant.COPY_ON_WRITE);
+		parent.get("a").toMap().put("v", 1);
+		parent.get("b").toMap().put("v", 2);
+		assertSame(parent.get("a"), parent.get("a"));
+		parent.remove("c").toList().add(1);
+		assertEquals("{a={v=1}, b={v=2}}", canonical(parent));
+		assertEquals("{a={v=0}, b={v=0}, c=[0]}", canonical(parentCopy));
+		VariantList elts = new VariantList();
+		elts.add(alias);
+		elts.add(new VariantList().add(0));
+		Variant eltsCopy = elts.clone(Variant.COPY_ON_WRITE);
+		elts.get(1).toList().add(1);
+		elts.set(0, Variant.NULL).toMap().put("v", 3);
+		assertEquals("[null, [0, 1]]", canonical(elts));
+		assertEquals("[{v=0}, [0]]", canonical(eltsCopy));
+	}
+
+	public void testPushParser() throws Exception {
+		java.util.List<Variant> docs = new java.util.ArrayList<Variant>();
+		for (int i = 0; i < 20; i++) {
+			VariantMap doc = sampleDocument();
+			doc.put("i", i);
+			doc.put("q", "a \"}{[\\\" b" + i);
+			docs.add(doc);
+		}
+		java.util.Random random = new java.util.Random(42);
+		for (Format format : Format.values()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (Variant doc : docs) {
+				switch (format) {
+				case JSON:
+					Variant.serializeJSON(out, doc, 4);
+					out.write('\n');
+					break;
+				case BSON:
+					Variant.serializeBSON(out, doc);
+					break;
+				default:
+					Variant.serializeBCON(out, doc);
+					break;
+				}
+			}
+			byte[] data = out.toByteArray();
+			org.mbedsys.jvar.PushParser parser = new org.mbedsys.jvar.PushParser(
+					format);
+			java.util.List<Variant> parsed = new java.util.ArrayList<Variant>();
+			int off = 0;
+			while (off < data.length) {
+				int len = Math.min(data.length - off, 1 + random.nextInt(50));
+				parser.feed(java.nio.ByteBuffer.wrap(data, off, len));
+				off += len;
+				Variant doc;
+				while ((doc = parser.next(false)) != null) {
+					parsed.add(doc);
+				}
+			}
+			assertEquals(format.toString(), docs.size(), parsed.size());
+			for (int i = 0; i < docs.size(); i++) {
+				assertEquals(canonical(docs.get(i)), canonical(parsed.get(i)));
+			}
+			assertEquals(0, parser.buffered());
+			try {
+				parser.next();
+				fail();
+			} catch (EOFException e) {
+				// Expected
+			}
+		}
+		org.mbedsys.jvar.PushParser parser = new org.mbedsys.jvar.PushParser(
+				Format.JSON);
+		byte[] data = " x {\"a\": 1}".getBytes();
+		parser.feed(data, 0, data.length);
+		try {
+			parser.next(false);
+			fail();
+		} catch (ParserException e) {
+			// Expected
+		}
+		assertEquals("{a=1}", canonical(parser.next(false)));
+	}
+
+	public void testNDJSONReader() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		int count = 5000;
+		for (int i = 0; i < count; i++) {
+			builder.append("{\"i\": ").append(i).append(", \"s\": \"line ")
+					.append(i).append("\", \"l\": [").append(i % 7).append("]}\n");
+			if (i % 100 == 0) {
+				builder.append('\n');
+			}
+		}
+		byte[] data = builder.toString().getBytes();
+		java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+		try {
+			org.mbedsys.jvar.NDJSONReader reader = new org.mbedsys.jvar.NDJSONReader(
+					new ByteArrayInputStream(data), pool, true, 256);
+			for (int i = 0; i < count; i++) {
+				VariantMap doc = reader.next().toMap();
+				assertEquals(i, doc.get("i").intValue());
+				assertEquals("line " + i, doc.get("s").toString());
+			}
+			try {
+				reader.next();
+				fail();
+			} catch (EOFException e) {
+				// Expected
+			}
+			reader.close();
+
+			reader = new org.mbedsys.jvar.NDJSONReader(new ByteArrayInputStream(
+					data), pool, false, 1000);
+			boolean[] seen = new boolean[count];
+			for (int i = 0; i < count; i++) {
+				int id = reader.next().toMap().get("i").intValue();
+				assertFalse(seen[id]);
+				seen[id] = true;
+			}
+			reader.close();
+
+			data = "{\"a\": 1}\n{\"a\": 2\n{\"a\": 3}\n".getBytes();
+			reader = new org.mbedsys.jvar.NDJSONReader(new ByteArrayInputStream(
+					data), pool, true, 1);
+			assertEquals(1, reader.next().toMap().get("a").intValue());
+			try {
+				reader.next();
+				fail();
+			} catch (ParserException e) {
+				// Expected
+			}
+			assertEquals(3, reader.next().toMap().get("a").intValue());
+			reader.close();
+
+			// Only the invalid line of a chunk fails
+			data = "{\"a\": 1}\n{\"a\": 2}\n{\"a\" 3}\n\n{\"a\": 4}\n".getBytes();
+			reader = new org.mbedsys.jvar.NDJSONReader(new ByteArrayInputStream(
+					data), pool, true);
+			assertEquals(1, reader.next().toMap().get("a").intValue());
+			assertEquals(2, reader.next().toMap().get("a").intValue());
+			try {
+				reader.next();
+				fail();
+			} catch (ParserException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Line 3:"));
+			}
+			assertEquals(4, reader.next().toMap().get("a").intValue());
+			reader.close();
+
+			// Non blocking reading: the complete lines are parsed without
+			// waiting for a full chunk nor reading unavailable bytes
+			final java.util.ArrayDeque<Byte> fed = new java.util.ArrayDeque<>();
+			InputStream input = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					if (fed.isEmpty()) {
+						throw new IOException("Blocking read");
+					}
+					return fed.poll() & 0xFF;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = Math.min(len, fed.size());
+					if (len > 0 && n == 0) {
+						throw new IOException("Blocking read");
+					}
+					for (int i = 0; i < n; i++) {
+						b[off + i] = fed.poll();
+					}
+					return n;
+				}
+
+				@Override
+				public int available() {
+					return fed.size();
+				}
+			};
+			reader = new org.mbedsys.jvar.NDJSONReader(input, pool, false);
+			assertNull(reader.next(false));
+			for (byte b : "{\"a\": 1}\n{\"a\"".getBytes()) {
+				fed.add(b);
+			}
+			assertEquals(1, nextWithin(reader).toMap().get("a").intValue());
+			assertNull(reader.next(false));
+			for (byte b : ": 2}\n".getBytes()) {
+				fed.add(b);
+			}
+			assertEquals(2, nextWithin(reader).toMap().get("a").intValue());
+			assertNull(reader.next(false));
+			reader.close();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Poll a parser without blocking until a document is available
+	 */
+	private static Variant nextWithin(Variant.Parser parser) throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			Variant ret = parser.next(false);
+			if (ret != null) {
+				return ret;
+			}
+			Thread.sleep(5);
+		}
+		fail("No document parsed");
+		return null;
+	}
+
+	public void testParallelJSON() throws Exception {
+		VariantList list = new VariantList();
+		for (int i = 0; i < 5000; i++) {
+			VariantMap item = new VariantMap();
+			item.put("id", i);
+			item.put("name", "item \"" + i + "\"");
+			item.put("values", new VariantList().add(i).add(i * 0.5));
+			list.add(item);
+		}
+		VariantMap wide = new VariantMap();
+		for (int i = 0; i < 3000; i++) {
+			wide.put("k" + i, i % 3 == 0 ? list.get(i) : new VariantList(new int[] { i }));
+		}
+		VariantMap root = new VariantMap();
+		root.put("list", list);
+		root.put("wide", wide);
+		root.put("empty", new VariantList());
+		java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+		try {
+			for (int flags : new int[] { 0, 2, 4, Variant.FORMAT_JSON_COMPACT }) {
+				for (Variant doc : new Variant[] { root, list, wide }) {
+					ByteArrayOutputStream expected = new ByteArrayOutputStream();
+					Variant.serializeJSON(expected, doc, flags);
+					ByteArrayOutputStream actual = new ByteArrayOutputStream();
+					Variant.serializeJSON(actual, doc, flags, pool);
+					assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+
+					StringBuilder chars = new StringBuilder();
+					JSONCharWriter writer = new JSONCharWriter(chars);
+					writer.setPool(pool);
+					writer.write(doc, flags);
+					assertEquals(new String(expected.toByteArray(), "UTF-8"), chars.toString());
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testDoubleFormat() throws Exception {
+		VariantList list = new VariantList();
+		for (double value : new double[] { 0.0, -0.0, 1.0, -2.5, 0.1, 0.001,
+				9.9e-4, 9999999.0, 1.0e7, 1.0e23, Double.MIN_VALUE,
+				Double.MAX_VALUE }) {
+			list.add(new VariantDouble(value));
+		}
+		assertEquals("[0.0,-0.0,1.0,-2.5,0.1,0.001,9.9E-4,9999999.0,1.0E7,"
+				+ "1.0E23,4.9E-324,1.7976931348623157E308]",
+				serialize(list, Variant.FORMAT_JSON_COMPACT));
+		// Shortest text parsing back to the same value
+		java.util.Random random = new java.util.Random(22);
+		list = new VariantList();
+		double[] values = new double[2000];
+		for (int i = 0; i < values.length; i++) {
+			double value;
+			do {
+				value = Double.longBitsToDouble(random.nextLong());
+			} while (Double.isNaN(value) || Double.isInfinite(value));
+			values[i] = value;
+			list.add(new VariantDouble(value));
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Variant.serializeJSON(output, list, Variant.FORMAT_JSON_COMPACT);
+		String json = new String(output.toByteArray(), "UTF-8");
+		assertEquals(json, serialize(list, Variant.FORMAT_JSON_COMPACT));
+		String[] texts = json.substring(1, json.length() - 1).split(",");
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(values[i], Double.parseDouble(texts[i]));
+			assertTrue(texts[i].length() <= Double.toString(values[i]).length());
+		}
+		assertTrue(Arrays.equals(values, Variant.newParser(stream(json),
+				Format.JSON).next().toList().toDoubleArray()));
+	}
+
+	public void testIntegerFormat() throws Exception {
+		VariantList list = new VariantList();
+		list.add(new VariantByte((byte) -128));
+		list.add(new VariantByte((byte) 7));
+		list.add(new VariantShort((short) -32768));
+		list.add(new VariantUShort((short) -1));
+		list.add(new VariantInt(Integer.MIN_VALUE));
+		list.add(new VariantInt(0));
+		list.add(new VariantUInt(-1));
+		list.add(new VariantLong(Long.MIN_VALUE));
+		list.add(new VariantLong(Long.MAX_VALUE));
+		list.add(new VariantULong(-1L));
+		list.add(new VariantULong(42L));
+		assertEquals("[-128,7,-32768,65535,-2147483648,0,4294967295,"
+				+ "-9223372036854775808,9223372036854775807,"
+				+ "18446744073709551615,42]",
+				serialize(list, Variant.FORMAT_JSON_COMPACT));
+		java.util.Random random = new java.util.Random(23);
+		list = new VariantList();
+		StringBuilder expected = new StringBuilder("[");
+		for (int i = 0; i < 1000; i++) {
+			long value = random.nextLong() >> random.nextInt(64);
+			list.add(new VariantLong(value));
+			expected.append(i == 0 ? "" : ",").append(value);
+		}
+		expected.append(']');
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Variant.serializeJSON(output, list, Variant.FORMAT_JSON_COMPACT);
+		assertEquals(expected.toString(), new String(output.toByteArray(),
+				"UTF-8"));
+		assertEquals(expected.toString(), serialize(list,
+				Variant.FORMAT_JSON_COMPACT));
+	}
+
+	public void testNumberParsing() throws Exception {
+		String[] texts = { "0", "-0", "42", "123456789012345678",
+				"9223372036854775807", "-922337203685477580",
+				"12345678901234567890", "0.1", "-0.0", "1e23", "1.5E-3",
+				"2.2250738585072011e-308", "4.9e-324", "2.4703282292062328e-324",
+				"1.7976931348623157e308", "9007199254740993.0",
+				"0.000000000000000000001234567890123456789012",
+				"123456789012345678901234567890e-10", "-1.25E+2" };
+		java.util.Random random = new java.util.Random(24);
+		StringBuilder json = new StringBuilder("[");
+		String[] all = new String[texts.length + 2000];
+		for (int i = 0; i < all.length; i++) {
+			if (i < texts.length) {
+				all[i] = texts[i];
+			} else {
+				StringBuilder text = new StringBuilder();
+				if (random.nextBoolean()) {
+					text.append('-');
+				}
+				text.append(1 + random.nextInt(9));
+				for (int n = random.nextInt(19); n > 0; n--) {
+					text.append(random.nextInt(10));
+				}
+				if (i % 2 == 0) {
+					text.append('.').append(random.nextInt(1000000));
+					text.append('e').append(random.nextInt(640) - 330);
+				}
+				all[i] = text.toString();
+			}
+			json.append(i == 0 ? "" : ", ").append(all[i]);
+		}
+		json.append(']');
+		VariantList list = Variant.newParser(stream(json.toString()),
+				Format.JSON).next().toList();
+		assertEquals(all.length, list.size());
+		for (int i = 0; i < all.length; i++) {
+			Variant value = list.get(i);
+			if (value.type() != Variant.Type.DOUBLE) {
+				assertEquals(all[i], Long.parseLong(all[i]), value.longValue());
+			} else {
+				assertTrue(all[i], all[i].indexOf('.') >= 0
+						|| all[i].indexOf('e') >= 0 || all[i].length() >= 19);
+				assertEquals(all[i], Double.doubleToLongBits(Double
+						.parseDouble(all[i])), Double.doubleToLongBits(value
+						.doubleValue()));
+			}
+		}
+		// Same values from the scanner (integers fitting in a long only)
+		StringBuilder scanned = new StringBuilder("[");
+		java.util.List<Variant> expected = new java.util.ArrayList<>();
+		for (int i = texts.length; i < all.length; i++) {
+			if (all[i].indexOf('e') >= 0 || all[i].length() <= 18) {
+				scanned.append(expected.isEmpty() ? "" : ", ").append(all[i]);
+				expected.add(list.get(i));
+			}
+		}
+		scanned.append(']');
+		VariantList scannerList = Variant.newParser(stream(scanned.toString()),
+				Format.JSON, Variant.PARSE_JSON_SCANNER).next().toList();
+		assertEquals(expected.size(), scannerList.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).type(), scannerList.get(i).type());
+			assertEquals(Double.doubleToLongBits(expected.get(i).doubleValue()),
+					Double.doubleToLongBits(scannerList.get(i).doubleValue()));
+		}
+		// Integers out of the long range are read as doubles
+		assertEquals(Variant.Type.DOUBLE, list.get(6).type());
+		assertEquals(12345678901234567890.0, list.get(6).doubleValue());
+		try {
+			Variant.newParser(stream("[1-2]"), Format.JSON).next();
+			fail("Invalid number parsed");
+		} catch (ParserException e) {
+			// Expected
+		}
+		for (String invalid : new String[] { "[+1]", "[1.]", "[1.e5]",
+				"[1e]", "[1e+]", "[-]", "[.5]", "[-.5]" }) {
+			for (int flags : new int[] { 0, Variant.PARSE_JSON_SCANNER }) {
+				try {
+					Variant.newParser(stream(invalid), Format.JSON, flags).next();
+					fail("Invalid number parsed: " + invalid);
+				} catch (ParserException e) {
+					// Expected
+				}
+			}
+		}
+	}
+
+	public void testJSONContext() throws Exception {
+		JSONContext.Pool pool = new JSONContext.Pool(1);
+		JSONContext context = pool.acquire();
+		VariantMap doc = sampleDocument();
+		String expected = serialize(doc, 0);
+		for (int i = 0; i < 3; i++) {
+			byte[] bytes = context.toByteArray(doc, 0);
+			assertEquals(expected, new String(bytes, "UTF-8"));
+			assertEquals(canonical(doc), canonical(context.parse(bytes)));
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			context.serialize(output, doc, 0);
+			assertEquals(expected, new String(output.toByteArray(), "UTF-8"));
+			Variant.Parser parser = context.reset(stream(expected + expected));
+			assertEquals(canonical(doc), canonical(parser.next()));
+			assertEquals(canonical(doc), canonical(parser.next()));
+			assertEquals(doc.toString(), context.toString(doc, 4));
+		}
+		try {
+			context.parse("[1, }".getBytes("UTF-8"));
+			fail("Invalid document parsed");
+		} catch (ParserException e) {
+			// Expected
+		}
+		assertEquals("[1]", canonical(context.parse("[1]".getBytes("UTF-8"))));
+		// Bounded pool: the extra context is dropped
+		JSONContext other = pool.acquire();
+		assertNotSame(context, other);
+		pool.release(context);
+		pool.release(other);
+		assertEquals(1, pool.size());
+		assertSame(context, pool.acquire());
+		assertEquals(0, pool.size());
+
+		// Large document failing in stream mode, then released
+		char[] large = new char[50000];
+		Arrays.fill(large, 'x');
+		VariantList big = new VariantList();
+		big.add(new String(large));
+		assertEquals(50004, context.toByteArray(big, 0).length);
+		assertEquals(50004, context.toString(big, 0).length());
+		try {
+			context.reset(stream("[\"" + new String(large) + "\", }")).next();
+			fail("Invalid document parsed");
+		} catch (IOException e) {
+			// Expected
+		}
+		pool.release(context);
+		assertSame(context, pool.acquire());
+		Variant.Parser parser = context.reset(stream(expected));
+		assertEquals(canonical(doc), canonical(parser.next()));
+		assertNull(parser.next(false));
+		assertEquals(expected, new String(context.toByteArray(doc, 0), "UTF-8"));
+		assertEquals(doc.toString(), context.toString(doc, 4));
+	}
 }